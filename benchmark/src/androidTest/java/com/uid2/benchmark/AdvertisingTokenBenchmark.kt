@@ -0,0 +1,98 @@
+package com.uid2.benchmark
+
+import android.os.Debug
+import androidx.benchmark.junit4.BenchmarkRule
+import androidx.benchmark.junit4.measureRepeated
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import com.uid2.UID2Manager
+import com.uid2.data.UID2Identity
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+/**
+ * Measures the cost of reading the advertising token, which is performed by ad SDKs for every ad request. This is
+ * expected to remain in the nanosecond range, without any allocation, which is asserted separately.
+ */
+@RunWith(AndroidJUnit4::class)
+class AdvertisingTokenBenchmark {
+
+    @get:Rule
+    val benchmarkRule = BenchmarkRule()
+
+    private lateinit var manager: UID2Manager
+
+    @Before
+    fun before() {
+        if (!UID2Manager.isInitialized()) {
+            UID2Manager.init(InstrumentationRegistry.getInstrumentation().targetContext)
+        }
+
+        val initialized = CountDownLatch(1)
+        manager = UID2Manager.getInstance().apply {
+            automaticRefreshEnabled = false
+            addOnInitializedListener { initialized.countDown() }
+        }
+        assertTrue(initialized.await(5, TimeUnit.SECONDS))
+
+        val now = System.currentTimeMillis()
+        manager.setIdentity(
+            UID2Identity(
+                advertisingToken = "advertising-token",
+                refreshToken = "refresh-token",
+                identityExpires = now + TimeUnit.HOURS.toMillis(2),
+                refreshFrom = now + TimeUnit.HOURS.toMillis(1),
+                refreshExpires = now + TimeUnit.HOURS.toMillis(3),
+                refreshResponseKey = "refresh-response-key",
+            ),
+        )
+    }
+
+    @After
+    fun after() {
+        manager.resetIdentity()
+    }
+
+    @Test
+    fun getAdvertisingToken() {
+        // setIdentity is applied immediately when uncontended, so the token should already be available.
+        assertNotNull(manager.getAdvertisingToken())
+
+        benchmarkRule.measureRepeated {
+            manager.getAdvertisingToken()
+        }
+    }
+
+    @Test
+    @Suppress("DEPRECATION")
+    fun getAdvertisingTokenWithoutAllocating() {
+        // Read the token once first, so that anything initialised lazily isn't counted.
+        assertNotNull(manager.getAdvertisingToken())
+
+        // Count the allocations made by this thread while repeatedly reading the token, including reading the time to
+        // check whether it has expired.
+        Debug.resetThreadAllocCount()
+        Debug.startAllocCounting()
+        try {
+            repeat(ALLOCATION_READS) {
+                manager.getAdvertisingToken()
+            }
+        } finally {
+            Debug.stopAllocCounting()
+        }
+
+        assertEquals(0, Debug.getThreadAllocCount())
+    }
+
+    private companion object {
+        const val ALLOCATION_READS = 1000
+    }
+}
@@ -0,0 +1,135 @@
+package com.uid2.benchmark
+
+import android.util.Base64
+import androidx.benchmark.junit4.BenchmarkRule
+import androidx.benchmark.junit4.measureRepeated
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.uid2.network.DataEnvelope
+import com.uid2.network.DefaultNetworkSession
+import com.uid2.network.NetworkRequest
+import com.uid2.network.NetworkRequestType
+import org.json.JSONObject
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.net.URL
+import java.security.SecureRandom
+import javax.crypto.Cipher
+import javax.crypto.spec.GCMParameterSpec
+import javax.crypto.spec.SecretKeySpec
+
+/**
+ * Measures the time to the first refreshed token after a cold start, with and without the connection to the operator
+ * having been warmed up (as enabled by `prewarmConnection`). This runs against a local TLS stand-in for the operator,
+ * so that the cost of establishing the connection (including the TLS handshake) is measured without the variability of
+ * a real network.
+ *
+ * The SDK can only be initialized once per process, so each iteration instead starts from a new session, which shares
+ * no pooled connections (or TLS sessions) with the last. The refresh request is then made as the SDK would, and its
+ * response decrypted. When warming up, the request made by the warm up is completed first, outside of the timing, as
+ * it would be while the SDK waits for the refresh to become due.
+ */
+@RunWith(AndroidJUnit4::class)
+class ConnectionWarmUpBenchmark {
+
+    @get:Rule
+    val benchmarkRule = BenchmarkRule()
+
+    private val random = SecureRandom()
+
+    private val server = LocalTlsServer { path ->
+        when (path) {
+            HEALTH_CHECK_PATH -> 200 to "OK"
+            REFRESH_PATH -> 200 to encryptResponse()
+            else -> 404 to ""
+        }
+    }
+
+    @After
+    fun after() {
+        server.close()
+    }
+
+    @Test
+    fun refreshWithoutWarmUp() {
+        // Verify that the stand-in server is understood.
+        assertEquals(ADVERTISING_TOKEN, refresh(server.newSession()))
+
+        benchmarkRule.measureRepeated {
+            val session = runWithTimingDisabled { server.newSession() }
+            refresh(session)
+        }
+    }
+
+    @Test
+    fun refreshWithWarmUp() {
+        assertEquals(ADVERTISING_TOKEN, refresh(server.newSession().apply { warmUp() }))
+
+        benchmarkRule.measureRepeated {
+            val session = runWithTimingDisabled { server.newSession().apply { warmUp() } }
+            refresh(session)
+        }
+    }
+
+    /**
+     * Makes the same request as the SDK does to warm up the connection.
+     */
+    private fun DefaultNetworkSession.warmUp() {
+        loadData(URL(server.url + HEALTH_CHECK_PATH), NetworkRequest(NetworkRequestType.GET))
+    }
+
+    /**
+     * Refreshes the identity via the given session, returning the refreshed advertising token.
+     */
+    private fun refresh(session: DefaultNetworkSession): String? {
+        val response = session.loadData(
+            URL(server.url + REFRESH_PATH),
+            NetworkRequest(NetworkRequestType.POST, data = REFRESH_TOKEN),
+        )
+
+        return DataEnvelope.decrypt(REFRESH_RESPONSE_KEY, response.data, false)
+            ?.let { JSONObject(String(it, Charsets.UTF_8)) }
+            ?.getJSONObject("body")
+            ?.getString("advertising_token")
+    }
+
+    /**
+     * Encrypts a refresh response as the operator would, with the refresh response key.
+     */
+    private fun encryptResponse(): String {
+        val iv = ByteArray(IV_LENGTH_BYTES).apply { random.nextBytes(this) }
+        val encrypted = Cipher.getInstance("AES/GCM/NoPadding").apply {
+            init(Cipher.ENCRYPT_MODE, SecretKeySpec(REFRESH_RESPONSE_KEY, "AES"), GCMParameterSpec(TAG_LENGTH_BITS, iv))
+        }.doFinal(RESPONSE.toByteArray())
+
+        return Base64.encodeToString(iv + encrypted, Base64.NO_WRAP)
+    }
+
+    private companion object {
+        const val HEALTH_CHECK_PATH = "/ops/healthcheck"
+        const val REFRESH_PATH = "/v2/token/refresh"
+        const val REFRESH_TOKEN = "refresh-token"
+        const val ADVERTISING_TOKEN = "advertising-token"
+
+        const val IV_LENGTH_BYTES = 12
+        const val TAG_LENGTH_BITS = 128
+
+        val REFRESH_RESPONSE_KEY = ByteArray(32) { it.toByte() }
+
+        val RESPONSE = JSONObject()
+            .put("status", "success")
+            .put(
+                "body",
+                JSONObject()
+                    .put("advertising_token", ADVERTISING_TOKEN)
+                    .put("refresh_token", REFRESH_TOKEN)
+                    .put("identity_expires", 0L)
+                    .put("refresh_from", 0L)
+                    .put("refresh_expires", 0L)
+                    .put("refresh_response_key", Base64.encodeToString(REFRESH_RESPONSE_KEY, Base64.NO_WRAP)),
+            )
+            .toString()
+    }
+}
@@ -0,0 +1,160 @@
+package com.uid2.benchmark
+
+import android.util.Base64
+import androidx.benchmark.junit4.BenchmarkRule
+import androidx.benchmark.junit4.measureRepeated
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import com.uid2.EUIDManager
+import com.uid2.UID2Manager
+import com.uid2.UID2Manager.GenerateIdentityResult
+import com.uid2.data.IdentityRequest
+import com.uid2.network.NetworkRequest
+import com.uid2.network.NetworkResponse
+import com.uid2.network.NetworkSession
+import org.json.JSONObject
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.net.URL
+import java.security.KeyFactory
+import java.security.KeyPairGenerator
+import java.security.SecureRandom
+import java.security.spec.ECGenParameterSpec
+import java.security.spec.X509EncodedKeySpec
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicReference
+import javax.crypto.Cipher
+import javax.crypto.KeyAgreement
+import javax.crypto.spec.GCMParameterSpec
+import javax.crypto.spec.SecretKeySpec
+
+/**
+ * Measures the cost of generating an identity, which is on the critical path after a user logs in. This runs the
+ * SDK's full generate path against a stand-in for the API server that responds immediately, so that only the work
+ * performed on the device is measured.
+ *
+ * The SDK can only be initialized once per process, so the `pregenerateKeyPairs` option is taken from the
+ * instrumentation arguments. Run once with `-Pandroid.testInstrumentationRunnerArguments.pregenerateKeyPairs=true`, and
+ * once without, to compare generating the client key pair on demand with taking one that was generated ahead of time.
+ */
+@RunWith(AndroidJUnit4::class)
+class GenerateIdentityBenchmark {
+
+    @get:Rule
+    val benchmarkRule = BenchmarkRule()
+
+    private lateinit var manager: UID2Manager
+
+    @Before
+    fun before() {
+        // EUIDManager is used so that the stand-in session doesn't affect other benchmarks, which use UID2Manager.
+        if (!EUIDManager.isInitialized()) {
+            val pregenerateKeyPairs = InstrumentationRegistry.getArguments().getString(ARG_PREGENERATE) == "true"
+            EUIDManager.init(
+                InstrumentationRegistry.getInstrumentation().targetContext,
+                EUIDManager.Environment.Custom(SERVER_URL),
+                StubServerSession(),
+                pregenerateKeyPairs = pregenerateKeyPairs,
+            )
+        }
+
+        val initialized = CountDownLatch(1)
+        manager = EUIDManager.getInstance().apply {
+            automaticRefreshEnabled = false
+            addOnInitializedListener { initialized.countDown() }
+        }
+        assertTrue(initialized.await(5, TimeUnit.SECONDS))
+    }
+
+    @Test
+    fun generateIdentity() {
+        // Verify that the stand-in server is understood by the SDK.
+        assertEquals(GenerateIdentityResult.Success, generate())
+
+        benchmarkRule.measureRepeated {
+            // Leave time for any background work to complete, as there would be between two logins.
+            runWithTimingDisabled {
+                Thread.sleep(IDLE_BETWEEN_GENERATES_MS)
+            }
+
+            generate()
+        }
+    }
+
+    /**
+     * Generates an identity, waiting for the result.
+     */
+    private fun generate(): GenerateIdentityResult? {
+        val result = AtomicReference<GenerateIdentityResult>()
+        val completed = CountDownLatch(1)
+        manager.generateIdentity(IdentityRequest.Email(EMAIL), SUBSCRIPTION_ID, serverPublicKey) {
+            result.set(it)
+            completed.countDown()
+        }
+        completed.await(5, TimeUnit.SECONDS)
+        return result.get()
+    }
+
+    /**
+     * A [NetworkSession] which responds to each request to generate an identity as the API server would, by encrypting
+     * an identity with the secret shared with the client's public key.
+     */
+    private class StubServerSession : NetworkSession {
+        private val random = SecureRandom()
+
+        override fun loadData(url: URL, request: NetworkRequest): NetworkResponse {
+            val clientPublicKey = JSONObject(request.data.orEmpty()).getString("public_key")
+                .let { Base64.decode(it, Base64.NO_WRAP) }
+                .let { KeyFactory.getInstance("EC").generatePublic(X509EncodedKeySpec(it)) }
+
+            val sharedSecret = KeyAgreement.getInstance("ECDH").apply {
+                init(serverKeyPair.private)
+                doPhase(clientPublicKey, true)
+            }.generateSecret()
+
+            val iv = ByteArray(IV_LENGTH_BYTES).apply { random.nextBytes(this) }
+            val encrypted = Cipher.getInstance("AES/GCM/NoPadding").apply {
+                init(Cipher.ENCRYPT_MODE, SecretKeySpec(sharedSecret, "AES"), GCMParameterSpec(TAG_LENGTH_BITS, iv))
+            }.doFinal(RESPONSE.toByteArray())
+
+            return NetworkResponse(200, Base64.encodeToString(iv + encrypted, Base64.NO_WRAP))
+        }
+    }
+
+    private companion object {
+        const val ARG_PREGENERATE = "pregenerateKeyPairs"
+        const val SERVER_URL = "https://operator.benchmark.test"
+        const val EMAIL = "user@example.com"
+        const val SUBSCRIPTION_ID = "subscription-id"
+        const val IDLE_BETWEEN_GENERATES_MS = 50L
+
+        const val IV_LENGTH_BYTES = 12
+        const val TAG_LENGTH_BITS = 128
+
+        val serverKeyPair = KeyPairGenerator.getInstance("EC").apply {
+            initialize(ECGenParameterSpec("secp256r1"))
+        }.genKeyPair()
+
+        // The server's public key, in the format provided to the SDK, i.e. with a 9 character prefix.
+        val serverPublicKey = "EUID-X-L-" + Base64.encodeToString(serverKeyPair.public.encoded, Base64.NO_WRAP)
+
+        val RESPONSE = JSONObject()
+            .put("status", "success")
+            .put(
+                "body",
+                JSONObject()
+                    .put("advertising_token", "advertising-token")
+                    .put("refresh_token", "refresh-token")
+                    .put("identity_expires", System.currentTimeMillis() + TimeUnit.HOURS.toMillis(2))
+                    .put("refresh_from", System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1))
+                    .put("refresh_expires", System.currentTimeMillis() + TimeUnit.HOURS.toMillis(3))
+                    .put("refresh_response_key", Base64.encodeToString(ByteArray(32), Base64.NO_WRAP)),
+            )
+            .toString()
+    }
+}
@@ -0,0 +1,144 @@
+package com.uid2.benchmark
+
+import androidx.test.platform.app.InstrumentationRegistry
+import com.uid2.network.DefaultNetworkSession
+import com.uid2.network.NetworkEventListener
+import java.io.BufferedInputStream
+import java.io.ByteArrayOutputStream
+import java.io.Closeable
+import java.io.IOException
+import java.io.InputStream
+import java.net.InetAddress
+import java.net.ServerSocket
+import java.net.Socket
+import java.net.URL
+import java.security.KeyStore
+import javax.net.ssl.HttpsURLConnection
+import javax.net.ssl.KeyManagerFactory
+import javax.net.ssl.SSLContext
+import javax.net.ssl.TrustManagerFactory
+import kotlin.concurrent.thread
+
+/**
+ * A local HTTPS server, used as a stand-in for the UID2 operator on the device. It serves a self-signed certificate for
+ * 127.0.0.1, which the sessions created via [newSession] are configured to trust. Connections are kept alive, so that
+ * a session can reuse one for subsequent requests, as it would with the real operator.
+ *
+ * @param handler Provides the response code and body for a request to the given path.
+ */
+class LocalTlsServer(private val handler: (path: String) -> Pair<Int, String>) : Closeable {
+    private val keyStore = KeyStore.getInstance("PKCS12").apply {
+        InstrumentationRegistry.getInstrumentation().context.assets.open(KEY_STORE_NAME).use {
+            load(it, KEY_STORE_PASSWORD)
+        }
+    }
+
+    private val serverSocket: ServerSocket = run {
+        val keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm()).apply {
+            init(keyStore, KEY_STORE_PASSWORD)
+        }.keyManagers
+
+        SSLContext.getInstance("TLS").apply { init(keyManagers, null, null) }
+            .serverSocketFactory
+            .createServerSocket(0, 0, InetAddress.getByName(LOOPBACK_ADDRESS))
+    }
+
+    init {
+        thread(isDaemon = true, name = "LocalTlsServer") {
+            while (!serverSocket.isClosed) {
+                val socket = runCatching { serverSocket.accept() }.getOrNull() ?: break
+                thread(isDaemon = true, name = "LocalTlsServer-${socket.port}") { serve(socket) }
+            }
+        }
+    }
+
+    /**
+     * The root URL of the server.
+     */
+    val url: String = "https://$LOOPBACK_ADDRESS:${serverSocket.localPort}"
+
+    /**
+     * Creates a new [DefaultNetworkSession] that trusts this server. Each session has its own TLS configuration, and
+     * therefore doesn't share any pooled connections (or TLS sessions) with another.
+     */
+    fun newSession(eventListener: NetworkEventListener? = null): DefaultNetworkSession {
+        val trustStore = KeyStore.getInstance(KeyStore.getDefaultType()).apply {
+            load(null, null)
+            setCertificateEntry(KEY_ALIAS, keyStore.getCertificate(KEY_ALIAS))
+        }
+        val trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm()).apply {
+            init(trustStore)
+        }.trustManagers
+        val socketFactory = SSLContext.getInstance("TLS").apply { init(null, trustManagers, null) }.socketFactory
+
+        return object : DefaultNetworkSession(eventListener) {
+            override fun openConnection(url: URL): HttpsURLConnection = super.openConnection(url).apply {
+                sslSocketFactory = socketFactory
+            }
+        }
+    }
+
+    override fun close() {
+        serverSocket.close()
+    }
+
+    /**
+     * Responds to each request received on the given connection, until the client closes it.
+     */
+    private fun serve(socket: Socket) {
+        socket.use {
+            val input = BufferedInputStream(socket.getInputStream())
+            val output = socket.getOutputStream()
+
+            try {
+                while (true) {
+                    // The request line, e.g. "POST /v2/token/refresh HTTP/1.1", followed by the headers.
+                    val path = input.readLine()?.split(" ")?.getOrNull(1) ?: return
+                    var contentLength = 0
+                    while (true) {
+                        val header = input.readLine() ?: return
+                        if (header.isEmpty()) {
+                            break
+                        }
+                        if (header.startsWith("Content-Length:", ignoreCase = true)) {
+                            contentLength = header.substringAfter(':').trim().toInt()
+                        }
+                    }
+                    repeat(contentLength) { if (input.read() == -1) return }
+
+                    val (code, body) = handler(path)
+                    val bytes = body.toByteArray(Charsets.UTF_8)
+                    output.write(
+                        "HTTP/1.1 $code\r\nContent-Type: application/json\r\nContent-Length: ${bytes.size}\r\n\r\n"
+                            .toByteArray(Charsets.US_ASCII),
+                    )
+                    output.write(bytes)
+                    output.flush()
+                }
+            } catch (ex: IOException) {
+                // The connection was closed by the client.
+            }
+        }
+    }
+
+    /**
+     * Reads a single line of the request (terminated by CRLF), or returns null if the connection was closed.
+     */
+    private fun InputStream.readLine(): String? {
+        val line = ByteArrayOutputStream()
+        while (true) {
+            when (val byte = read()) {
+                -1 -> return null
+                '\n'.code -> return line.toString(Charsets.US_ASCII.name()).trimEnd('\r')
+                else -> line.write(byte)
+            }
+        }
+    }
+
+    private companion object {
+        const val LOOPBACK_ADDRESS = "127.0.0.1"
+        const val KEY_STORE_NAME = "localhost.p12"
+        const val KEY_ALIAS = "localhost"
+        val KEY_STORE_PASSWORD = "password".toCharArray()
+    }
+}
@@ -34,8 +34,8 @@ class DevApplication : Application() {
             )
         }
 
-        // Alternatively, we could initialise the UID2Manager with our own custom NetworkSession...
-        // UID2Manager.init(this, INTEG_SERVER_URL, OkNetworkSession(), true)
+        // Alternatively, we could initialise the UID2Manager with our own custom (Suspending)NetworkSession...
+        // UID2Manager.init(this, UID2Manager.Environment.Custom(UID2_INTEG_SERVER_URL), OkNetworkSession(), true)
 
         // Create the Prebid integration and allow it to start observing the UID2Manager instance.
         PrebidMobile.initializeSdk(this, "") { Log.i(TAG, "Prebid: $it") }
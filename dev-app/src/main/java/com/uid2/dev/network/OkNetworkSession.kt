@@ -3,19 +3,27 @@ package com.uid2.dev.network
 import android.util.Log
 import com.uid2.network.NetworkRequest
 import com.uid2.network.NetworkResponse
-import com.uid2.network.NetworkSession
+import com.uid2.network.SuspendingNetworkSession
+import kotlinx.coroutines.suspendCancellableCoroutine
+import okhttp3.Call
+import okhttp3.Callback
 import okhttp3.OkHttpClient
 import okhttp3.Request
 import okhttp3.RequestBody.Companion.toRequestBody
+import okhttp3.Response
+import java.io.IOException
 import java.net.URL
+import kotlin.coroutines.resume
+import kotlin.coroutines.resumeWithException
 
 /**
- * An example of a custom NetworkSession, which internally is using OkHttp.
+ * An example of a custom SuspendingNetworkSession, which internally is using OkHttp. Requests are enqueued rather than
+ * executed, so no thread is held while waiting for the response.
  */
-class OkNetworkSession : NetworkSession {
+class OkNetworkSession : SuspendingNetworkSession {
     private val client = OkHttpClient()
 
-    override fun loadData(url: URL, request: NetworkRequest): NetworkResponse {
+    override suspend fun loadData(url: URL, request: NetworkRequest): NetworkResponse {
         Log.i(TAG, "Requested URL: $url")
 
         val builder = Request.Builder()
@@ -29,16 +37,44 @@ class OkNetworkSession : NetworkSession {
         // If data was provided, this will require us to write it to the output stream.
         request.data?.let { data -> builder.post(data.toRequestBody()) }
 
+        return client.newCall(builder.build()).await()
+    }
+
+    /**
+     * Enqueues the Call, suspending until its response has been read.
+     */
+    private suspend fun Call.await(): NetworkResponse = suspendCancellableCoroutine { continuation ->
+        continuation.invokeOnCancellation { cancel() }
+
+        enqueue(
+            object : Callback {
+                override fun onFailure(call: Call, e: IOException) {
+                    continuation.resumeWithException(e)
+                }
+
+                override fun onResponse(call: Call, response: Response) {
+                    // The body is read here, on OkHttp's own thread, before resuming the caller.
+                    runCatching { response.use { it.toNetworkResponse() } }
+                        .onSuccess { continuation.resume(it) }
+                        .onFailure { continuation.resumeWithException(it) }
+                }
+            },
+        )
+    }
+
+    /**
+     * Converts the OkHttp Response into the expected NetworkResponse.
+     */
+    private fun Response.toNetworkResponse(): NetworkResponse {
         // A successful response code should be in the [200-299] range.
-        val response = client.newCall(builder.build()).execute()
-        if (!response.isSuccessful) {
-            Log.e(TAG, "Error Received: ${response.code}")
-            return NetworkResponse(response.code)
+        if (!isSuccessful) {
+            Log.e(TAG, "Error Received: $code")
+            return NetworkResponse(code)
         }
 
         // We expect the response to be a String.
-        Log.i(TAG, "Request Successful: ${response.code}")
-        return NetworkResponse(response.code, response.body?.string() ?: "")
+        Log.i(TAG, "Request Successful: $code")
+        return NetworkResponse(code, body?.string() ?: "")
     }
 
     private companion object {
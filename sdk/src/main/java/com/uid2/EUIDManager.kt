@@ -2,13 +2,29 @@ package com.uid2
 
 import android.content.Context
 import com.uid2.UID2Manager.Companion.APPLICATION_ID_DEFAULT
+import com.uid2.data.IdentitySnapshot
+import com.uid2.network.AlwaysConnectedMonitor
+import com.uid2.network.AndroidConnectivityMonitor
+import com.uid2.network.ConnectivityMonitor
 import com.uid2.network.DefaultNetworkSession
 import com.uid2.network.NetworkSession
+import com.uid2.network.SuspendingNetworkSession
+import com.uid2.network.asSuspending
 import com.uid2.storage.FileStorageManager
 import com.uid2.storage.FileStorageManager.Store.EUID
 import com.uid2.storage.StorageManager
+import com.uid2.utils.ActivityLifecycleVisibility
+import com.uid2.utils.AlwaysForeground
+import com.uid2.utils.AppVisibility
+import com.uid2.utils.DiagnosticLog
 import com.uid2.utils.InputUtils
+import com.uid2.utils.InstanceHolder
+import com.uid2.utils.KeyPairPool
+import com.uid2.utils.KeyUtils
+import com.uid2.utils.LatencyEstimator
 import com.uid2.utils.Logger
+import com.uid2.utils.MonotonicTimeUtils
+import com.uid2.utils.PooledKeyUtils
 import com.uid2.utils.TimeUtils
 import kotlinx.coroutines.Dispatchers
 
@@ -44,11 +60,18 @@ public object EUIDManager {
 
     private var serverUrl: String = EUID_API_URL_PRODUCTION
     private var applicationId: String = APPLICATION_ID_DEFAULT
-    private var networkSession: NetworkSession = DefaultNetworkSession()
+    private var networkSession: SuspendingNetworkSession = DefaultNetworkSession().asSuspending()
     private var storageManager: StorageManager? = null
     private var isLoggingEnabled: Boolean = false
+    private var prewarmConnection: Boolean = false
+    private var connectivityMonitor: ConnectivityMonitor = AlwaysConnectedMonitor
+    private var warmStartSnapshot: IdentitySnapshot? = null
+    private var appVisibility: AppVisibility = AlwaysForeground
+    private var timeUtils: TimeUtils = TimeUtils
+    private var diagnostics: DiagnosticLog = DiagnosticLog()
+    private var keyUtils: KeyUtils = KeyUtils
 
-    private var instance: UID2Manager? = null
+    private val instance = InstanceHolder<UID2Manager>()
 
     /**
      * Initializes the class with the given [Context], along with a [NetworkSession] that will be responsible
@@ -59,6 +82,16 @@ public object EUIDManager {
      * @param environment The API Environment to use.
      * @param networkSession A custom [NetworkSession] which can be used for making any required network calls.
      * The default implementation supported by the SDK can be found as [DefaultNetworkSession].
+     * @param prewarmConnection If enabled, and a restored identity is due to be refreshed soon, a connection to the API
+     * server will be established in the background ahead of the refresh.
+     * @param warmStart If enabled, a small snapshot of the last known advertising token is read synchronously during
+     * initialisation, so that [UID2Manager.getAdvertisingToken] can provide it while the full identity is still
+     * being loaded.
+     * @param deferBackgroundRefresh If enabled, automatic refreshes that fall due while the app is in the background
+     * are deferred until it returns to the foreground, unless the identity would otherwise be lost.
+     * @param metrics A listener which receives measurements of the SDK, such as the latency of requests to the API.
+     * @param pregenerateKeyPairs If enabled, the key pairs required to generate an identity are generated ahead of time
+     * on a low priority background thread, rather than when [UID2Manager.generateIdentity] is called.
      */
     @JvmStatic
     @JvmOverloads
@@ -68,23 +101,99 @@ public object EUIDManager {
         environment: Environment = Environment.Production,
         networkSession: NetworkSession = DefaultNetworkSession(),
         isLoggingEnabled: Boolean = false,
+        prewarmConnection: Boolean = false,
+        warmStart: Boolean = false,
+        deferBackgroundRefresh: Boolean = false,
+        metrics: UID2Metrics = UID2Metrics.NONE,
+        pregenerateKeyPairs: Boolean = false,
     ) {
-        if (instance != null) {
-            throw InitializationException()
-        }
+        init(
+            context,
+            environment,
+            networkSession.reportingTo(metrics).asSuspending(),
+            isLoggingEnabled,
+            prewarmConnection,
+            warmStart,
+            deferBackgroundRefresh,
+            metrics,
+            pregenerateKeyPairs,
+        )
+    }
+
+    /**
+     * Initializes the class with the given [Context], along with a [SuspendingNetworkSession] that will be responsible
+     * for making any required network calls. Unlike a [NetworkSession], this will not hold a thread while waiting for
+     * the network.
+     *
+     * @param context The context to initialise from. This will be used to obtain the package's metadata to extract
+     * the API URL.
+     * @param environment The API Environment to use.
+     * @param networkSession A custom [SuspendingNetworkSession] which can be used for making any required network
+     * calls.
+     * @param prewarmConnection If enabled, and a restored identity is due to be refreshed soon, a connection to the API
+     * server will be established in the background ahead of the refresh.
+     * @param warmStart If enabled, a small snapshot of the last known advertising token is read synchronously during
+     * initialisation, so that [UID2Manager.getAdvertisingToken] can provide it while the full identity is still
+     * being loaded.
+     * @param deferBackgroundRefresh If enabled, automatic refreshes that fall due while the app is in the background
+     * are deferred until it returns to the foreground, unless the identity would otherwise be lost.
+     * @param metrics A listener which receives measurements of the SDK, such as the latency of requests to the API.
+     * @param pregenerateKeyPairs If enabled, the key pairs required to generate an identity are generated ahead of time
+     * on a low priority background thread, rather than when [UID2Manager.generateIdentity] is called.
+     */
+    @JvmStatic
+    @JvmOverloads
+    @Throws(InitializationException::class)
+    public fun init(
+        context: Context,
+        environment: Environment,
+        networkSession: SuspendingNetworkSession,
+        isLoggingEnabled: Boolean = false,
+        prewarmConnection: Boolean = false,
+        warmStart: Boolean = false,
+        deferBackgroundRefresh: Boolean = false,
+        metrics: UID2Metrics = UID2Metrics.NONE,
+        pregenerateKeyPairs: Boolean = false,
+    ) {
+        val timeUtils = MonotonicTimeUtils()
+        val diagnostics = DiagnosticLog(timeUtils::now, metrics, publicKeyCache = KeyUtils.publicKeyCache)
+        val storageManager = FileStorageManager(context.applicationContext, EUID, diagnostics, timeUtils)
+
+        // The warm start snapshot is read here, rather than when the instance is created, so that other threads waiting
+        // for the instance aren't blocked on the file being read.
+        val warmStartSnapshot = if (warmStart) storageManager.loadSnapshot() else null
+
+        // The configuration is applied while holding the same lock used to create the instance, so that it's never
+        // created from a partially applied configuration.
+        instance.withLock {
+            if (instance.value != null) {
+                throw InitializationException()
+            }
 
-        this.serverUrl = environment.serverUrl
-        this.applicationId = context.packageName
-        this.networkSession = networkSession
-        this.storageManager = FileStorageManager(context.applicationContext, EUID)
-        this.isLoggingEnabled = isLoggingEnabled
+            this.serverUrl = environment.serverUrl
+            this.applicationId = context.packageName
+            this.networkSession = networkSession
+            this.storageManager = storageManager
+            this.isLoggingEnabled = isLoggingEnabled
+            this.prewarmConnection = prewarmConnection
+            this.connectivityMonitor = AndroidConnectivityMonitor.create(context)
+            this.warmStartSnapshot = warmStartSnapshot
+            this.appVisibility = if (deferBackgroundRefresh) {
+                ActivityLifecycleVisibility.create(context)
+            } else {
+                AlwaysForeground
+            }
+            this.timeUtils = timeUtils
+            this.diagnostics = diagnostics
+            this.keyUtils = if (pregenerateKeyPairs) PooledKeyUtils(KeyPairPool()) else KeyUtils
+        }
     }
 
     /**
      * Returns True if the manager is already initialised, otherwise False.
      */
     @JvmStatic
-    public fun isInitialized(): Boolean = instance != null
+    public fun isInitialized(): Boolean = instance.value != null
 
     /**
      * Gets the current singleton instance of the manager.
@@ -93,28 +202,37 @@ public object EUIDManager {
      */
     @JvmStatic
     public fun getInstance(): UID2Manager {
-        if (storageManager == null) {
-            throw InitializationException()
-        }
-        val storage = storageManager ?: throw InitializationException()
-        val logger = Logger(isLoggingEnabled)
-
-        return instance ?: UID2Manager(
-            client = UID2Client(
-                apiUrl = serverUrl,
-                session = networkSession,
-                applicationId = applicationId,
+        return instance.getOrCreate {
+            // This is run while holding the same lock as init, so the configuration is seen in full.
+            val storage = storageManager ?: throw InitializationException()
+            val logger = Logger(isLoggingEnabled)
+            val latencyEstimator = LatencyEstimator()
+            UID2Manager(
+                client = UID2Client(
+                    apiUrl = serverUrl,
+                    session = networkSession,
+                    applicationId = applicationId,
+                    timeUtils = timeUtils,
+                    keyUtils = keyUtils,
+                    logger = logger,
+                    latencyEstimator = latencyEstimator,
+                    metrics = diagnostics,
+                ),
+                storageManager = storage,
+                timeUtils = timeUtils,
+                inputUtils = InputUtils(),
+                defaultDispatcher = Dispatchers.Default,
+                initialAutomaticRefreshEnabled = true,
+                isEuid = true,
                 logger = logger,
-            ),
-            storageManager = storage,
-            timeUtils = TimeUtils,
-            inputUtils = InputUtils(),
-            defaultDispatcher = Dispatchers.Default,
-            initialAutomaticRefreshEnabled = true,
-            isEuid = true,
-            logger = logger,
-        ).apply {
-            instance = this
+                prewarmConnection = prewarmConnection,
+                connectivityMonitor = connectivityMonitor,
+                warmStartSnapshot = warmStartSnapshot,
+                latencyEstimator = latencyEstimator,
+                appVisibility = appVisibility,
+                metrics = diagnostics,
+                diagnostics = diagnostics,
+            )
         }
     }
 }
@@ -0,0 +1,111 @@
+package com.uid2
+
+import java.net.HttpURLConnection
+import kotlin.random.Random
+
+/**
+ * The details of a failed attempt to refresh the identity, used by a [RefreshRetryPolicy] to decide whether (and when)
+ * to retry.
+ *
+ * @param statusCode The HTTP status code returned by the API, or null if no response was received (e.g. the network was
+ * unavailable, or the response could not be processed).
+ * @param retryAfterMs The number of milliseconds the API asked us to wait before retrying, via its Retry-After header.
+ */
+public data class RefreshFailure(
+    val statusCode: Int?,
+    val retryAfterMs: Long?,
+) {
+    /**
+     * Whether retrying could result in a different outcome. A request that was rejected by the API, e.g. due to being
+     * malformed or unauthorized, will be rejected again.
+     */
+    val isRetryable: Boolean
+        get() = statusCode == null || statusCode !in NON_RETRYABLE_STATUS_CODES
+
+    internal companion object {
+        private val NON_RETRYABLE_STATUS_CODES = setOf(
+            HttpURLConnection.HTTP_BAD_REQUEST,
+            HttpURLConnection.HTTP_UNAUTHORIZED,
+            HttpURLConnection.HTTP_FORBIDDEN,
+        )
+
+        /**
+         * Builds the [RefreshFailure] from the exception that caused a refresh to fail.
+         */
+        fun fromException(ex: Throwable): RefreshFailure {
+            // The exception reported by the client may be wrapped when the refresh fails.
+            val requestFailure = ex as? RequestFailureException ?: ex.cause as? RequestFailureException
+            return RefreshFailure(requestFailure?.statusCode, requestFailure?.retryAfterMs)
+        }
+    }
+}
+
+/**
+ * A policy which decides whether, and after how long, a failed refresh of the identity should be retried.
+ */
+public interface RefreshRetryPolicy {
+
+    /**
+     * Gets the delay before the next attempt to refresh the identity.
+     *
+     * @param attempt The number of attempts that have already been retried, starting at zero after the first failure.
+     * @param failure The details of the latest failure.
+     * @return The number of milliseconds to wait before retrying, or null if the refresh should no longer be retried.
+     */
+    public fun getRetryDelayMs(attempt: Long, failure: RefreshFailure): Long?
+}
+
+/**
+ * The default [RefreshRetryPolicy]. Retries are delayed using an exponential backoff with "full jitter", so a fleet of
+ * devices that failed at the same time (e.g. during an outage of the API) will spread their retries out rather than
+ * retrying in lockstep.
+ *
+ * If the API provided a Retry-After delay, the retry will wait that long, plus a small amount of jitter, regardless of
+ * the number of attempts so far. Failures that are not retryable, e.g. the API rejecting the refresh token as
+ * unauthorized, will stop any further retries.
+ *
+ * @param baseDelayMs The upper bound of the delay before the first retry.
+ * @param maxDelayMs The maximum upper bound of the delay, reached after a number of consecutive failures.
+ */
+public class ExponentialBackoffRetryPolicy internal constructor(
+    private val baseDelayMs: Long,
+    private val maxDelayMs: Long,
+    private val random: Random,
+) : RefreshRetryPolicy {
+
+    @JvmOverloads
+    public constructor(
+        baseDelayMs: Long = DEFAULT_BASE_DELAY_MS,
+        maxDelayMs: Long = DEFAULT_MAX_DELAY_MS,
+    ) : this(baseDelayMs, maxDelayMs, Random.Default)
+
+    override fun getRetryDelayMs(attempt: Long, failure: RefreshFailure): Long? {
+        if (!failure.isRetryable) {
+            return null
+        }
+
+        // If the server asked us to wait, we will wait that long rather than backing off further. A small amount of
+        // jitter is still added, to avoid every device returning at the same time.
+        failure.retryAfterMs?.let { retryAfterMs ->
+            val bound = (retryAfterMs / RETRY_AFTER_JITTER_DIVISOR).coerceAtMost(baseDelayMs)
+            return retryAfterMs + random.nextLong(bound + 1)
+        }
+
+        // The upper bound doubles with each attempt, until it reaches the maximum. The actual delay is then chosen
+        // randomly, between zero and this bound.
+        val exponent = attempt.coerceIn(0, MAX_EXPONENT).toInt()
+        val bound = (baseDelayMs shl exponent).coerceAtMost(maxDelayMs)
+        return random.nextLong(bound + 1)
+    }
+
+    private companion object {
+        const val DEFAULT_BASE_DELAY_MS = 5000L
+        const val DEFAULT_MAX_DELAY_MS = 10 * 60 * 1000L // 10 minutes
+
+        // Limits the exponent, to avoid overflowing when shifting the base delay.
+        const val MAX_EXPONENT = 30L
+
+        // The jitter added to a Retry-After delay is limited to this fraction of it (and to the base delay).
+        const val RETRY_AFTER_JITTER_DIVISOR = 10L
+    }
+}
@@ -0,0 +1,84 @@
+package com.uid2
+
+import com.uid2.data.LatencyStats
+import com.uid2.data.UID2Identity
+import kotlin.random.Random
+
+/**
+ * A policy which decides when an identity should be automatically refreshed, within the window between it becoming
+ * refreshable and it expiring.
+ */
+public interface RefreshWindowPolicy {
+
+    /**
+     * Gets the time at which the given identity should be refreshed.
+     *
+     * @param identity The identity to be refreshed.
+     * @param latency The latency observed so far for requests made to the API.
+     * @return The epoch time (in milliseconds) at which to refresh. This is expected to be no earlier than the
+     * identity's [UID2Identity.refreshFrom].
+     */
+    public fun getRefreshTimeMs(identity: UID2Identity, latency: LatencyStats): Long
+}
+
+/**
+ * The default [RefreshWindowPolicy]. Rather than refreshing exactly at [UID2Identity.refreshFrom], a random point
+ * shortly afterwards is chosen. Identities that were issued at the same time, e.g. following an app release, will then
+ * spread their refreshes out rather than all refreshing in lockstep.
+ *
+ * The chosen point always leaves a lead time before the identity expires, allowing time for the refresh (and any
+ * retries) to complete while the current token is still valid. Once the latency of the API has been observed, the lead
+ * time is sized from it: growing for clients on slow networks, and shrinking for those on fast ones.
+ *
+ * The lead time only narrows the window for identities that expire within [maxJitterMs] plus the lead time of
+ * becoming refreshable. Identities issued by the API usually remain valid for much longer than that, so in practice
+ * their refresh is spread across the full jitter window regardless of the observed latency.
+ *
+ * @param maxJitterMs The maximum time after the identity becomes refreshable that the refresh may be delayed.
+ * @param safetyMarginMs The lead time to leave before the identity expires, until the latency of the API is known.
+ */
+public class JitteredRefreshWindowPolicy internal constructor(
+    private val maxJitterMs: Long,
+    private val safetyMarginMs: Long,
+    private val random: Random,
+) : RefreshWindowPolicy {
+
+    @JvmOverloads
+    public constructor(
+        maxJitterMs: Long = DEFAULT_MAX_JITTER_MS,
+        safetyMarginMs: Long = DEFAULT_SAFETY_MARGIN_MS,
+    ) : this(maxJitterMs, safetyMarginMs, Random.Default)
+
+    override fun getRefreshTimeMs(identity: UID2Identity, latency: LatencyStats): Long {
+        // The window can't extend past the lead time before expiry. If the identity doesn't leave enough time for that,
+        // we'll refresh as soon as we're allowed.
+        val latest = identity.identityExpires - getLeadTimeMs(latency)
+        val window = (latest - identity.refreshFrom).coerceIn(0, maxJitterMs)
+        if (window == 0L) {
+            return identity.refreshFrom
+        }
+
+        return identity.refreshFrom + random.nextLong(window + 1)
+    }
+
+    /**
+     * Gets the time to leave before the identity expires. This allows for several attempts at the slowest of the
+     * recently observed latencies, within some bounds.
+     */
+    internal fun getLeadTimeMs(latency: LatencyStats): Long {
+        if (latency.samples == 0L) {
+            return safetyMarginMs
+        }
+
+        return (latency.p95Ms * LATENCY_LEAD_MULTIPLIER).coerceIn(MIN_LEAD_TIME_MS, MAX_LEAD_TIME_MS)
+    }
+
+    private companion object {
+        const val DEFAULT_MAX_JITTER_MS = 10 * 60 * 1000L // 10 minutes
+        const val DEFAULT_SAFETY_MARGIN_MS = 5 * 60 * 1000L // 5 minutes
+
+        const val LATENCY_LEAD_MULTIPLIER = 20
+        const val MIN_LEAD_TIME_MS = 60 * 1000L // 1 minute
+        const val MAX_LEAD_TIME_MS = 30 * 60 * 1000L // 30 minutes
+    }
+}
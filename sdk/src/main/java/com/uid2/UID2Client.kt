@@ -1,38 +1,53 @@
 package com.uid2
 
+import com.uid2.UID2Metrics.PayloadFailure
+import com.uid2.UID2Metrics.Request
 import com.uid2.data.IdentityRequest
 import com.uid2.data.toPayload
+import com.uid2.extensions.decodeUtf8
 import com.uid2.extensions.encodeBase64
 import com.uid2.network.DataEnvelope
+import com.uid2.network.HEADER_DATE
 import com.uid2.network.NetworkRequest
 import com.uid2.network.NetworkRequestType
+import com.uid2.network.NetworkResponse
 import com.uid2.network.NetworkSession
 import com.uid2.network.RefreshResponse
 import com.uid2.network.ResponsePackage
+import com.uid2.network.SuspendingNetworkSession
+import com.uid2.network.getRetryAfterMs
+import com.uid2.network.header
+import com.uid2.network.parseHttpDate
 import com.uid2.utils.KeyUtils
+import com.uid2.utils.LatencyEstimator
 import com.uid2.utils.Logger
 import com.uid2.utils.TimeUtils
-import kotlinx.coroutines.CoroutineDispatcher
-import kotlinx.coroutines.Dispatchers
-import kotlinx.coroutines.withContext
+import kotlinx.coroutines.CancellationException
 import org.json.JSONObject
 import java.net.HttpURLConnection
 import java.net.URI
 import java.net.URL
+import java.nio.ByteBuffer
+import javax.crypto.SecretKey
 
 /**
  * This class is responsible for refreshing the identity, using a provided refresh token. The payload response will be
  * encrypted, so also is provided a key to allow decryption.
+ *
+ * Network requests are made via the given [SuspendingNetworkSession], while any remaining work (e.g. encryption and
+ * parsing) is performed on the caller's dispatcher. The latency of each request to the API is recorded in the given
+ * [LatencyEstimator], and the outcome of each request is reported to the given [UID2Metrics].
  */
 internal class UID2Client(
     private val apiUrl: String,
-    private val session: NetworkSession,
+    private val session: SuspendingNetworkSession,
     private val applicationId: String,
     private val dataEnvelope: DataEnvelope = DataEnvelope,
     private val timeUtils: TimeUtils = TimeUtils,
     private val keyUtils: KeyUtils = KeyUtils,
     private val logger: Logger = Logger(),
-    private val ioDispatcher: CoroutineDispatcher = Dispatchers.IO,
+    private val latencyEstimator: LatencyEstimator = LatencyEstimator(),
+    private val metrics: UID2Metrics = UID2Metrics.NONE,
     private val paramsFactory: (Map<String, String>) -> String = { params ->
         JSONObject(params).toString()
     },
@@ -41,6 +56,7 @@ internal class UID2Client(
     // incorrectly configured the SDK, it's possible this could be null.
     private val apiGenerateUrl: URL? by lazy { getApiUrl(API_GENERATE_PATH) }
     private val apiRefreshUrl: URL? by lazy { getApiUrl(API_REFRESH_PATH) }
+    private val apiHealthCheckUrl: URL? by lazy { getApiUrl(API_HEALTH_CHECK_PATH) }
 
     // We expect the Client to report a Version that is in the following format: Android-X.Y.Z
     private val clientVersion: String by lazy { "Android-${UID2.getVersion()}" }
@@ -56,7 +72,7 @@ internal class UID2Client(
         identityRequest: IdentityRequest,
         subscriptionId: String,
         publicKey: String,
-    ): ResponsePackage = withContext(ioDispatcher) {
+    ): ResponsePackage {
         logger.i(TAG) { "Generating Identity" }
 
         // Check to make sure we have a valid endpoint to hit.
@@ -109,22 +125,28 @@ internal class UID2Client(
         )
 
         // Attempt to make the request via the provided NetworkSession.
-        val response = session.loadData(url, request)
+        val response = loadData(url, request, Request.GENERATE)
         if (response.code != HttpURLConnection.HTTP_OK) {
             logger.e(TAG) { "Client details failure: ${response.code} ${response.data}" }
             throw RequestFailureException(response.code, response.data)
         }
 
         // The response should be an encrypted payload. Let's attempt to decrypt it using the key we were provided.
-        val envelope = dataEnvelope.decrypt(sharedSecret.encoded, response.data, false) ?: run {
+        val envelope = dataEnvelope.decryptToBuffer(sharedSecret, response.data, false) ?: run {
             logger.e(TAG) { "Error decrypting response from client details" }
+            metrics.onPayloadFailure(Request.GENERATE, PayloadFailure.DECRYPT)
             throw PayloadDecryptException()
         }
 
-        // The decrypted payload should be JSON which we can parse.
-        val generateResponse = RefreshResponse.fromJson(JSONObject(String(envelope, Charsets.UTF_8)))
-        return@withContext generateResponse?.toResponsePackage(false) ?: run {
+        // The decrypted payload should be JSON which we can parse. Once it's decoded, the buffer is no longer required.
+        val generateResponse = try {
+            RefreshResponse.fromJson(JSONObject(envelope.decodeUtf8()))
+        } finally {
+            dataEnvelope.releaseBuffer(envelope)
+        }
+        return generateResponse?.toResponsePackage(false) ?: run {
             logger.e(TAG) { "Error parsing response from client details" }
+            metrics.onPayloadFailure(Request.GENERATE, PayloadFailure.PARSE)
             throw InvalidPayloadException()
         }
     }
@@ -136,45 +158,115 @@ internal class UID2Client(
         InvalidPayloadException::class,
     )
     suspend fun refreshIdentity(refreshToken: String, refreshResponseKey: String): ResponsePackage =
-        withContext(ioDispatcher) {
-            logger.i(TAG) { "Refreshing identity" }
+        refreshIdentity(refreshToken) { data -> dataEnvelope.decryptToBuffer(refreshResponseKey, data, false) }
 
-            // Check to make sure we have a valid endpoint to hit.
-            val url = apiRefreshUrl ?: run {
-                logger.e(TAG) { "Error determining identity refresh API" }
-                throw InvalidApiUrlException()
-            }
+    /**
+     * Refreshes the identity, decrypting the response with the given key. This allows the caller to decode the
+     * identity's refresh response key once, rather than for each refresh.
+     */
+    @Throws(
+        InvalidApiUrlException::class,
+        RequestFailureException::class,
+        PayloadDecryptException::class,
+        InvalidPayloadException::class,
+    )
+    suspend fun refreshIdentity(refreshToken: String, refreshResponseKey: SecretKey): ResponsePackage =
+        refreshIdentity(refreshToken) { data -> dataEnvelope.decryptToBuffer(refreshResponseKey, data, false) }
 
-            // Build the request to refresh the token.
-            val request = NetworkRequest(
-                NetworkRequestType.POST,
-                mapOf(
-                    HEADER_CLIENT_VERSION to clientVersion,
-                    "Content-Type" to "application/x-www-form-urlencoded",
-                ),
-                refreshToken,
+    private suspend fun refreshIdentity(refreshToken: String, decrypt: (String) -> ByteBuffer?): ResponsePackage {
+        logger.i(TAG) { "Refreshing identity" }
+
+        // Check to make sure we have a valid endpoint to hit.
+        val url = apiRefreshUrl ?: run {
+            logger.e(TAG) { "Error determining identity refresh API" }
+            throw InvalidApiUrlException()
+        }
+
+        // Build the request to refresh the token.
+        val request = NetworkRequest(
+            NetworkRequestType.POST,
+            mapOf(
+                HEADER_CLIENT_VERSION to clientVersion,
+                "Content-Type" to "application/x-www-form-urlencoded",
+            ),
+            refreshToken,
+        )
+
+        // Attempt to make the request via the provided NetworkSession.
+        val response = loadData(url, request, Request.REFRESH)
+        if (response.code != HttpURLConnection.HTTP_OK) {
+            logger.e(TAG) { "Client details failure: ${response.code}" }
+            throw RequestFailureException(response.code, retryAfterMs = response.getRetryAfterMs(timeUtils.now()))
+        }
+
+        // The response should be an encrypted payload. Let's attempt to decrypt it using the key we were provided.
+        val payload = decrypt(response.data) ?: run {
+            logger.e(TAG) { "Error decrypting response from client details" }
+            metrics.onPayloadFailure(Request.REFRESH, PayloadFailure.DECRYPT)
+            throw PayloadDecryptException()
+        }
+
+        // The decrypted payload should be JSON which we can parse. Once it's decoded, the buffer is no longer required.
+        val refreshResponse = try {
+            RefreshResponse.fromJson(JSONObject(payload.decodeUtf8()))
+        } finally {
+            dataEnvelope.releaseBuffer(payload)
+        }
+        return refreshResponse?.toResponsePackage(true) ?: run {
+            logger.e(TAG) { "Error parsing response from client details" }
+            metrics.onPayloadFailure(Request.REFRESH, PayloadFailure.PARSE)
+            throw InvalidPayloadException()
+        }
+    }
+
+    /**
+     * Makes a lightweight request to the configured API server, so that a connection (including DNS resolution and the
+     * TLS handshake) is established ahead of time and can be reused by a subsequent request. Any failure is ignored, as
+     * the subsequent request will simply establish its own connection.
+     */
+    suspend fun warmUp() {
+        val url = apiHealthCheckUrl ?: return
+
+        logger.i(TAG) { "Warming up connection" }
+        try {
+            val response = session.loadData(
+                url,
+                NetworkRequest(NetworkRequestType.GET, mapOf(HEADER_CLIENT_VERSION to clientVersion)),
             )
+            logger.i(TAG) { "Connection warmed up: ${response.code}" }
+        } catch (ex: CancellationException) {
+            throw ex
+        } catch (ex: Exception) {
+            // This is launched without a handler, so nothing should escape it.
+            logger.e(TAG, ex) { "Error warming up connection" }
+        }
+    }
 
-            // Attempt to make the request via the provided NetworkSession.
-            val response = session.loadData(url, request)
-            if (response.code != HttpURLConnection.HTTP_OK) {
-                logger.e(TAG) { "Client details failure: ${response.code}" }
-                throw RequestFailureException(response.code)
-            }
+    /**
+     * Makes the given request via the provided [SuspendingNetworkSession], recording how long it took to receive the
+     * response. If a successful response includes the server's current time, it's reported to our [TimeUtils].
+     */
+    private suspend fun loadData(url: URL, request: NetworkRequest, type: Request): NetworkResponse {
+        val start = timeUtils.now()
+        return session.loadData(url, request).also { response ->
+            val roundTripMs = timeUtils.now() - start
 
-            // The response should be an encrypted payload. Let's attempt to decrypt it using the key we were provided.
-            val payload = dataEnvelope.decrypt(refreshResponseKey, response.data, false) ?: run {
-                logger.e(TAG) { "Error decrypting response from client details" }
-                throw PayloadDecryptException()
+            // A request which never reached the server fails quickly, and would suggest the network is much faster
+            // than it is.
+            if (response.reachedServer) {
+                latencyEstimator.record(roundTripMs)
             }
+            metrics.onRequest(type, response.code, roundTripMs)
 
-            // The decrypted payload should be JSON which we can parse.
-            val refreshResponse = RefreshResponse.fromJson(JSONObject(String(payload, Charsets.UTF_8)))
-            return@withContext refreshResponse?.toResponsePackage(true) ?: run {
-                logger.e(TAG) { "Error parsing response from client details" }
-                throw InvalidPayloadException()
+            // Only a successful response is known to have come from the API server itself. Anything else may have been
+            // produced by a proxy, or served from a cache, with its own idea of the current time.
+            if (NetworkSession.isSuccess(response.code)) {
+                response.header(HEADER_DATE)?.let { parseHttpDate(it) }?.let { serverTimeMs ->
+                    timeUtils.onServerTime(serverTimeMs, roundTripMs)
+                }
             }
         }
+    }
 
     /**
      * Builds a [URL] for the configured API server with the given (relative) path.
@@ -198,6 +290,9 @@ internal class UID2Client(
         // The relative path of the API's refresh endpoint
         const val API_REFRESH_PATH = "/v2/token/refresh"
 
+        // The relative path of the API's health check endpoint, used when warming up a connection.
+        const val API_HEALTH_CHECK_PATH = "/ops/healthcheck"
+
         // The header used to provide the client version.
         const val HEADER_CLIENT_VERSION = "X-UID2-Client-Version"
 
@@ -26,9 +26,14 @@ internal class CryptoException : UID2Exception()
 public class InputValidationException(description: String?) : UID2Exception(description)
 
 /**
- * An attempt was made to the API that resulted in a failure.
- */
-internal class RequestFailureException(val statusCode: Int, message: String? = null) : UID2Exception(message)
+ * An attempt was made to the API that resulted in a failure. If the server asked for any retry to be delayed, this will
+ * be reported via [retryAfterMs].
+ */
+internal class RequestFailureException(
+    val statusCode: Int,
+    message: String? = null,
+    val retryAfterMs: Long? = null,
+) : UID2Exception(message)
 
 /**
  * The encrypted payload could not be decrypted successfully.
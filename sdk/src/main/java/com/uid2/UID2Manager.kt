@@ -13,6 +13,7 @@ import com.uid2.data.IdentityPackage
 import com.uid2.data.IdentityRequest
 import com.uid2.data.IdentityRequest.Email
 import com.uid2.data.IdentityRequest.Phone
+import com.uid2.data.IdentitySnapshot
 import com.uid2.data.IdentityStatus
 import com.uid2.data.IdentityStatus.ESTABLISHED
 import com.uid2.data.IdentityStatus.EXPIRED
@@ -21,31 +22,61 @@ import com.uid2.data.IdentityStatus.NO_IDENTITY
 import com.uid2.data.IdentityStatus.OPT_OUT
 import com.uid2.data.IdentityStatus.REFRESHED
 import com.uid2.data.IdentityStatus.REFRESH_EXPIRED
+import com.uid2.data.LatencyStats
+import com.uid2.data.RefreshStats
+import com.uid2.data.TokenAvailability
 import com.uid2.data.UID2Identity
+import com.uid2.network.AlwaysConnectedMonitor
+import com.uid2.network.AndroidConnectivityMonitor
+import com.uid2.network.ConnectivityMonitor
 import com.uid2.network.DefaultNetworkSession
 import com.uid2.network.NetworkSession
+import com.uid2.network.RefreshResponseKey
+import com.uid2.network.ResponsePackage
+import com.uid2.network.SuspendingNetworkSession
+import com.uid2.network.asSuspending
+import com.uid2.network.awaitConnected
 import com.uid2.storage.FileStorageManager
 import com.uid2.storage.FileStorageManager.Store.UID2
 import com.uid2.storage.StorageManager
+import com.uid2.utils.ActivityLifecycleVisibility
+import com.uid2.utils.AlwaysForeground
+import com.uid2.utils.AppVisibility
+import com.uid2.utils.DiagnosticLog
 import com.uid2.utils.InputUtils
+import com.uid2.utils.InstanceHolder
+import com.uid2.utils.KeyPairPool
+import com.uid2.utils.KeyUtils
+import com.uid2.utils.LatencyEstimator
 import com.uid2.utils.Logger
+import com.uid2.utils.MonotonicTimeUtils
+import com.uid2.utils.PooledKeyUtils
+import com.uid2.utils.SerialExecutor
+import com.uid2.utils.SingleFlight
 import com.uid2.utils.TimeUtils
+import com.uid2.utils.TokenAvailabilityTracker
+import com.uid2.utils.TokenAvailabilityTracker.Source
+import com.uid2.utils.awaitForeground
+import kotlinx.coroutines.CompletableDeferred
 import kotlinx.coroutines.CoroutineDispatcher
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.Job
 import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.channels.Channel
 import kotlinx.coroutines.delay
 import kotlinx.coroutines.flow.Flow
 import kotlinx.coroutines.flow.MutableStateFlow
 import kotlinx.coroutines.flow.asStateFlow
+import kotlinx.coroutines.flow.first
 import kotlinx.coroutines.flow.flow
 import kotlinx.coroutines.flow.retryWhen
 import kotlinx.coroutines.flow.single
 import kotlinx.coroutines.launch
-import kotlinx.coroutines.runBlocking
-import kotlinx.coroutines.sync.Mutex
-import kotlinx.coroutines.sync.withLock
+import kotlinx.coroutines.withTimeoutOrNull
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicLong
 
 /**
  * A listener interface allowing the consumer to be notified when either the identity or status of the identity changes
@@ -97,6 +128,13 @@ public class UID2Manager internal constructor(
     initialAutomaticRefreshEnabled: Boolean,
     @property:InternalUID2Api public val isEuid: Boolean,
     @property:InternalUID2Api public val logger: Logger,
+    private val prewarmConnection: Boolean = false,
+    private val connectivityMonitor: ConnectivityMonitor = AlwaysConnectedMonitor,
+    warmStartSnapshot: IdentitySnapshot? = null,
+    private val latencyEstimator: LatencyEstimator = LatencyEstimator(),
+    private val appVisibility: AppVisibility = AlwaysForeground,
+    private val metrics: UID2Metrics = UID2Metrics.NONE,
+    private val diagnostics: DiagnosticLog = DiagnosticLog(),
 ) {
     private val scope = CoroutineScope(defaultDispatcher + SupervisorJob())
 
@@ -115,17 +153,52 @@ public class UID2Manager internal constructor(
     // The Job responsible for initialising the manager. This will include de-serialising our initial state from
     // storage. We allow consumers to attach a listener to detect when this Job is complete.
     private var initialized: Job
-    private val onInitializedListeners = mutableListOf<() -> Unit>()
-    private val initializedLock = Mutex()
+    private val onInitializedListeners = ConcurrentLinkedQueue<() -> Unit>()
+    private val isInitialized = AtomicBoolean(false)
 
-    // An active Job that is scheduled to refresh the current identity
+    // All changes to the identity, and the work scheduled around it, are serialized via this executor. This means they
+    // are processed one at a time, in order, regardless of which thread requested them. Readers of the current state
+    // are not affected, as that's always published via our StateFlow.
+    private val mutations = SerialExecutor()
+
+    // Changes to the identity that need persisting. Only the most recent change is important, so if storage falls
+    // behind, any intermediate changes are skipped.
+    private val storageWrites = Channel<Pair<UID2Identity?, IdentityStatus>>(Channel.CONFLATED)
+
+    // If warm start is enabled, the snapshot of the last known advertising token, which is available while the full
+    // identity is still being loaded from storage.
+    @Volatile
+    private var snapshot: IdentitySnapshot? = warmStartSnapshot
+
+    // The most recently reported status, and when it was reported, so that the time spent in each status can be
+    // measured. We start out without a status while the identity is loaded.
+    private var lastStatus: IdentityStatus? = null
+    private var lastStatusTime = timeUtils.now()
+
+    // The time since which no valid advertising token has been available, or null while one is.
+    @Volatile
+    private var tokenUnavailableSince: Long? = if (snapshot != null) null else lastStatusTime
+
+    // Counts how often a valid advertising token was available when asked for.
+    private val tokenAvailabilityTracker = TokenAvailabilityTracker()
+
+    // An active Job that is refreshing the current identity.
     private var refreshJob: Job? = null
 
+    // Refreshes for the same refresh token are coalesced, so that concurrent requests share a single network call.
+    private val refreshes = SingleFlight<String, ResponsePackage>(scope)
+
     internal var checkExpiration: Boolean = true
 
-    // The scheduled jobs to check identity expiration.
-    private var checkRefreshExpiresJob: Job? = null
-    private var checkIdentityExpiresJob: Job? = null
+    // Whether an update of our state has been requested, after reading an identity that has already expired.
+    private val reconcilingExpiry = AtomicBoolean(false)
+
+    // The single scheduled Job waiting for the next deadline of the current identity, i.e. when it should be refreshed
+    // or when it expires.
+    private var deadlineJob: Job? = null
+
+    // The number of refreshes that were deferred, rather than made, while the app was in the background.
+    private val deferredRefreshes = AtomicLong()
 
     /**
      * Gets the current Identity, if available.
@@ -159,36 +232,115 @@ public class UID2Manager internal constructor(
             is OptOut -> OPT_OUT
         }
 
+    /**
+     * Gets the statistics of the identity refreshes requested so far, including how many of them were coalesced into
+     * a refresh that was already in-flight, and how many were deferred while the app was in the background.
+     */
+    public val refreshStats: RefreshStats
+        get() = RefreshStats(refreshes.requests, refreshes.coalesced, deferredRefreshes.get())
+
+    /**
+     * Gets the latency observed so far for requests made to the API. This is used to decide how far ahead of the
+     * Identity expiring that it should be refreshed.
+     */
+    public val networkLatency: LatencyStats
+        get() = latencyEstimator.stats
+
+    /**
+     * Gets a snapshot of how often a valid Advertising Token was available when it was asked for, either via
+     * [getAdvertisingToken] or by an ad request via one of the SDK's ad network integrations. Requests without a token
+     * are broken down by the Identity Status at the time.
+     */
+    public val tokenAvailability: TokenAvailability
+        get() = tokenAvailabilityTracker.snapshot(tokenUnavailableSince?.let { timeUtils.now() - it } ?: 0)
+
+    /**
+     * Returns a description of the most recent events within the SDK, such as changes in the Identity Status, requests
+     * made to the API and the outcome of storage operations, one per line and oldest first. These are recorded even
+     * when logging is disabled, so that they can be attached to a bug report when something has gone wrong. How often
+     * the server's public key was reused, rather than parsed, when generating an identity is also included.
+     */
+    public fun dumpDiagnostics(): String = diagnostics.dump()
+
+    /**
+     * Gets or sets the policy which decides whether, and after how long, a failed refresh of the Identity is retried.
+     * By default, an [ExponentialBackoffRetryPolicy] is used.
+     */
+    public var refreshRetryPolicy: RefreshRetryPolicy = ExponentialBackoffRetryPolicy()
+
+    /**
+     * Gets or sets the policy which decides when the Identity will be automatically refreshed. By default, a
+     * [JitteredRefreshWindowPolicy] is used.
+     */
+    public var refreshWindowPolicy: RefreshWindowPolicy = JitteredRefreshWindowPolicy()
+
+    // The time chosen by the RefreshWindowPolicy to refresh the current identity. This is kept so that the identity's
+    // deadlines can be rescheduled without choosing a different time.
+    private var refreshTime: Pair<UID2Identity, Long>? = null
+
+    // The refresh token that was last rejected by the API as not retryable. We will not automatically attempt to
+    // refresh it again, since it would only be rejected again. Failures that can be retried, e.g. server errors or
+    // timeouts, are instead spread out by the RefreshRetryPolicy.
+    @Volatile
+    private var rejectedRefreshToken: String? = null
+
+    // The decoded key used to decrypt the response when refreshing the current identity, along with the (Base64) key it
+    // was decoded from. This is built once per identity, rather than for each refresh, and destroyed once replaced.
+    @Volatile
+    private var refreshResponseKey: Pair<String, RefreshResponseKey>? = null
+
     /**
      * Gets or sets whether tha Manager will automatically refresh the Identity. Setting this to False will cancel any
      * pending refresh.
      */
+    @Volatile
     public var automaticRefreshEnabled: Boolean = initialAutomaticRefreshEnabled
         set(value) {
             field = value
-            checkIdentityRefresh()
+            mutations.execute { scheduleDeadlines() }
         }
 
     /**
      * Adds a listener which can be used to determine if the [UID2Manager] instance has finished initializing.
      * Initializing includes any time required to restore a previously persisted [UID2Identity] from storage.
      *
-     * If a listener is added *after* initialization is complete, the callback will be invoked immediately.
+     * If a listener is added *after* initialization is complete, the callback will be invoked immediately. This never
+     * blocks the calling thread while waiting for initialization.
      */
     public fun addOnInitializedListener(listener: () -> Unit): UID2Manager = apply {
-        runBlocking {
-            initializedLock.withLock {
-                // If we've already finished initializing, we should immediately invoke the callback.
-                if (initialized.isCompleted) {
-                    listener()
+        // If we've already finished initializing, we should immediately invoke the callback.
+        if (isInitialized.get()) {
+            listener()
+            return@apply
+        }
+
+        // Initialization may complete after we checked, but before the listener was queued. In that case, nobody else
+        // will invoke it, so we'll do so ourselves.
+        onInitializedListeners.offer(listener)
+        if (isInitialized.get()) {
+            invokeInitializedListeners()
+        }
+    }
+
+    init {
+        scope.launch {
+            for ((identity, status) in storageWrites) {
+                if (identity == null) {
+                    storageManager.clear()
                 } else {
-                    onInitializedListeners += listener
+                    storageManager.saveIdentity(identity, status)
                 }
             }
         }
-    }
 
-    init {
+        // The deadlines of the current identity were scheduled relative to our current time. If that's corrected, they
+        // need to be scheduled again.
+        scope.launch {
+            timeUtils.corrections.collect {
+                mutations.execute { scheduleDeadlines(keepActiveRefresh = true) }
+            }
+        }
+
         initialized = scope.launch {
             // Attempt to load the Identity from storage. If successful, we can notify any observers.
             storageManager.loadIdentity().let {
@@ -196,7 +348,17 @@ public class UID2Manager internal constructor(
                     logger.i(TAG) { "Restoring previously persisted identity" }
                 }
 
-                validateAndSetIdentity(it.first, it.second, false)
+                mutations.execute {
+                    validateAndSetIdentity(it.first, it.second, false)
+
+                    // If the restored identity is going to be refreshed soon, we can establish the connection to the
+                    // API server ahead of time.
+                    if (prewarmConnection) {
+                        currentIdentity?.takeIf { identity -> isRefreshImminent(identity) }?.let {
+                            scope.launch { client.warmUp() }
+                        }
+                    }
+                }
             }
 
             onInitialized()
@@ -254,20 +416,25 @@ public class UID2Manager internal constructor(
                 // Attempt to generate the new identity.
                 val identity = client.generateIdentity(request, subscriptionId, publicKey)
 
-                // Cancel any in-flight refresh job that could be processing a previously set identity.
-                refreshJob?.cancel()
-                refreshJob = null
-
-                // Update our identity.
-                validateAndSetIdentity(identity.identity, identity.status)
+                awaitMutation {
+                    // Cancel any in-flight refresh job that could be processing a previously set identity.
+                    refreshJob?.cancel()
+                    refreshJob = null
 
-                // Report our result.
-                onResult(GenerateIdentityResult.Success)
+                    // Update our identity.
+                    validateAndSetIdentity(identity.identity, identity.status)
+                }
             } catch (ex: UID2Exception) {
                 // The identity generation failed, so we will not modify our current state and report this to the
                 // caller.
                 onResult(GenerateIdentityResult.Error(ex))
+                return@launch
             }
+
+            // Report our result, once our identity has been updated. This is outside of the mutation, so that a slow
+            // callback doesn't hold up any other changes, and any change made by the callback itself is applied
+            // immediately.
+            onResult(GenerateIdentityResult.Success)
         }
     }
 
@@ -278,31 +445,53 @@ public class UID2Manager internal constructor(
      * This will also be persisted locally, so that when the application re-launches, we reload this Identity.
      */
     public fun setIdentity(identity: UID2Identity): Unit = afterInitialized {
-        logger.i(TAG) { "Setting external identity" }
-        validateAndSetIdentity(identity, null)
+        mutations.execute {
+            logger.i(TAG) { "Setting external identity" }
+            validateAndSetIdentity(identity, null)
+        }
     }
 
     /**
      * If a valid Identity has been set, this will reset our state along with clearing any persisted data.
      */
     public fun resetIdentity(): Unit = afterInitialized {
-        currentIdentity ?: return@afterInitialized
+        mutations.execute {
+            currentIdentity ?: return@execute
 
-        logger.i(TAG) { "Resetting identity" }
-        setIdentityInternal(null, NO_IDENTITY, true)
+            logger.i(TAG) { "Resetting identity" }
+            setIdentityInternal(null, NO_IDENTITY, true)
+        }
     }
 
     /**
      * Forces a refresh of the current Identity, if set.
      */
     public fun refreshIdentity(): Unit = afterInitialized {
-        // If we have a valid Identity, let's refresh it.
-        currentIdentity?.let {
-            logger.i(TAG) { "Refreshing identity" }
-            refreshIdentityInternal(it)
+        mutations.execute {
+            // If we have a valid Identity, let's refresh it.
+            currentIdentity?.let {
+                logger.i(TAG) { "Refreshing identity" }
+                refreshIdentityInternal(it)
+            }
         }
     }
 
+    /**
+     * Runs the given command via our [SerialExecutor], suspending until it has been run. If other mutations are being
+     * run by another thread, the command will be run by that thread after them.
+     */
+    private suspend fun awaitMutation(command: () -> Unit) {
+        val completed = CompletableDeferred<Unit>()
+        mutations.execute {
+            try {
+                command()
+            } finally {
+                completed.complete(Unit)
+            }
+        }
+        completed.await()
+    }
+
     /**
      * Helper function to ensure a task is run **after** the manager has been fully initialised. This is to ensure that
      * our public interface is not exposed to any race conditions with us initialising/loading our state from disk.
@@ -322,35 +511,94 @@ public class UID2Manager internal constructor(
     /**
      * After initialization is complete, all the attached listeners will be invoked.
      */
-    private suspend fun onInitialized() {
-        initializedLock.withLock {
-            while (onInitializedListeners.isNotEmpty()) {
-                onInitializedListeners.removeAt(0).invoke()
+    private fun onInitialized() {
+        // Now that the full identity has been loaded, the snapshot is no longer required.
+        snapshot = null
+
+        isInitialized.set(true)
+        invokeInitializedListeners()
+    }
+
+    /**
+     * Invokes, and removes, any queued listeners. Since each listener can only be removed from the queue once, it will
+     * only be invoked once, even if multiple threads are doing this at the same time.
+     */
+    private fun invokeInitializedListeners() {
+        while (true) {
+            onInitializedListeners.poll()?.invoke() ?: return
+        }
+    }
+
+    /**
+     * Starts a refresh of the given identity, retrying until it succeeds or is no longer worth retrying.
+     *
+     * This must be called via [mutations], so that the identity's decoded refresh response key is captured along with
+     * it, before any later identity change can replace it.
+     *
+     * @param deferInBackground Whether an automatic refresh should wait while the app is in the background, since the
+     * refreshed token would not be used. We'll refresh once the app returns to the foreground, unless the identity
+     * can't wait that long. Deferring within this Job, rather than before starting it, leaves any later deadlines of
+     * the identity unaffected.
+     */
+    private fun refreshIdentityInternal(identity: UID2Identity, deferInBackground: Boolean = false): Job {
+        val key = refreshResponseKey?.takeIf { it.first == identity.refreshResponseKey }?.second
+
+        return scope.launch {
+            if (deferInBackground) {
+                awaitForegroundUnlessUrgent(identity)
             }
+
+            refreshIdentityWithRetries(identity, key)
         }
     }
 
-    private fun refreshIdentityInternal(identity: UID2Identity) = scope.launch {
+    /**
+     * Refreshes the given identity with the given (decoded) key, retrying until it succeeds or is no longer worth
+     * retrying, and then sets the result if the identity is still current.
+     */
+    private suspend fun refreshIdentityWithRetries(identity: UID2Identity, key: RefreshResponseKey?) {
         try {
-            refreshToken(identity).retryWhen { _, attempt ->
-                logger.i(TAG) { "Refreshing (Attempt: $attempt)" }
+            refreshToken(identity, key).retryWhen { cause, attempt ->
+                // The delay between retry attempts is decided by the policy, based upon the failure and how many
+                // attempts we have previously had. It may also decide that the failure is not worth retrying.
+                val failure = RefreshFailure.fromException(cause)
+                val delayMs = refreshRetryPolicy.getRetryDelayMs(attempt, failure) ?: run {
+                    logger.i(TAG) { "Not retrying refresh (Status: ${failure.statusCode})" }
+                    if (!failure.isRetryable) {
+                        mutations.execute { rejectedRefreshToken = identity.refreshToken }
+                    }
+                    return@retryWhen false
+                }
+                metrics.onRefreshRetry(attempt, delayMs)
 
-                // The delay between retry attempts is based upon how many attempts we have previously had. After a
-                // number of sequential failures, we will increase the delay.
-                val delayMs = if (attempt < REFRESH_TOKEN_FAILURE_RETRY_THRESHOLD) {
-                    REFRESH_TOKEN_FAILURE_RETRY_SHORT_MS
-                } else {
-                    REFRESH_TOKEN_FAILURE_RETRY_LONG_MS
+                // While the device is offline, there's no point in retrying. Instead, we will wait for connectivity to
+                // return and then retry immediately.
+                if (connectivityMonitor.isConnected.value) {
+                    logger.i(TAG) { "Refreshing (Attempt: $attempt, Delay: $delayMs)" }
+                    delay(delayMs)
+                }
+                if (!connectivityMonitor.isConnected.value) {
+                    logger.i(TAG) { "Waiting for connectivity before refreshing (Attempt: $attempt)" }
+                    connectivityMonitor.awaitConnected()
                 }
 
-                delay(delayMs)
+                // Similarly, there's no point in retrying while nobody is using the app, unless we have to.
+                awaitForegroundUnlessUrgent(identity)
 
                 // Keep trying to automatically refresh the identity, while it's considered valid.
                 getIdentityPackage(identity, false).valid
             }.single().let {
                     result ->
-                logger.i(TAG) { "Successfully refreshed identity" }
-                validateAndSetIdentity(result.identity, result.status)
+                mutations.execute {
+                    // If the identity has since been replaced, or reset, this result is stale and should be ignored.
+                    if (currentIdentity?.refreshToken != identity.refreshToken) {
+                        logger.i(TAG) { "Ignoring refresh of replaced identity" }
+                        return@execute
+                    }
+
+                    logger.i(TAG) { "Successfully refreshed identity" }
+                    validateAndSetIdentity(result.identity, result.status)
+                }
             }
         } catch (ex: UID2Exception) {
             // This will happen after we decide to no longer try to update the identity, e.g. it's no longer valid.
@@ -361,106 +609,342 @@ public class UID2Manager internal constructor(
     /**
      * Gets the current Advertising Token, if available.
      */
-    public fun getAdvertisingToken(): String? = currentIdentity?.let {
+    public fun getAdvertisingToken(): String? = readAdvertisingToken().also { recordTokenRequest(Source.READ, it) }
+
+    /**
+     * Gets the current Advertising Token, if available, for an ad request made via one of the SDK's ad network
+     * integrations. This contributes to [tokenAvailability] as a signal collection, rather than as a read via
+     * [getAdvertisingToken].
+     *
+     * @suppress
+     */
+    @InternalUID2Api
+    public fun getAdvertisingTokenForSignals(): String? =
+        readAdvertisingToken().also { recordTokenRequest(Source.SIGNALS, it) }
+
+    private fun recordTokenRequest(source: Source, token: String?) {
+        // A token that wasn't provided while the identity is established must have expired, before we noticed.
+        val status = when (val status = currentIdentityStatus) {
+            ESTABLISHED, REFRESHED -> if (token == null) EXPIRED else status
+            else -> status
+        }
+        tokenAvailabilityTracker.record(source, token != null, status)
+    }
+
+    private fun readAdvertisingToken(): String? {
+        // While we're still loading, we may be able to provide the last known token from the warm start snapshot.
+        if (_state.value == Loading) {
+            return snapshot?.takeUnless { timeUtils.hasExpired(it.identityExpires) }?.advertisingToken
+        }
+
+        return getCurrentAdvertisingToken()
+    }
+
+    /**
+     * Gets the current Advertising Token, waiting for up to the given timeout if it's not yet available. This allows a
+     * caller to wait for an in-progress refresh, rather than proceed without a token.
+     *
+     * This returns as soon as a valid token is available. If the current identity has expired, and automatic refresh
+     * is enabled, a refresh will be started if one isn't already in-progress. If there is no identity, or it won't be
+     * refreshed automatically, this returns null without waiting.
+     *
+     * @param timeoutMs The maximum time to wait, in milliseconds.
+     */
+    public suspend fun awaitAdvertisingToken(timeoutMs: Long): String? =
+        awaitAdvertisingTokenInternal(timeoutMs).also { recordTokenRequest(Source.READ, it) }
+
+    private suspend fun awaitAdvertisingTokenInternal(timeoutMs: Long): String? {
+        readAdvertisingToken()?.let { return it }
+
+        return withTimeoutOrNull(timeoutMs) {
+            _state.first { state ->
+                when (state) {
+                    is Loading -> false
+                    is Established, is Refreshed -> getCurrentAdvertisingToken() != null
+                    is Expired -> {
+                        // If the identity won't be refreshed automatically, there's no point waiting for it.
+                        if (!canRefreshAutomatically(state.identity)) {
+                            return@first true
+                        }
+                        refreshExpiredIdentity(state.identity)
+                        false
+                    }
+                    else -> true
+                }
+            }
+
+            readAdvertisingToken()
+        }
+    }
+
+    /**
+     * Gets the current Advertising Token, waiting for up to the given timeout if it's not yet available. The result is
+     * reported via the given callback, which is invoked on a background thread.
+     *
+     * @param timeoutMs The maximum time to wait, in milliseconds.
+     * @param onResult The callback invoked with the Advertising Token, or null if it was not available in time.
+     *
+     * @see awaitAdvertisingToken
+     */
+    public fun awaitAdvertisingToken(timeoutMs: Long, onResult: (String?) -> Unit) {
+        scope.launch { onResult(awaitAdvertisingToken(timeoutMs)) }
+    }
+
+    /**
+     * Starts a refresh of the given expired identity, if automatic refresh is enabled and one isn't already
+     * in-progress.
+     */
+    private fun refreshExpiredIdentity(identity: UID2Identity) = mutations.execute {
+        if (currentIdentity !== identity || !canRefreshAutomatically(identity) || refreshJob?.isActive == true) {
+            return@execute
+        }
+
+        logger.i(TAG) { "Refreshing expired identity" }
+        refreshJob = refreshIdentityInternal(identity)
+    }
+
+    /**
+     * Whether the given identity may be refreshed automatically, i.e. automatic refresh is enabled and the API hasn't
+     * already rejected its refresh token.
+     */
+    private fun canRefreshAutomatically(identity: UID2Identity) =
+        automaticRefreshEnabled && identity.refreshToken != rejectedRefreshToken
+
+    private fun getCurrentAdvertisingToken(): String? {
         // For a known identity, we should only provide the advertising token if their status is established or
         // refreshed. It's possible they could have expired and be pending a refresh. In this case, the token is not
         // useful.
-        return@let if (currentIdentityStatus == ESTABLISHED || currentIdentityStatus == REFRESHED) {
-            it.advertisingToken
-        } else {
-            null
+        val identity = when (val state = _state.value) {
+            is Established -> state.identity
+            is Refreshed -> state.identity
+            else -> return null
         }
+
+        // Our state is only updated once we detect the identity has expired, which could be delayed, e.g. if the device
+        // has been asleep. We don't want to provide a token that we already know has expired.
+        if (timeUtils.hasExpired(identity.identityExpires)) {
+            reconcileExpiredIdentity(identity)
+            return null
+        }
+
+        return identity.advertisingToken
     }
 
-    private fun setIdentityInternal(identity: UID2Identity?, status: IdentityStatus, updateStorage: Boolean = true) {
-        if (updateStorage) {
-            scope.launch {
-                if (identity == null) {
-                    storageManager.clear()
-                } else {
-                    storageManager.saveIdentity(identity, status)
+    /**
+     * Asynchronously updates our state, after an identity has been found to have expired before we detected it. Only a
+     * single update is requested, regardless of how many times the expired identity is read.
+     */
+    private fun reconcileExpiredIdentity(identity: UID2Identity) {
+        if (!reconcilingExpiry.compareAndSet(false, true)) {
+            return
+        }
+
+        scope.launch {
+            mutations.execute {
+                reconcilingExpiry.set(false)
+                if (currentIdentity === identity) {
+                    logger.i(TAG) { "Detected identity has expired when read" }
+                    validateAndSetIdentity(identity, null, true)
                 }
             }
         }
+    }
+
+    private fun setIdentityInternal(identity: UID2Identity?, status: IdentityStatus, updateStorage: Boolean = true) {
+        if (updateStorage) {
+            storageWrites.trySend(identity to status)
+        }
+
+        updateRefreshResponseKey(identity)
 
         // Update the current identity.
         _state.tryEmit(getManagerState(identity, status))
+        reportStatus(identity, status)
 
         // If we have an attached listener, report.
         onIdentityChangedListener?.onIdentityStatusChanged(identity, status)
 
-        // An identity's status can change based upon the current time and it's expiration. We will schedule some work
-        // to detect when it changes so that we can report it accordingly.
-        checkIdentityExpiration()
+        // After a new identity has been set, we have to work out when we're going to potentially refresh it, and when
+        // its status will change based upon its expiration. If the identity is null, because it's been reset of the
+        // identity has opted out, we don't need to do anything.
+        scheduleDeadlines()
+    }
+
+    /**
+     * Decodes the refresh response key of the given identity, unless it's the same key we already hold. If the identity
+     * has been replaced (with one using a different key) or reset, the key material of the previous key is zeroed, once
+     * any refresh still using it has completed.
+     */
+    private fun updateRefreshResponseKey(identity: UID2Identity?) {
+        val previous = refreshResponseKey
+        if (previous != null && previous.first == identity?.refreshResponseKey) {
+            return
+        }
 
-        // After a new identity has been set, we have to work out how we're going to potentially refresh it. If the
-        // identity is null, because it's been reset of the identity has opted out, we don't need to do anything.
-        checkIdentityRefresh()
+        refreshResponseKey = identity?.refreshResponseKey?.let { key ->
+            RefreshResponseKey.decode(key)?.let { key to it }
+        }
+        previous?.second?.destroy()
     }
 
-    private fun checkIdentityRefresh() {
-        refreshJob?.cancel()
-        refreshJob = null
+    /**
+     * Reports the given status to our [UID2Metrics], along with how long the previous status was held. If a valid
+     * advertising token has become available, we also report how long we were without one.
+     */
+    private fun reportStatus(identity: UID2Identity?, status: IdentityStatus) {
+        val now = timeUtils.now()
+        metrics.onStatusChanged(lastStatus, status, now - lastStatusTime)
+        lastStatus = status
+        lastStatusTime = now
+
+        val hasToken = identity != null && (status == ESTABLISHED || status == REFRESHED)
+        val unavailableSince = tokenUnavailableSince
+        if (hasToken && unavailableSince != null) {
+            metrics.onTokenUnavailable(now - unavailableSince)
+            tokenAvailabilityTracker.onUnavailableEnded(now - unavailableSince)
+            tokenUnavailableSince = null
+        } else if (!hasToken && unavailableSince == null) {
+            tokenUnavailableSince = now
+        }
+    }
 
-        if (!automaticRefreshEnabled) {
-            return
+    /**
+     * The events in the lifetime of an identity that we need to act upon.
+     */
+    private enum class Deadline {
+        REFRESH,
+        IDENTITY_EXPIRES,
+        REFRESH_EXPIRES,
+    }
+
+    /**
+     * Schedules the work required for the current identity. Rather than a separate Job for each of its deadlines, a
+     * single Job waits for each deadline in turn. Any previously scheduled work, for a previous identity, is cancelled.
+     *
+     * @param keepActiveRefresh Whether a refresh that's already in-flight should be left to complete, rather than being
+     * cancelled, e.g. when the deadlines of the same identity are rescheduled after our time has been corrected.
+     */
+    private fun scheduleDeadlines(keepActiveRefresh: Boolean = false) {
+        deadlineJob?.cancel()
+        deadlineJob = null
+
+        if (!keepActiveRefresh || refreshJob?.isActive != true) {
+            refreshJob?.cancel()
+            refreshJob = null
         }
 
-        currentIdentity?.let {
-            // If the identity is already suitable for a refresh, we can do so immediately. Otherwise, we will work out
-            // how long it is until a refresh is required and schedule it accordingly.
-            refreshJob = if (timeUtils.hasExpired(it.refreshFrom)) {
-                refreshIdentityInternal(it)
+        val identity = currentIdentity ?: return
+        val deadlines = mutableListOf<Pair<Long, Deadline>>()
+
+        if (canRefreshAutomatically(identity) && refreshJob == null) {
+            // If the identity is already due to be refreshed, we can do so immediately. Otherwise, we will wait until
+            // the time chosen for the refresh.
+            val refreshAt = getRefreshTime(identity)
+            if (timeUtils.hasExpired(refreshAt)) {
+                refreshJob = refreshIdentityInternal(identity, deferInBackground = true)
             } else {
-                scope.launch {
-                    val timeToRefresh = timeUtils.diffToNow(it.refreshFrom)
-                    delay(timeToRefresh)
-                    refreshIdentityInternal(it)
+                deadlines += refreshAt to Deadline.REFRESH
+            }
+        }
+
+        // An identity's status can change based upon the current time and it's expiration. We will wait for these
+        // times to pass so that we can reevaluate our state and report it accordingly.
+        if (checkExpiration) {
+            if (!timeUtils.hasExpired(identity.identityExpires)) {
+                deadlines += identity.identityExpires + EXPIRATION_CHECK_TOLERANCE_MS to Deadline.IDENTITY_EXPIRES
+            }
+            if (!timeUtils.hasExpired(identity.refreshExpires)) {
+                deadlines += identity.refreshExpires + EXPIRATION_CHECK_TOLERANCE_MS to Deadline.REFRESH_EXPIRES
+            }
+        }
+
+        if (deadlines.isEmpty()) {
+            return
+        }
+
+        deadlines.sortBy { it.first }
+        deadlineJob = scope.launch {
+            for ((time, deadline) in deadlines) {
+                delay(timeUtils.diffToNow(time))
+
+                mutations.execute {
+                    // If the identity has since been replaced, this work is stale and should not modify our state. Once
+                    // an expiry has updated the identity's status, its remaining deadlines are scheduled again.
+                    if (currentIdentity !== identity) {
+                        return@execute
+                    }
+
+                    when (deadline) {
+                        Deadline.REFRESH -> refreshJob = refreshIdentityInternal(identity, deferInBackground = true)
+                        Deadline.IDENTITY_EXPIRES -> {
+                            logger.i(TAG) { "Detected identity has expired" }
+                            validateAndSetIdentity(identity, null, true)
+                        }
+                        Deadline.REFRESH_EXPIRES -> {
+                            logger.i(TAG) { "Detected refresh has expired" }
+                            validateAndSetIdentity(identity, null, true)
+                        }
+                    }
                 }
             }
         }
     }
 
     /**
-     * The identity status can change as we reach specific time events. We want to observe these and make sure that when
-     * they are reached, we can report them accordingly to our consumer.
+     * Suspends while the app is in the background, until it returns to the foreground. If the given identity's refresh
+     * token is close to expiring, we stop waiting so that it can be refreshed before the identity is lost entirely.
      */
-    private fun checkIdentityExpiration() {
-        checkRefreshExpiresJob?.cancel()
-        checkRefreshExpiresJob = null
-
-        checkIdentityExpiresJob?.cancel()
-        checkIdentityExpiresJob = null
+    private suspend fun awaitForegroundUnlessUrgent(identity: UID2Identity) {
+        if (appVisibility.isForeground.value) {
+            return
+        }
 
-        if (!checkExpiration) {
+        val urgentInMs = timeUtils.diffToNow(identity.refreshExpires - BACKGROUND_REFRESH_URGENCY_MS)
+        if (urgentInMs <= 0) {
             return
         }
 
-        currentIdentity?.let {
-            // If the expiration time of being able to refresh is in the future, we will schedule a job to detect if we
-            // pass it. This will allow us to reevaluate our state and update accordingly.
-            if (!timeUtils.hasExpired(it.refreshExpires)) {
-                checkRefreshExpiresJob = scope.launch {
-                    val timeToCheck = timeUtils.diffToNow(it.refreshExpires) + EXPIRATION_CHECK_TOLERANCE_MS
-                    delay(timeToCheck)
+        logger.i(TAG) { "Deferring refresh while in background" }
+        deferredRefreshes.incrementAndGet()
+        withTimeoutOrNull(urgentInMs) { appVisibility.awaitForeground() }
+    }
+
+    /**
+     * Gets the time at which the given identity should be automatically refreshed, as chosen by the
+     * [refreshWindowPolicy]. The same time is returned for as long as this remains the current identity.
+     *
+     * If the identity is already refreshable when we first see it, e.g. it was restored from storage after the app was
+     * launched, it should be refreshed straight away. App launches are already spread out across the fleet.
+     */
+    private fun getRefreshTime(identity: UID2Identity): Long {
+        refreshTime?.takeIf { it.first === identity }?.let { return it.second }
 
-                    logger.i(TAG) { "Detected refresh has expired" }
-                    validateAndSetIdentity(it, null, true)
-                }
-            }
+        val time = if (timeUtils.hasExpired(identity.refreshFrom)) {
+            identity.refreshFrom
+        } else {
+            refreshWindowPolicy.getRefreshTimeMs(identity, latencyEstimator.stats).coerceAtLeast(identity.refreshFrom)
+        }
 
-            // If the expiration time of the identity itself is in the future, we will schedule a job to detect if we
-            // pass it. This will allow us to reevaluate our state and update accordingly.
-            if (!timeUtils.hasExpired(it.identityExpires)) {
-                checkIdentityExpiresJob = scope.launch {
-                    val timeToCheck = timeUtils.diffToNow(it.identityExpires) + EXPIRATION_CHECK_TOLERANCE_MS
-                    delay(timeToCheck)
+        refreshTime = identity to time
+        return time
+    }
 
-                    logger.i(TAG) { "Detected identity has expired" }
-                    validateAndSetIdentity(it, null, true)
-                }
-            }
+    /**
+     * Returns whether the given identity will need refreshing soon, but not yet. This uses the same time as the
+     * scheduled refresh, as chosen by the [refreshWindowPolicy]. An identity that requires refreshing already will have
+     * its refresh started immediately.
+     */
+    private fun isRefreshImminent(identity: UID2Identity): Boolean {
+        if (!automaticRefreshEnabled) {
+            return false
         }
+
+        val refreshAt = getRefreshTime(identity)
+        if (timeUtils.hasExpired(refreshAt)) {
+            return false
+        }
+
+        return timeUtils.diffToNow(refreshAt) <= PREWARM_CONNECTION_WINDOW_MS
     }
 
     private fun validateAndSetIdentity(
@@ -524,11 +1008,19 @@ public class UID2Manager internal constructor(
     private data class RefreshResult(val identity: UID2Identity?, val status: IdentityStatus)
 
     /**
-     * Refreshes the given Identity.
+     * Refreshes the given Identity. If a refresh of the same refresh token is already in-flight, its result is shared
+     * rather than making an additional request.
+     *
+     * @param key The refresh response key we've already decoded for this identity, if we have one.
      */
-    private suspend fun refreshToken(identity: UID2Identity): Flow<RefreshResult> = flow {
+    private suspend fun refreshToken(identity: UID2Identity, key: RefreshResponseKey?): Flow<RefreshResult> = flow {
         try {
-            val response = client.refreshIdentity(identity.refreshToken, identity.refreshResponseKey)
+            val response = refreshes.run(identity.refreshToken) {
+                // The decoded key can't be destroyed (by the identity being replaced) while we're using it. If it
+                // already has been, we fall back to decoding it again.
+                key?.useOrNull { client.refreshIdentity(identity.refreshToken, it) }
+                    ?: client.refreshIdentity(identity.refreshToken, identity.refreshResponseKey)
+            }
             emit(RefreshResult(response.identity, response.status))
         } catch (ex: Exception) {
             throw UID2Exception("Error refreshing token", ex)
@@ -605,23 +1097,31 @@ public class UID2Manager internal constructor(
         private const val PACKAGE_IDENTITY_ESTABLISHED = "Identity established"
         private const val PACKAGE_IDENTITY_REFRESHED = "Identity refreshed"
 
-        // The number of milliseconds to wait before retrying after failing to refresh a token is dependent on the
-        // number of consecutive failures we've had. After a threshold, we will increase the time.
-        private const val REFRESH_TOKEN_FAILURE_RETRY_THRESHOLD = 5
-        private const val REFRESH_TOKEN_FAILURE_RETRY_SHORT_MS = 5000L
-        private const val REFRESH_TOKEN_FAILURE_RETRY_LONG_MS = 60000L // 1 minute
-
         // The additional time we will allow to pass before checking the expiration of the Identity.
         private const val EXPIRATION_CHECK_TOLERANCE_MS = 50
 
+        // If a refresh is due within this time, the connection to the API server may be warmed up ahead of it. This
+        // matches how long an idle connection is kept alive in the platform's connection pool.
+        private const val PREWARM_CONNECTION_WINDOW_MS = 5 * 60 * 1000L // 5 minutes
+
+        // While the app is in the background, refreshes are deferred unless the refresh token expires within this time.
+        private const val BACKGROUND_REFRESH_URGENCY_MS = 60 * 60 * 1000L // 1 hour
+
         private var serverUrl: String = UID2_API_URL_PRODUCTION
         private var isEuid: Boolean = true
         private var applicationId: String = APPLICATION_ID_DEFAULT
-        private var networkSession: NetworkSession = DefaultNetworkSession()
+        private var networkSession: SuspendingNetworkSession = DefaultNetworkSession().asSuspending()
         private var storageManager: StorageManager? = null
         private var isLoggingEnabled: Boolean = false
+        private var prewarmConnection: Boolean = false
+        private var connectivityMonitor: ConnectivityMonitor = AlwaysConnectedMonitor
+        private var warmStartSnapshot: IdentitySnapshot? = null
+        private var appVisibility: AppVisibility = AlwaysForeground
+        private var timeUtils: TimeUtils = TimeUtils
+        private var diagnostics: DiagnosticLog = DiagnosticLog()
+        private var keyUtils: KeyUtils = KeyUtils
 
-        private var instance: UID2Manager? = null
+        private val instance = InstanceHolder<UID2Manager>()
 
         /**
          * Initializes the class with the given [Context], along with a [NetworkSession] that will be responsible
@@ -658,6 +1158,16 @@ public class UID2Manager internal constructor(
          * the API URL.
          * @param networkSession A custom [NetworkSession] which can be used for making any required network calls.
          * The default implementation supported by the SDK can be found as [DefaultNetworkSession].
+         * @param prewarmConnection If enabled, and a restored identity is due to be refreshed soon, a connection to the
+         * API server will be established in the background ahead of the refresh.
+         * @param warmStart If enabled, a small snapshot of the last known advertising token is read synchronously
+         * during initialisation, so that [getAdvertisingToken] can provide it while the full identity is still being
+         * loaded.
+         * @param deferBackgroundRefresh If enabled, automatic refreshes that fall due while the app is in the
+         * background are deferred until it returns to the foreground, unless the identity would otherwise be lost.
+         * @param metrics A listener which receives measurements of the SDK, such as the latency of requests to the API.
+         * @param pregenerateKeyPairs If enabled, the key pairs required to generate an identity are generated ahead of
+         * time on a low priority background thread, rather than when [generateIdentity] is called.
          */
         @JvmStatic
         @JvmOverloads
@@ -667,23 +1177,98 @@ public class UID2Manager internal constructor(
             environment: Environment = Environment.Production,
             networkSession: NetworkSession = DefaultNetworkSession(),
             isLoggingEnabled: Boolean = false,
+            prewarmConnection: Boolean = false,
+            warmStart: Boolean = false,
+            deferBackgroundRefresh: Boolean = false,
+            metrics: UID2Metrics = UID2Metrics.NONE,
+            pregenerateKeyPairs: Boolean = false,
         ) {
-            if (instance != null) {
-                throw InitializationException()
-            }
+            init(
+                context,
+                environment,
+                networkSession.reportingTo(metrics).asSuspending(),
+                isLoggingEnabled,
+                prewarmConnection,
+                warmStart,
+                deferBackgroundRefresh,
+                metrics,
+                pregenerateKeyPairs,
+            )
+        }
 
-            this.serverUrl = environment.serverUrl
-            this.applicationId = context.packageName
-            this.networkSession = networkSession
-            this.storageManager = FileStorageManager(context.applicationContext, UID2)
-            this.isLoggingEnabled = isLoggingEnabled
+        /**
+         * Initializes the class with the given [Context], along with a [SuspendingNetworkSession] that will be
+         * responsible for making any required network calls. Unlike a [NetworkSession], this will not hold a thread
+         * while waiting for the network.
+         *
+         * @param context The context to initialise from. This will be used to obtain the package's metadata to extract
+         * the API URL.
+         * @param networkSession A custom [SuspendingNetworkSession] which can be used for making any required network
+         * calls.
+         * @param prewarmConnection If enabled, and a restored identity is due to be refreshed soon, a connection to the
+         * API server will be established in the background ahead of the refresh.
+         * @param warmStart If enabled, a small snapshot of the last known advertising token is read synchronously
+         * during initialisation, so that [getAdvertisingToken] can provide it while the full identity is still being
+         * loaded.
+         * @param deferBackgroundRefresh If enabled, automatic refreshes that fall due while the app is in the
+         * background are deferred until it returns to the foreground, unless the identity would otherwise be lost.
+         * @param metrics A listener which receives measurements of the SDK, such as the latency of requests to the API.
+         * @param pregenerateKeyPairs If enabled, the key pairs required to generate an identity are generated ahead of
+         * time on a low priority background thread, rather than when [generateIdentity] is called.
+         */
+        @JvmStatic
+        @JvmOverloads
+        @Throws(InitializationException::class)
+        public fun init(
+            context: Context,
+            environment: Environment,
+            networkSession: SuspendingNetworkSession,
+            isLoggingEnabled: Boolean = false,
+            prewarmConnection: Boolean = false,
+            warmStart: Boolean = false,
+            deferBackgroundRefresh: Boolean = false,
+            metrics: UID2Metrics = UID2Metrics.NONE,
+            pregenerateKeyPairs: Boolean = false,
+        ) {
+            val timeUtils = MonotonicTimeUtils()
+            val diagnostics = DiagnosticLog(timeUtils::now, metrics, publicKeyCache = KeyUtils.publicKeyCache)
+            val storageManager = FileStorageManager(context.applicationContext, UID2, diagnostics, timeUtils)
+
+            // The warm start snapshot is read here, rather than when the instance is created, so that other threads
+            // waiting for the instance aren't blocked on the file being read.
+            val warmStartSnapshot = if (warmStart) storageManager.loadSnapshot() else null
+
+            // The configuration is applied while holding the same lock used to create the instance, so that it's never
+            // created from a partially applied configuration.
+            instance.withLock {
+                if (instance.value != null) {
+                    throw InitializationException()
+                }
+
+                this.serverUrl = environment.serverUrl
+                this.applicationId = context.packageName
+                this.networkSession = networkSession
+                this.storageManager = storageManager
+                this.isLoggingEnabled = isLoggingEnabled
+                this.prewarmConnection = prewarmConnection
+                this.connectivityMonitor = AndroidConnectivityMonitor.create(context)
+                this.warmStartSnapshot = warmStartSnapshot
+                this.appVisibility = if (deferBackgroundRefresh) {
+                    ActivityLifecycleVisibility.create(context)
+                } else {
+                    AlwaysForeground
+                }
+                this.timeUtils = timeUtils
+                this.diagnostics = diagnostics
+                this.keyUtils = if (pregenerateKeyPairs) PooledKeyUtils(KeyPairPool()) else KeyUtils
+            }
         }
 
         /**
          * Returns True if the manager is already initialised, otherwise False.
          */
         @JvmStatic
-        public fun isInitialized(): Boolean = instance != null
+        public fun isInitialized(): Boolean = instance.value != null
 
         /**
          * Gets the current singleton instance of the manager.
@@ -692,25 +1277,37 @@ public class UID2Manager internal constructor(
          */
         @JvmStatic
         public fun getInstance(): UID2Manager {
-            val storage = storageManager ?: throw InitializationException()
-            val logger = Logger(isLoggingEnabled)
-
-            return instance ?: UID2Manager(
-                client = UID2Client(
-                    apiUrl = serverUrl,
-                    session = networkSession,
-                    applicationId = applicationId,
+            return instance.getOrCreate {
+                // This is run while holding the same lock as init, so the configuration is seen in full.
+                val storage = storageManager ?: throw InitializationException()
+                val logger = Logger(isLoggingEnabled)
+                val latencyEstimator = LatencyEstimator()
+                UID2Manager(
+                    client = UID2Client(
+                        apiUrl = serverUrl,
+                        session = networkSession,
+                        applicationId = applicationId,
+                        timeUtils = timeUtils,
+                        keyUtils = keyUtils,
+                        logger = logger,
+                        latencyEstimator = latencyEstimator,
+                        metrics = diagnostics,
+                    ),
+                    storageManager = storage,
+                    timeUtils = timeUtils,
+                    inputUtils = InputUtils(),
+                    defaultDispatcher = Dispatchers.Default,
+                    initialAutomaticRefreshEnabled = true,
+                    isEuid = false,
                     logger = logger,
-                ),
-                storageManager = storage,
-                timeUtils = TimeUtils,
-                inputUtils = InputUtils(),
-                defaultDispatcher = Dispatchers.Default,
-                initialAutomaticRefreshEnabled = true,
-                isEuid = false,
-                logger = logger,
-            ).apply {
-                instance = this
+                    prewarmConnection = prewarmConnection,
+                    connectivityMonitor = connectivityMonitor,
+                    warmStartSnapshot = warmStartSnapshot,
+                    latencyEstimator = latencyEstimator,
+                    appVisibility = appVisibility,
+                    metrics = diagnostics,
+                    diagnostics = diagnostics,
+                )
             }
         }
 
@@ -0,0 +1,128 @@
+package com.uid2
+
+import com.uid2.data.IdentityStatus
+import com.uid2.network.DefaultNetworkSession
+import com.uid2.network.NetworkEventListener
+import com.uid2.network.NetworkSession
+
+/**
+ * A listener which receives measurements of the SDK as it runs, allowing them to be fed into the consumer's own
+ * telemetry. It can be provided when initializing the SDK, via [UID2Manager.init].
+ *
+ * Each event is reported with primitive arguments, so that no allocations are required to report it. Events are
+ * reported on the SDK's own (background) threads, so implementations should be thread-safe and return quickly. Every
+ * method has an empty default implementation, so only the events of interest need to be overridden, from either
+ * Kotlin or Java.
+ *
+ * When the SDK's [DefaultNetworkSession] is used, the time spent in each phase of a request (DNS, connect, TLS and
+ * waiting for the server) is also reported, via [NetworkEventListener.onRequestTimed].
+ */
+public interface UID2Metrics : NetworkEventListener {
+
+    /**
+     * The types of request made to the API.
+     */
+    public enum class Request {
+        GENERATE,
+        REFRESH,
+    }
+
+    /**
+     * The ways in which a successful response from the API could not be used.
+     */
+    public enum class PayloadFailure {
+
+        /**
+         * The response could not be decrypted.
+         */
+        DECRYPT,
+
+        /**
+         * The decrypted response was not in the expected format.
+         */
+        PARSE,
+    }
+
+    /**
+     * The operations performed on the identity persisted in local storage.
+     */
+    public enum class StorageOperation {
+        LOAD,
+        SAVE,
+        CLEAR,
+    }
+
+    /**
+     * A request to the API has completed.
+     *
+     * @param request The type of request.
+     * @param statusCode The HTTP status code of the response.
+     * @param latencyMs How long it took to receive the response.
+     */
+    public fun onRequest(request: Request, statusCode: Int, latencyMs: Long): Unit = Unit
+
+    /**
+     * The response to a request to the API could not be used.
+     *
+     * @param request The type of request.
+     * @param failure Why the response could not be used.
+     */
+    public fun onPayloadFailure(request: Request, failure: PayloadFailure): Unit = Unit
+
+    /**
+     * A failed refresh of the identity is going to be retried.
+     *
+     * @param attempt The number of attempts that have failed so far, starting from 0 for the initial attempt.
+     * @param delayMs How long we will wait before the next attempt.
+     */
+    public fun onRefreshRetry(attempt: Long, delayMs: Long): Unit = Unit
+
+    /**
+     * The identity, or its status, has been updated.
+     *
+     * @param previous The previous status, or null if the identity was still being loaded from storage.
+     * @param status The new status.
+     * @param durationMs How long the previous status was held.
+     */
+    public fun onStatusChanged(previous: IdentityStatus?, status: IdentityStatus, durationMs: Long): Unit = Unit
+
+    /**
+     * A valid advertising token has become available, after a period without one. This includes the time spent loading
+     * the identity after launch.
+     *
+     * @param durationMs How long no valid advertising token was available.
+     */
+    public fun onTokenUnavailable(durationMs: Long): Unit = Unit
+
+    /**
+     * An operation on the locally persisted identity has completed.
+     *
+     * @param operation The type of operation.
+     * @param success Whether the operation succeeded.
+     * @param durationMs How long the operation took.
+     */
+    public fun onStorage(operation: StorageOperation, success: Boolean, durationMs: Long): Unit = Unit
+
+    public companion object {
+
+        /**
+         * A [UID2Metrics] that ignores every event. This is used when no listener is provided.
+         */
+        @JvmField
+        public val NONE: UID2Metrics = object : UID2Metrics {}
+    }
+}
+
+/**
+ * Gets the session to use so that the phases of each request are reported to the given [UID2Metrics]. If this is a
+ * [DefaultNetworkSession] without its own listener, a new session reporting to the metrics is returned in its place.
+ * The given session is left unmodified, since the caller may be using it elsewhere. A subclass of the
+ * [DefaultNetworkSession] may have customised it, so it's used as-is.
+ */
+internal fun NetworkSession.reportingTo(metrics: UID2Metrics): NetworkSession {
+    if (metrics === UID2Metrics.NONE || javaClass != DefaultNetworkSession::class.java) {
+        return this
+    }
+
+    return if ((this as DefaultNetworkSession).eventListener == null) DefaultNetworkSession(metrics) else this
+}
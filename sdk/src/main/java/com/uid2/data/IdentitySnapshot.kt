@@ -0,0 +1,10 @@
+package com.uid2.data
+
+/**
+ * A minimal snapshot of the last known advertising token, along with when it expires. Unlike the full [UID2Identity],
+ * this is small enough to be read synchronously at start up, before the full identity has been loaded and validated.
+ */
+internal data class IdentitySnapshot(
+    val advertisingToken: String,
+    val identityExpires: Long,
+)
@@ -0,0 +1,14 @@
+package com.uid2.data
+
+/**
+ * A snapshot of the latency observed for requests made to the UID2 API.
+ *
+ * @param samples The total number of requests that have been measured.
+ * @param averageMs The exponentially weighted moving average of the latency, favouring the most recent requests.
+ * @param p95Ms The 95th percentile of the latency, across the most recent requests.
+ */
+public data class LatencyStats(
+    val samples: Long,
+    val averageMs: Long,
+    val p95Ms: Long,
+)
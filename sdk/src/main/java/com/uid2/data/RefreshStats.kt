@@ -0,0 +1,16 @@
+package com.uid2.data
+
+/**
+ * A snapshot of the identity refresh requests made by the [com.uid2.UID2Manager].
+ *
+ * @param requests The total number of times a refresh of the identity was requested.
+ * @param coalesced The number of those requests that joined a refresh, for the same refresh token, that was already
+ * in-flight. These did not result in a separate network request.
+ * @param deferredInBackground The number of times a refresh was deferred, rather than made, because the app was in the
+ * background. Each of these is a background wakeup that was avoided.
+ */
+public data class RefreshStats(
+    val requests: Long,
+    val coalesced: Long,
+    val deferredInBackground: Long = 0,
+)
@@ -0,0 +1,36 @@
+package com.uid2.data
+
+/**
+ * A snapshot of how often a valid advertising token was available when it was asked for.
+ *
+ * @param reads The outcomes of every call to [com.uid2.UID2Manager.getAdvertisingToken].
+ * @param signals The outcomes of the signal collections made by ad requests, via the SDK's ad network integrations.
+ * @param unavailableMs The total time that no valid advertising token was available, including the current period.
+ * @param longestUnavailableMs The longest single period that no valid advertising token was available.
+ */
+public data class TokenAvailability(
+    val reads: TokenOutcomes,
+    val signals: TokenOutcomes,
+    val unavailableMs: Long,
+    val longestUnavailableMs: Long,
+)
+
+/**
+ * The outcomes of a number of requests for the advertising token.
+ *
+ * @param requests The total number of requests.
+ * @param hits The number of requests that were given a valid advertising token.
+ * @param misses The number of requests that weren't given a token, by the status of the identity at the time.
+ */
+public data class TokenOutcomes(
+    val requests: Long,
+    val hits: Long,
+    val misses: Map<IdentityStatus, Long>,
+) {
+
+    /**
+     * The fraction of requests that were given a valid advertising token, between 0 and 1.
+     */
+    val hitRate: Double
+        get() = if (requests == 0L) 0.0 else hits.toDouble() / requests
+}
@@ -0,0 +1,13 @@
+package com.uid2.extensions
+
+import java.nio.ByteBuffer
+
+/**
+ * Extension method to decode the remaining bytes of a ByteBuffer as a UTF-8 String. If the buffer is backed by an
+ * array, the String is decoded directly from it, without first copying the bytes out.
+ */
+internal fun ByteBuffer.decodeUtf8(): String = if (hasArray()) {
+    String(array(), arrayOffset() + position(), remaining(), Charsets.UTF_8)
+} else {
+    Charsets.UTF_8.decode(this).toString()
+}
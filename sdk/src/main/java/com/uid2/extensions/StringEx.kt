@@ -9,6 +9,96 @@ import java.security.MessageDigest
  */
 internal fun String.decodeBase64(): ByteArray? = runCatching { Base64.decode(this, Base64.NO_WRAP) }.getOrNull()
 
+/**
+ * Returns the maximum number of bytes this String could decode to, were it Base64.
+ */
+internal fun String.decodedBase64Length(): Int = (length + 3) / 4 * 3
+
+/**
+ * Extension method to decode a String from Base64 into the start of the given buffer, rather than allocating a new
+ * ByteArray. The buffer should be at least [decodedBase64Length] in size.
+ *
+ * This matches the behaviour of [decodeBase64], i.e. android.util.Base64's decoder: any character outside of the Base64
+ * alphabet (and padding) is skipped, and padding is optional, but once started must be complete.
+ *
+ * @return The number of bytes decoded, or -1 if the String isn't valid Base64 or the buffer is too small.
+ */
+internal fun String.decodeBase64Into(buffer: ByteArray): Int {
+    // The state counts the digits of the current quantum (0-3), or is PADDING_STARTED after a single '=' following two
+    // digits, or PADDING_COMPLETE once the padding is complete and only skipped characters may follow.
+    var state = 0
+    var accumulator = 0
+    var position = 0
+    for (i in indices) {
+        val code = this[i].code
+        val value = if (code < BASE64_DECODE_TABLE.size) BASE64_DECODE_TABLE[code] else BASE64_SKIP
+        when {
+            value >= 0 -> {
+                if (state >= PADDING_STARTED) {
+                    return -1
+                }
+
+                accumulator = (accumulator shl 6) or value
+                state++
+                if (state == 4) {
+                    position = buffer.putBits(position, accumulator, 3)
+                    accumulator = 0
+                    state = 0
+                }
+            }
+            value == BASE64_EQUALS -> state = when (state) {
+                2 -> PADDING_STARTED.also { position = buffer.putBits(position, accumulator shr 4, 1) }
+                3 -> PADDING_COMPLETE.also { position = buffer.putBits(position, accumulator shr 2, 2) }
+                PADDING_STARTED -> PADDING_COMPLETE
+                else -> return -1
+            }
+        }
+
+        if (position < 0) {
+            return -1
+        }
+    }
+
+    // The final quantum may not have been padded, in which case its remaining bytes are written now.
+    return when (state) {
+        0, PADDING_COMPLETE -> position
+        2 -> buffer.putBits(position, accumulator shr 4, 1)
+        3 -> buffer.putBits(position, accumulator shr 2, 2)
+        else -> -1
+    }
+}
+
+/**
+ * Writes the lowest [count] bytes of the given bits into this buffer at the given position, most significant first.
+ *
+ * @return The position after the written bytes, or -1 if the buffer is too small.
+ */
+private fun ByteArray.putBits(position: Int, bits: Int, count: Int): Int {
+    if (position + count > size) {
+        return -1
+    }
+
+    for (i in 0 until count) {
+        this[position + i] = (bits shr (8 * (count - 1 - i))).toByte()
+    }
+    return position + count
+}
+
+// The states of decodeBase64Into once padding has been found.
+private const val PADDING_STARTED = 4
+private const val PADDING_COMPLETE = 5
+
+// Maps each (ASCII) character to its value in the standard Base64 alphabet. Padding is mapped to BASE64_EQUALS, and
+// any other character is skipped.
+private const val BASE64_SKIP = -1
+private const val BASE64_EQUALS = -2
+private val BASE64_DECODE_TABLE = IntArray(128) { BASE64_SKIP }.apply {
+    "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".forEachIndexed { index, char ->
+        this[char.code] = index
+    }
+    this['='.code] = BASE64_EQUALS
+}
+
 /**
  * Extension to parse a given String as JSON and convert to a Map. If parsing fails, e.g. the JSON
  * is not well formed, then null will be returned.
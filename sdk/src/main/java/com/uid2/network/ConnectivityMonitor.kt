@@ -0,0 +1,106 @@
+package com.uid2.network
+
+import android.content.BroadcastReceiver
+import android.content.Context
+import android.content.Intent
+import android.content.IntentFilter
+import android.net.ConnectivityManager
+import android.net.Network
+import android.os.Build
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.asStateFlow
+import kotlinx.coroutines.flow.first
+
+/**
+ * Observes whether the device currently has network connectivity. This allows work that requires the network, such as
+ * refreshing an identity, to be paused while the device is offline.
+ */
+internal interface ConnectivityMonitor {
+
+    /**
+     * Whether the device currently has network connectivity.
+     */
+    val isConnected: StateFlow<Boolean>
+}
+
+/**
+ * Suspends until the device has network connectivity. If it's already connected, this returns immediately.
+ */
+internal suspend fun ConnectivityMonitor.awaitConnected() {
+    isConnected.first { it }
+}
+
+/**
+ * A [ConnectivityMonitor] that always reports the device as connected. This is used when the connectivity of the
+ * device can't be observed, so that we fall back to simply attempting our requests.
+ */
+internal object AlwaysConnectedMonitor : ConnectivityMonitor {
+    override val isConnected: StateFlow<Boolean> = MutableStateFlow(true).asStateFlow()
+}
+
+/**
+ * A [ConnectivityMonitor] backed by the platform's [ConnectivityManager].
+ *
+ * On Android N+, the default network is observed via a [ConnectivityManager.NetworkCallback]. On older versions of
+ * Android, we instead listen for the (sticky) connectivity change broadcast.
+ */
+internal class AndroidConnectivityMonitor private constructor(
+    private val connectivityManager: ConnectivityManager,
+) : ConnectivityMonitor {
+
+    private val connected = MutableStateFlow(checkConnected())
+    override val isConnected: StateFlow<Boolean> = connected.asStateFlow()
+
+    private fun startDefaultNetworkCallback() {
+        connectivityManager.registerDefaultNetworkCallback(
+            object : ConnectivityManager.NetworkCallback() {
+                override fun onAvailable(network: Network) {
+                    connected.value = true
+                }
+
+                override fun onLost(network: Network) {
+                    connected.value = false
+                }
+            },
+        )
+    }
+
+    private fun startConnectivityReceiver(context: Context) {
+        @Suppress("DEPRECATION")
+        context.registerReceiver(
+            object : BroadcastReceiver() {
+                override fun onReceive(context: Context, intent: Intent) {
+                    connected.value = checkConnected()
+                }
+            },
+            IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION),
+        )
+    }
+
+    @Suppress("DEPRECATION")
+    private fun checkConnected() = connectivityManager.activeNetworkInfo?.isConnected == true
+
+    companion object {
+
+        /**
+         * Creates a [ConnectivityMonitor] for the given [Context]. If the platform doesn't allow us to observe the
+         * connectivity of the device, e.g. the required permission is missing, an [AlwaysConnectedMonitor] is returned.
+         */
+        fun create(context: Context): ConnectivityMonitor {
+            val appContext = context.applicationContext
+            val manager = appContext.getSystemService(Context.CONNECTIVITY_SERVICE) as? ConnectivityManager
+                ?: return AlwaysConnectedMonitor
+
+            return runCatching {
+                AndroidConnectivityMonitor(manager).apply {
+                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+                        startDefaultNetworkCallback()
+                    } else {
+                        startConnectivityReceiver(appContext)
+                    }
+                }
+            }.getOrElse { AlwaysConnectedMonitor }
+        }
+    }
+}
@@ -1,10 +1,10 @@
 package com.uid2.network
 
-import com.uid2.extensions.decodeBase64
+import com.uid2.extensions.decodeBase64Into
+import com.uid2.extensions.decodedBase64Length
+import java.nio.ByteBuffer
 import javax.crypto.Cipher
 import javax.crypto.SecretKey
-import javax.crypto.spec.GCMParameterSpec
-import javax.crypto.spec.SecretKeySpec
 
 /**
  * This object is responsible for decoding encrypted responses when refreshing the Identity. The type of encryption used
@@ -51,61 +51,187 @@ public interface DataEnvelope {
      */
     public fun decrypt(key: ByteArray?, data: String, includesNonce: Boolean): ByteArray?
 
+    /**
+     * Decrypts the given data with the provided key, returning a view of the decrypted data.
+     *
+     * This allows an implementation to decrypt into a buffer that it reuses, rather than copying the data into a new
+     * array at each step. The returned buffer is therefore only valid until the next call made on the same thread, and
+     * should be consumed immediately. By default, the result of [decrypt] is wrapped.
+     *
+     * @param key The key, in Base64 format, required to decode the given data.
+     * @param data The data, in Base64 format, that needs to be decoded.
+     * @param includesNonce If a nonce (and timestamp) is expected in the decrypted data.
+     * @return A buffer whose remaining bytes are the unencrypted data. If this decryption fails, null is returned.
+     */
+    public fun decryptToBuffer(key: String, data: String, includesNonce: Boolean): ByteBuffer? =
+        decrypt(key, data, includesNonce)?.let { ByteBuffer.wrap(it) }
+
+    /**
+     * Decrypts the given data with the provided key, returning a view of the decrypted data.
+     *
+     * This allows an implementation to decrypt into a buffer that it reuses, rather than copying the data into a new
+     * array at each step. The returned buffer is therefore only valid until the next call made on the same thread, and
+     * should be consumed immediately. By default, the result of [decrypt] is wrapped.
+     *
+     * @param key The key, in bytes, required to decode the given data.
+     * @param data The data, in Base64 format, that needs to be decoded.
+     * @param includesNonce If a nonce (and timestamp) is expected in the decrypted data.
+     * @return A buffer whose remaining bytes are the unencrypted data. If this decryption fails, null is returned.
+     */
+    public fun decryptToBuffer(key: ByteArray?, data: String, includesNonce: Boolean): ByteBuffer? =
+        decrypt(key, data, includesNonce)?.let { ByteBuffer.wrap(it) }
+
+    /**
+     * Decrypts the given data with the provided key, returning a view of the decrypted data.
+     *
+     * This allows a caller which decrypts repeatedly with the same key to build it once, rather than decoding it for
+     * each call. By default, the key's encoded form is passed to [decryptToBuffer], and that copy is then zeroed.
+     *
+     * @param key The key, as represented by a [SecretKey], required to decode the given data.
+     * @param data The data, in Base64 format, that needs to be decoded.
+     * @param includesNonce If a nonce (and timestamp) is expected in the decrypted data.
+     * @return A buffer whose remaining bytes are the unencrypted data. If this decryption fails, null is returned.
+     */
+    public fun decryptToBuffer(key: SecretKey, data: String, includesNonce: Boolean): ByteBuffer? {
+        val encoded = key.encoded
+        try {
+            return decryptToBuffer(encoded, data, includesNonce)
+        } finally {
+            encoded?.fill(0)
+        }
+    }
+
+    /**
+     * Releases a buffer returned by one of the [decryptToBuffer] methods, once its data has been consumed. This allows
+     * an implementation that reuses its buffers to clear the decrypted data, which can include tokens and keys, rather
+     * than leaving it in memory until the buffer is next used. By default, this does nothing.
+     *
+     * @param buffer The buffer that was returned by [decryptToBuffer].
+     */
+    public fun releaseBuffer(buffer: ByteBuffer) {}
+
     public companion object Default : DataEnvelope {
         override fun encrypt(key: SecretKey, data: String, iv: ByteArray, aad: ByteArray): ByteArray? {
             return encryptWithCipher(key, data.toByteArray(), iv, aad)
         }
 
         override fun decrypt(key: String, data: String, includesNonce: Boolean): ByteArray? {
-            return decrypt(key.decodeBase64(), data, includesNonce)
+            return copyOut(decryptToBuffer(key, data, includesNonce))
         }
 
         override fun decrypt(key: ByteArray?, data: String, includesNonce: Boolean): ByteArray? {
-            // Attempt to decrypt the given data with the provided key. Both the key and data are expected to be in Base64
-            // format. If this fails, then null will be returned.
-            var payload = decryptWithCipher(key, data.decodeBase64()) ?: return null
-
-            // If a nonce (and timestamp) is included in the payload, we should remove them.
-            if (includesNonce) {
-                payload = payload.copyOfRange(
-                    PAYLOAD_TIMESTAMP_LENGTH_BYTES + PAYLOAD_NONCE_LENGTH_BYTES,
-                    payload.size,
-                )
+            return copyOut(decryptToBuffer(key, data, includesNonce))
+        }
+
+        override fun decryptToBuffer(key: String, data: String, includesNonce: Boolean): ByteBuffer? {
+            // We own the decoded key, so it's zeroed once we're done with it.
+            val decoded = RefreshResponseKey.decode(key) ?: return null
+            try {
+                return decryptToBuffer(decoded, data, includesNonce)
+            } finally {
+                decoded.destroy()
+            }
+        }
+
+        override fun decryptToBuffer(key: ByteArray?, data: String, includesNonce: Boolean): ByteBuffer? {
+            if (key == null || key.isEmpty()) {
+                return null
             }
 
-            return payload
+            // Unlike a SecretKeySpec, the caller's key is wrapped rather than copied. It remains owned by the caller,
+            // so isn't destroyed.
+            return decryptToBuffer(RefreshResponseKey.wrap(key), data, includesNonce)
         }
 
-        private fun encryptWithCipher(key: SecretKey, data: ByteArray, iv: ByteArray, aad: ByteArray): ByteArray? {
-            val spec = GCMParameterSpec(AUTHENTICATION_TAG_LENGTH_BITS, iv)
+        override fun decryptToBuffer(key: SecretKey, data: String, includesNonce: Boolean): ByteBuffer? {
+            // Attempt to decrypt the given data with the provided key. The data is expected to be in Base64 format, and
+            // is decoded into this thread's buffer, which must at least contain the IV. If this fails, then null will
+            // be returned.
+            val buffer = getBuffer(data.decodedBase64Length())
+            val encryptedLength = data.decodeBase64Into(buffer)
+            if (encryptedLength < IV_LENGTH_BYTES) {
+                return null
+            }
 
-            // Initialise the appropriate AES Cipher.
-            val cipher = Cipher.getInstance(ALGORITHM_TRANSFORMATION)?.apply {
-                init(Cipher.ENCRYPT_MODE, key, spec)
-                updateAAD(aad)
-            } ?: return null
+            val length = decryptWithCipher(key, buffer, encryptedLength)
+
+            // If a nonce (and timestamp) is included in the payload, we should skip over them.
+            val skipped = if (includesNonce) PAYLOAD_TIMESTAMP_LENGTH_BYTES + PAYLOAD_NONCE_LENGTH_BYTES else 0
+            if (length < skipped) {
+                // Don't leave the (truncated) decrypted data behind in the buffer.
+                buffer.fill(0, IV_LENGTH_BYTES, IV_LENGTH_BYTES + length)
+                return null
+            }
 
-            return cipher.doFinal(data)
+            return ByteBuffer.wrap(buffer, IV_LENGTH_BYTES + skipped, length - skipped)
         }
 
-        private fun decryptWithCipher(key: ByteArray?, data: ByteArray?): ByteArray? {
-            key ?: return null
-            data ?: return null
+        override fun releaseBuffer(buffer: ByteBuffer) {
+            // The decrypted data was written over the encrypted data in this thread's buffer, so that's all we need to
+            // clear.
+            if (buffer.hasArray()) {
+                buffer.array().fill(0, buffer.arrayOffset() + buffer.position(), buffer.arrayOffset() + buffer.limit())
+            }
+        }
 
-            val secret = SecretKeySpec(key, ALGORITHM_NAME)
-            val spec = GCMParameterSpec(AUTHENTICATION_TAG_LENGTH_BITS, data, 0, IV_LENGTH_BYTES)
+        /**
+         * Copies the decrypted data out of the given view of this thread's buffer, and then releases it.
+         */
+        private fun copyOut(buffer: ByteBuffer?): ByteArray? = buffer?.let {
+            ByteArray(it.remaining()).also { data ->
+                it.duplicate().get(data)
+                releaseBuffer(it)
+            }
+        }
 
-            // Initialise the appropriate AES Cipher.
-            val cipher = Cipher.getInstance(ALGORITHM_TRANSFORMATION)?.apply {
-                init(Cipher.DECRYPT_MODE, secret, spec)
-            } ?: return null
+        private fun encryptWithCipher(key: SecretKey, data: ByteArray, iv: ByteArray, aad: ByteArray): ByteArray? {
+            // Initialise this thread's AES Cipher.
+            return cipher.encrypt(key, iv) { cipher ->
+                cipher.updateAAD(aad)
+                cipher.doFinal(data)
+            }
+        }
 
-            // Decrypt the data, skipping the first 12 bytes since that contains our IV.
-            return cipher.doFinal(data, IV_LENGTH_BYTES, data.size - IV_LENGTH_BYTES)
+        /**
+         * Returns this thread's buffer, growing it if it's smaller than the given size. An unusually large buffer is
+         * not retained, so that a single large response doesn't hold on to its memory for the lifetime of the thread.
+         */
+        private fun getBuffer(size: Int): ByteArray {
+            buffers.get()?.takeIf { it.size >= size }?.let { return it }
+
+            return ByteArray(size).also {
+                if (size <= MAX_RETAINED_BUFFER_BYTES) {
+                    buffers.set(it)
+                }
+            }
         }
 
-        // The name and transformation of the encryption algorithm used.
-        private const val ALGORITHM_NAME = "AES"
+        /**
+         * Decrypts the encrypted data held in the first [length] bytes of the given buffer, in place. The IV is
+         * expected in the first 12 bytes, and the decrypted data is written directly after it.
+         *
+         * @return The length of the decrypted data.
+         */
+        private fun decryptWithCipher(key: SecretKey, buffer: ByteArray, length: Int): Int {
+            // Initialise this thread's AES Cipher, and decrypt the data, skipping the first 12 bytes since that
+            // contains our IV. The decrypted data is written over the encrypted data it replaces.
+            return cipher.decrypt(key, buffer, 0, IV_LENGTH_BYTES) { cipher ->
+                cipher.doFinal(
+                    ByteBuffer.wrap(buffer, IV_LENGTH_BYTES, length - IV_LENGTH_BYTES),
+                    ByteBuffer.wrap(buffer, IV_LENGTH_BYTES, length - IV_LENGTH_BYTES),
+                )
+            }
+        }
+
+        // Each thread decodes into its own buffer, which is reused (and grown if required) for each operation.
+        private val buffers = ThreadLocal<ByteArray>()
+
+        // Each thread reuses its own Cipher, rather than looking up a new one for each operation.
+        private val cipher = ThreadLocalCipher(AUTHENTICATION_TAG_LENGTH_BITS) {
+            Cipher.getInstance(ALGORITHM_TRANSFORMATION)
+        }
+
+        // The transformation of the encryption algorithm used.
         private const val ALGORITHM_TRANSFORMATION = "AES/GCM/NoPadding"
 
         // The length of the authentication tag, in bits.
@@ -114,6 +240,9 @@ public interface DataEnvelope {
         // The length of the IV, in bytes.
         private const val IV_LENGTH_BYTES = 12
 
+        // The largest buffer retained by each thread. Responses from the API are expected to be well within this.
+        private const val MAX_RETAINED_BUFFER_BYTES = 16 * 1024
+
         // The number of bytes expected in the decoded payload that represents the timestamp and nonce (used in the
         // original request.)
         private const val PAYLOAD_TIMESTAMP_LENGTH_BYTES = 8
@@ -11,14 +11,24 @@ import javax.net.ssl.HttpsURLConnection
  *
  * If a consuming application wants to take control over the network requests, they can implement their own custom
  * [NetworkSession] and provide it when initialising the SDK via [com.uid2.UID2Manager.init]
+ *
+ * @param eventListener An optional listener, informed of how the time taken by each request was spent. Measuring the
+ * phases of a request requires some additional work, which is skipped without a listener.
  */
-public open class DefaultNetworkSession : NetworkSession {
+public open class DefaultNetworkSession @JvmOverloads constructor(
+    public val eventListener: NetworkEventListener? = null,
+) : NetworkSession {
 
     /**
      * Loads the given [URL] and [NetworkRequest] using [HttpsURLConnection].
      */
     override fun loadData(url: URL, request: NetworkRequest): NetworkResponse {
+        val listener = eventListener
+        val timer = listener?.let { RequestTimer() }
+
         try {
+            timer?.resolve(url.host)
+
             val connection = openConnection(url).apply {
                 requestMethod = request.type.toRequestMethod()
 
@@ -30,18 +40,26 @@ public open class DefaultNetworkSession : NetworkSession {
                 }
 
                 // If data was provided, this will require us to write it to the output stream.
-                request.data?.let { data ->
-                    doOutput = true
+                request.data?.let { doOutput = true }
+
+                // When timing the request, we connect explicitly so that establishing the connection can be measured
+                // separately. Otherwise, this happens implicitly as the request is sent.
+                timer?.connect(this)
 
+                request.data?.let { data ->
+                    val bytes = data.toByteArray(Charsets.UTF_8)
                     outputStream.use { outputStream ->
-                        outputStream.write(data.toByteArray(Charsets.UTF_8))
+                        outputStream.write(bytes)
                     }
+                    timer?.bytesSent = bytes.size.toLong()
                 }
             }
 
             // A successful response code should be in the [200-299] range. If we receive something outside that range, then
             // we should be reading from the errorStream rather than the standard inputStream.
+            timer?.onSent()
             val responseCode = connection.responseCode
+            timer?.onFirstByte()
             val responseStream = if (NetworkSession.isSuccess(responseCode)) {
                 connection.inputStream
             } else {
@@ -49,18 +67,28 @@ public open class DefaultNetworkSession : NetworkSession {
             }
 
             // We expect the response to be a String.
-            val responseText = runCatching {
-                responseStream.bufferedReader().use { it.readText() }
-            }.getOrDefault("")
-            return NetworkResponse(responseCode, responseText)
+            val responseBytes = runCatching {
+                responseStream.use { it.readBytes() }
+            }.getOrDefault(ByteArray(0))
+            timer?.let {
+                it.bytesReceived = responseBytes.size.toLong()
+                listener?.onRequestTimed(url, it.finish())
+            }
+
+            val responseText = responseBytes.toString(Charsets.UTF_8)
+            return NetworkResponse(responseCode, responseText, connection.getResponseHeaders())
         } catch (ex: IOException) {
             // If we're unable to make a request, e.g. due to lack of connection, we will simply report an internal
             // error.
-            return NetworkResponse(HttpURLConnection.HTTP_INTERNAL_ERROR)
+            return NetworkResponse(HttpURLConnection.HTTP_INTERNAL_ERROR, reachedServer = false)
         } catch (ex: ClassCastException) {
             // If we detect a ClassCastException, it means that the opened connection is not a HttpsURLConnection and
             // is likely just HttpURLConnection. This should not be allowed.
-            return NetworkResponse(HttpURLConnection.HTTP_INTERNAL_ERROR, "HTTPS connection not available")
+            return NetworkResponse(
+                HttpURLConnection.HTTP_INTERNAL_ERROR,
+                "HTTPS connection not available",
+                reachedServer = false,
+            )
         }
     }
 
@@ -72,6 +100,19 @@ public open class DefaultNetworkSession : NetworkSession {
      */
     public open fun openConnection(url: URL): HttpsURLConnection = (url.openConnection() as HttpsURLConnection)
 
+    /**
+     * Extension to collect the response headers from the given connection. The first value is used for any header that
+     * was included multiple times.
+     */
+    private fun HttpsURLConnection.getResponseHeaders(): Map<String, String> {
+        val headers = headerFields ?: return mapOf()
+        return headers.mapNotNull { (key, values) ->
+            // The status line is reported with a null key.
+            val value = values?.firstOrNull()
+            if (key == null || value == null) null else key to value
+        }.toMap()
+    }
+
     /**
      * Extension to convert the given NetworkRequestType into the expected request method name.
      */
@@ -0,0 +1,44 @@
+package com.uid2.network
+
+import java.text.SimpleDateFormat
+import java.util.Locale
+import java.util.TimeZone
+
+// The names of the response headers that we're interested in.
+internal const val HEADER_DATE = "Date"
+internal const val HEADER_RETRY_AFTER = "Retry-After"
+
+// The format of a HTTP-date, as defined by RFC 7231 (section 7.1.1.1).
+private const val HTTP_DATE_FORMAT = "EEE, dd MMM yyyy HH:mm:ss zzz"
+
+/**
+ * Returns the value of the given response header, if present. Header names are compared case-insensitively.
+ */
+internal fun NetworkResponse.header(name: String): String? {
+    headers[name]?.let { return it }
+    return headers.entries.firstOrNull { it.key.equals(name, ignoreCase = true) }?.value
+}
+
+/**
+ * Returns the number of milliseconds the server has asked us to wait before retrying, via the Retry-After header. This
+ * supports both the delay-seconds and HTTP-date forms, where the latter is relative to the given current time.
+ */
+internal fun NetworkResponse.getRetryAfterMs(nowMs: Long): Long? {
+    val value = header(HEADER_RETRY_AFTER)?.trim() ?: return null
+
+    value.toLongOrNull()?.let { seconds ->
+        return if (seconds < 0) null else seconds * 1000
+    }
+
+    return parseHttpDate(value)?.let { (it - nowMs).coerceAtLeast(0) }
+}
+
+/**
+ * Parses the given HTTP-date, returning the epoch time (in milliseconds). If the date is malformed, null is returned.
+ */
+internal fun parseHttpDate(value: String): Long? = runCatching {
+    // SimpleDateFormat is not thread-safe, so a new instance is used for each (infrequent) call.
+    SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US).apply {
+        timeZone = TimeZone.getTimeZone("GMT")
+    }.parse(value)?.time
+}.getOrNull()
@@ -0,0 +1,44 @@
+package com.uid2.network
+
+import java.net.URL
+
+/**
+ * A listener which can be attached to a [DefaultNetworkSession], to be informed of how the time taken by each of its
+ * requests was spent. This allows a slow request to be attributed to either the network or the server.
+ *
+ * Its methods have empty default implementations, which are also available to Java implementers.
+ */
+public interface NetworkEventListener {
+
+    /**
+     * A request has completed, and a response was received.
+     *
+     * @param url The [URL] that was requested.
+     * @param timings How the time taken by the request was spent.
+     */
+    public fun onRequestTimed(url: URL, timings: NetworkTimings): Unit = Unit
+}
+
+/**
+ * The time spent in each phase of a single request, in milliseconds.
+ *
+ * @param dnsMs The time taken to resolve the host name.
+ * @param connectMs The time taken to establish the TCP connection. This is 0 if an existing connection was reused.
+ * @param tlsMs The time taken to complete the TLS handshake. This is 0 if an existing connection was reused.
+ * @param ttfbMs The time between sending the request and receiving the first byte of the response. This includes the
+ * time the server spent processing the request.
+ * @param totalMs The total time taken by the request, including reading the response body.
+ * @param bytesSent The size, in bytes, of the request body.
+ * @param bytesReceived The size, in bytes, of the response body.
+ * @param connectionReused Whether an existing connection to the server was reused, rather than a new one established.
+ */
+public data class NetworkTimings(
+    val dnsMs: Long,
+    val connectMs: Long,
+    val tlsMs: Long,
+    val ttfbMs: Long,
+    val totalMs: Long,
+    val bytesSent: Long,
+    val bytesReceived: Long,
+    val connectionReused: Boolean,
+)
@@ -37,10 +37,17 @@ public data class NetworkRequest(
  *
  * @param code The HTTP response code received after attempting to make the request.
  * @param data The body data contained within the response. If none is available, the empty string should be provided.
+ * @param headers The headers contained within the response (in key/value pairs). Header names are matched
+ * case-insensitively.
+ * @param reachedServer Whether the response was received from the server. A session which fails to make the request,
+ * e.g. while the device is offline, and reports this as a response rather than throwing an exception, should set this
+ * to false.
  */
-public data class NetworkResponse(
+public data class NetworkResponse @JvmOverloads constructor(
     val code: Int,
     val data: String = "",
+    val headers: Map<String, String> = mapOf(),
+    val reachedServer: Boolean = true,
 )
 
 /**
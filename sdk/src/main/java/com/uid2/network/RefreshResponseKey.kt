@@ -0,0 +1,111 @@
+package com.uid2.network
+
+import com.uid2.extensions.decodeBase64
+import javax.crypto.SecretKey
+import javax.security.auth.Destroyable
+
+/**
+ * The decoded key used to decrypt the response when refreshing an identity. This allows the key to be decoded once per
+ * identity, rather than for each refresh.
+ *
+ * Unlike a [javax.crypto.spec.SecretKeySpec], the key material can be zeroed via [destroy] once the identity is no
+ * longer required. After which, the key can no longer be used. The copies returned by [getEncoded] are owned by the
+ * caller, e.g. the security provider when initialising a [javax.crypto.Cipher], and so are outside of our control.
+ */
+internal class RefreshResponseKey private constructor(private val key: ByteArray) : SecretKey, Destroyable {
+
+    @Volatile
+    private var isDestroyed = false
+
+    // The number of callers currently using the key via useOrNull, and whether its key material has been zeroed. These
+    // are guarded by the key itself.
+    private var users = 0
+    private var isCleared = false
+
+    override fun getAlgorithm() = ALGORITHM_NAME
+
+    override fun getFormat() = FORMAT
+
+    override fun getEncoded(): ByteArray {
+        synchronized(this) {
+            check(!isCleared) { "Key has been destroyed" }
+            return key.copyOf()
+        }
+    }
+
+    /**
+     * Destroys the key, so that it can no longer be used. If it's currently in use via [useOrNull], its key material is
+     * zeroed once that use completes, rather than part way through it.
+     */
+    override fun destroy() {
+        synchronized(this) {
+            isDestroyed = true
+            if (users == 0) {
+                clear()
+            }
+        }
+    }
+
+    override fun isDestroyed() = isDestroyed
+
+    /**
+     * Invokes the given block with this key, unless it has already been destroyed, in which case null is returned. The
+     * key remains usable until the block completes, even if it's destroyed concurrently.
+     */
+    inline fun <T : Any> useOrNull(block: (RefreshResponseKey) -> T): T? {
+        if (!acquire()) {
+            return null
+        }
+
+        try {
+            return block(this)
+        } finally {
+            release()
+        }
+    }
+
+    // Marks the key as in use, unless it has already been destroyed. Each successful call must be paired with release.
+    fun acquire(): Boolean {
+        synchronized(this) {
+            if (isDestroyed) {
+                return false
+            }
+
+            users++
+            return true
+        }
+    }
+
+    fun release() {
+        synchronized(this) {
+            users--
+            if (isDestroyed && users == 0) {
+                clear()
+            }
+        }
+    }
+
+    private fun clear() {
+        isCleared = true
+        key.fill(0)
+    }
+
+    companion object {
+        private const val ALGORITHM_NAME = "AES"
+        private const val FORMAT = "RAW"
+
+        /**
+         * Decodes the given key, as provided in Base64 format by the API. If the key can't be decoded, null is
+         * returned.
+         */
+        fun decode(key: String): RefreshResponseKey? = key.decodeBase64()?.takeIf { it.isNotEmpty() }?.let {
+            RefreshResponseKey(it)
+        }
+
+        /**
+         * Wraps the given key material, without copying it. Destroying the returned key zeroes the given array, so
+         * this should only be done by the array's owner.
+         */
+        fun wrap(key: ByteArray): RefreshResponseKey = RefreshResponseKey(key)
+    }
+}
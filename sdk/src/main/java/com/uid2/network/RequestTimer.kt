@@ -0,0 +1,137 @@
+package com.uid2.network
+
+import java.lang.ref.WeakReference
+import java.net.InetAddress
+import java.net.Socket
+import java.net.URL
+import java.util.WeakHashMap
+import java.util.concurrent.TimeUnit
+import javax.net.ssl.HttpsURLConnection
+import javax.net.ssl.SSLSocketFactory
+
+/**
+ * Records the time at which each phase of a single request completed, so that the [NetworkTimings] can be reported.
+ *
+ * [HttpsURLConnection] doesn't report its own phases, so they are observed from the outside. The host name is resolved
+ * ahead of the connection, which then uses the cached result. A new connection is detected by the connection's
+ * [SSLSocketFactory] being asked to layer TLS over the TCP socket it has just connected, and the TLS handshake is
+ * complete once [HttpsURLConnection.connect] returns.
+ */
+internal class RequestTimer(private val clock: () -> Long = System::nanoTime) {
+    private val start = clock()
+    private var resolved = start
+    private var tcpConnected: Long? = null
+    private var connected = start
+    private var sent = start
+    private var firstByte = start
+
+    var bytesSent = 0L
+    var bytesReceived = 0L
+
+    /**
+     * Resolves the given host name, so that the connection's own lookup is served from the cache.
+     */
+    fun resolve(host: String) {
+        InetAddress.getAllByName(host)
+        resolved = clock()
+    }
+
+    /**
+     * Connects the given connection, observing whether a new TCP connection is established along the way.
+     */
+    fun connect(connection: HttpsURLConnection) {
+        connection.sslSocketFactory = TimingSocketFactory.wrap(connection.sslSocketFactory)
+
+        current.set(this)
+        try {
+            connection.connect()
+        } finally {
+            current.remove()
+        }
+
+        connected = clock()
+    }
+
+    fun onTcpConnected() {
+        tcpConnected = clock()
+    }
+
+    fun onSent() {
+        sent = clock()
+    }
+
+    fun onFirstByte() {
+        firstByte = clock()
+    }
+
+    /**
+     * Completes the request, returning how long was spent in each phase.
+     */
+    fun finish(): NetworkTimings {
+        val end = clock()
+        val tcp = tcpConnected
+
+        return NetworkTimings(
+            dnsMs = toMillis(resolved - start),
+            connectMs = if (tcp == null) 0 else toMillis(tcp - resolved),
+            tlsMs = if (tcp == null) 0 else toMillis(connected - tcp),
+            ttfbMs = toMillis(firstByte - sent),
+            totalMs = toMillis(end - start),
+            bytesSent = bytesSent,
+            bytesReceived = bytesReceived,
+            connectionReused = tcp == null,
+        )
+    }
+
+    private fun toMillis(nanos: Long) = TimeUnit.NANOSECONDS.toMillis(nanos.coerceAtLeast(0))
+
+    /**
+     * An [SSLSocketFactory] that informs the [RequestTimer] of the current thread when a new socket is created. Any
+     * other behaviour is delegated to the wrapped factory.
+     *
+     * Unconnected sockets are deliberately not supported. This makes the connection establish the TCP connection
+     * itself, before asking us to layer TLS over it, so that the two phases can be told apart.
+     */
+    private class TimingSocketFactory(private val delegate: SSLSocketFactory) : SSLSocketFactory() {
+        override fun getDefaultCipherSuites(): Array<String> = delegate.defaultCipherSuites
+        override fun getSupportedCipherSuites(): Array<String> = delegate.supportedCipherSuites
+
+        override fun createSocket(socket: Socket, host: String, port: Int, autoClose: Boolean): Socket =
+            delegate.createSocket(socket, host, port, autoClose).also { current.get()?.onTcpConnected() }
+
+        override fun createSocket(host: String, port: Int): Socket =
+            delegate.createSocket(host, port).also { current.get()?.onTcpConnected() }
+
+        override fun createSocket(host: String, port: Int, localHost: InetAddress, localPort: Int): Socket =
+            delegate.createSocket(host, port, localHost, localPort).also { current.get()?.onTcpConnected() }
+
+        override fun createSocket(host: InetAddress, port: Int): Socket =
+            delegate.createSocket(host, port).also { current.get()?.onTcpConnected() }
+
+        override fun createSocket(address: InetAddress, port: Int, localAddress: InetAddress, localPort: Int): Socket =
+            delegate.createSocket(address, port, localAddress, localPort).also { current.get()?.onTcpConnected() }
+
+        companion object {
+            // Keyed by identity, since SSLSocketFactory doesn't override equals. The wrappers are only weakly held, as
+            // they reference their key, and are otherwise kept alive by any pooled connection that uses them.
+            private val wrappers = WeakHashMap<SSLSocketFactory, WeakReference<TimingSocketFactory>>()
+
+            /**
+             * Wraps the given factory. The same wrapper is returned for the same factory, since the platform only
+             * reuses pooled connections that were established with an identical factory.
+             */
+            fun wrap(factory: SSLSocketFactory): SSLSocketFactory = synchronized(wrappers) {
+                if (factory is TimingSocketFactory) {
+                    return factory
+                }
+
+                wrappers[factory]?.get() ?: TimingSocketFactory(factory).also { wrappers[factory] = WeakReference(it) }
+            }
+        }
+    }
+
+    private companion object {
+        // The timer of the request currently being connected on each thread.
+        val current = ThreadLocal<RequestTimer?>()
+    }
+}
@@ -0,0 +1,45 @@
+package com.uid2.network
+
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.withContext
+import java.net.URL
+
+/**
+ * A variant of [NetworkSession] which suspends, rather than blocks, while waiting for the network. Consumers whose
+ * networking stack is asynchronous (e.g. OkHttp's `Call.enqueue`) can implement this interface so that no thread is
+ * held for the duration of a request.
+ *
+ * An existing [NetworkSession] can be adapted via [asSuspending].
+ */
+public interface SuspendingNetworkSession {
+
+    /**
+     * Requests the given URL with the details provided in the request.
+     *
+     * @param url The [URL] endpoint associated with the request.
+     * @param request The details of the required request.
+     * @return The [NetworkResponse] which contains the outcome of the attempted request.
+     */
+    public suspend fun loadData(url: URL, request: NetworkRequest): NetworkResponse
+}
+
+/**
+ * Adapts a blocking [NetworkSession] into a [SuspendingNetworkSession]. Each request will be made on the given
+ * [CoroutineDispatcher], which is expected to allow blocking calls.
+ */
+@JvmOverloads
+public fun NetworkSession.asSuspending(dispatcher: CoroutineDispatcher = Dispatchers.IO): SuspendingNetworkSession =
+    BlockingNetworkSessionAdapter(this, dispatcher)
+
+/**
+ * A [SuspendingNetworkSession] that delegates to a blocking [NetworkSession], on the given [CoroutineDispatcher].
+ */
+internal class BlockingNetworkSessionAdapter(
+    val session: NetworkSession,
+    private val dispatcher: CoroutineDispatcher,
+) : SuspendingNetworkSession {
+    override suspend fun loadData(url: URL, request: NetworkRequest): NetworkResponse = withContext(dispatcher) {
+        session.loadData(url, request)
+    }
+}
@@ -0,0 +1,106 @@
+package com.uid2.network
+
+import java.lang.ref.WeakReference
+import java.security.InvalidAlgorithmParameterException
+import java.security.Key
+import javax.crypto.Cipher
+import javax.crypto.spec.GCMParameterSpec
+import javax.crypto.spec.SecretKeySpec
+
+/**
+ * Provides each thread with its own AES/GCM [Cipher], so that the (expensive) provider lookup performed by
+ * [Cipher.getInstance] only happens once per thread rather than once per operation. A [Cipher] isn't thread-safe, so
+ * confining each one to a single thread allows it to be reused without any locking.
+ *
+ * The [Cipher] is re-initialised for every operation, so no state is carried over between them. If an operation fails,
+ * the thread's [Cipher] is discarded, in case it was left in an unexpected state. After each operation, the [Cipher] is
+ * re-initialised with a throwaway key, so that the provider doesn't keep the last key (or its schedule) for as long as
+ * the thread lives.
+ *
+ * @param tagLengthBits The length of the GCM authentication tag, in bits.
+ * @param newCipher Creates a new [Cipher] for a thread.
+ */
+internal class ThreadLocalCipher(
+    private val tagLengthBits: Int,
+    private val newCipher: () -> Cipher,
+) {
+
+    /**
+     * A thread's [Cipher], along with the key and IV it was last initialised to encrypt with.
+     */
+    private class State(val cipher: Cipher) {
+        var lastKey: WeakReference<Key>? = null
+        var lastIv: ByteArray? = null
+    }
+
+    private val states = object : ThreadLocal<State>() {
+        override fun initialValue() = State(newCipher())
+    }
+
+    /**
+     * Initialises the current thread's [Cipher] to encrypt with the given key and IV, and then invokes the given block
+     * with it.
+     *
+     * An IV must never be used twice with the same key in GCM, and it's the caller's responsibility to generate a
+     * unique IV for each encryption. As a last line of defence, we refuse to initialise the [Cipher] with the same key
+     * object and IV that this thread last encrypted with. This only detects a caller repeating the same operation on
+     * the same thread; it doesn't detect reuse across threads, or with distinct key objects holding the same material.
+     *
+     * @throws InvalidAlgorithmParameterException If the key and IV match the previous encryption on this thread.
+     */
+    fun <T> encrypt(key: Key, iv: ByteArray, block: (Cipher) -> T): T {
+        val state = states.get()!!
+        if (state.lastKey?.get() === key && state.lastIv.contentEquals(iv)) {
+            throw InvalidAlgorithmParameterException("Cannot reuse IV for GCM encryption")
+        }
+
+        return use(state) { cipher ->
+            cipher.init(Cipher.ENCRYPT_MODE, key, GCMParameterSpec(tagLengthBits, iv))
+            state.lastKey = WeakReference(key)
+            state.lastIv = iv.copyOf()
+
+            block(cipher)
+        }
+    }
+
+    /**
+     * Initialises the current thread's [Cipher] to decrypt with the given key, and the IV held in the given range of
+     * [data], and then invokes the given block with it.
+     */
+    fun <T> decrypt(key: Key, data: ByteArray, ivOffset: Int, ivLength: Int, block: (Cipher) -> T): T {
+        val state = states.get()!!
+
+        return use(state) { cipher ->
+            cipher.init(Cipher.DECRYPT_MODE, key, GCMParameterSpec(tagLengthBits, data, ivOffset, ivLength))
+            block(cipher)
+        }
+    }
+
+    private inline fun <T> use(state: State, block: (Cipher) -> T): T {
+        try {
+            return block(state.cipher)
+        } catch (ex: Exception) {
+            // The Cipher may have been left mid-operation, so it's replaced rather than reused.
+            states.remove()
+            throw ex
+        } finally {
+            clearKey(state.cipher)
+        }
+    }
+
+    /**
+     * Re-initialises the given [Cipher] with a throwaway key, replacing the key it was last used with. This is done for
+     * decryption, since a provider may refuse to initialise encryption with the same key and IV it last used.
+     */
+    private fun clearKey(cipher: Cipher) {
+        runCatching {
+            cipher.init(Cipher.DECRYPT_MODE, CLEAR_KEY, GCMParameterSpec(tagLengthBits, CLEAR_IV))
+        }
+    }
+
+    private companion object {
+        // The all-zero key (and IV) a Cipher is re-initialised with once it's been used.
+        val CLEAR_KEY = SecretKeySpec(ByteArray(16), "AES")
+        val CLEAR_IV = ByteArray(12)
+    }
+}
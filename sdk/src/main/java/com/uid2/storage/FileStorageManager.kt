@@ -1,9 +1,15 @@
 package com.uid2.storage
 
 import android.content.Context
+import com.uid2.UID2Metrics
+import com.uid2.UID2Metrics.StorageOperation
+import com.uid2.data.IdentitySnapshot
 import com.uid2.data.IdentityStatus
+import com.uid2.data.IdentityStatus.ESTABLISHED
 import com.uid2.data.IdentityStatus.NO_IDENTITY
+import com.uid2.data.IdentityStatus.REFRESHED
 import com.uid2.data.UID2Identity
+import com.uid2.utils.TimeUtils
 import kotlinx.coroutines.CoroutineDispatcher
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.withContext
@@ -11,11 +17,14 @@ import org.json.JSONObject
 import java.io.File
 
 /**
- * An implementation of the StorageManager that persists UID2Identity instances in clear-text via a File.
+ * An implementation of the StorageManager that persists UID2Identity instances in clear-text via a File. The outcome
+ * and duration of each operation is reported to the given [UID2Metrics].
  */
 internal class FileStorageManager(
     val identityFileFactory: () -> File,
     private val ioDispatcher: CoroutineDispatcher = Dispatchers.IO,
+    private val metrics: UID2Metrics = UID2Metrics.NONE,
+    private val timeUtils: TimeUtils = TimeUtils,
 ) : StorageManager {
 
     enum class Store(val filename: String) {
@@ -30,12 +39,22 @@ internal class FileStorageManager(
     // On Android 10+, this location is also likely encrypted.
     //
     // https://developer.android.com/training/data-storage/app-specific#internal-access-files
-    constructor(context: Context, store: Store) : this({ File(context.filesDir, store.filename) })
+    constructor(
+        context: Context,
+        store: Store,
+        metrics: UID2Metrics = UID2Metrics.NONE,
+        timeUtils: TimeUtils = TimeUtils,
+    ) : this({ File(context.filesDir, store.filename) }, Dispatchers.IO, metrics, timeUtils)
 
     // This lazy value *should* only be requested on the ioDispatcher.
     private val identityFile: File by lazy { identityFileFactory() }
 
+    // The snapshot is stored alongside the identity, in a simple format that's quick to parse. Since it's read
+    // synchronously, this may be requested from any thread.
+    private val snapshotFile: File by lazy { File("${identityFile.path}$SNAPSHOT_SUFFIX") }
+
     override suspend fun saveIdentity(identity: UID2Identity, status: IdentityStatus) = withContext(ioDispatcher) {
+        val start = timeUtils.now()
         runCatching {
             identityFile.bufferedWriter(charset).use { writer ->
 
@@ -46,27 +65,66 @@ internal class FileStorageManager(
                 writer.write(identityJson.toString(0))
                 return@use true
             }
-        }.getOrDefault(false)
+        }.getOrDefault(false).also {
+            saveSnapshot(identity, status)
+            metrics.onStorage(StorageOperation.SAVE, it, timeUtils.now() - start)
+        }
     }
 
-    override suspend fun loadIdentity(): Pair<UID2Identity?, IdentityStatus> = withContext(ioDispatcher) {
+    private fun saveSnapshot(identity: UID2Identity, status: IdentityStatus) {
+        // The advertising token is only useful if the identity is currently valid.
+        if (status != ESTABLISHED && status != REFRESHED) {
+            snapshotFile.delete()
+            return
+        }
+
+        // The snapshot is written to a temporary file which then replaces it, so that a reader never observes a partial
+        // write. The length of the token is also included, so that a truncated snapshot can be detected and ignored.
         runCatching {
+            val token = identity.advertisingToken
+            val tempFile = File("${snapshotFile.path}$TEMP_SUFFIX")
+            tempFile.writeText("${identity.identityExpires}\n${token.length}\n$token", charset)
+            if (!tempFile.renameTo(snapshotFile)) {
+                tempFile.delete()
+                snapshotFile.delete()
+            }
+        }
+    }
+
+    override suspend fun loadIdentity(): Pair<UID2Identity?, IdentityStatus> = withContext(ioDispatcher) {
+        val start = timeUtils.now()
+        val result = runCatching {
             val identityJson = JSONObject(identityFile.readText(charset))
             return@runCatching Pair(
                 UID2Identity.fromJson(identityJson),
                 IdentityStatus.fromValue(identityJson.getInt(KEY_STATUS)),
             )
-        }.getOrDefault(Pair(null, NO_IDENTITY))
+        }
+
+        // Not having previously persisted an identity isn't considered a failure.
+        metrics.onStorage(StorageOperation.LOAD, result.isSuccess || !identityFile.exists(), timeUtils.now() - start)
+        result.getOrDefault(Pair(null, NO_IDENTITY))
     }
 
+    override fun loadSnapshot(): IdentitySnapshot? = runCatching {
+        val (expires, length, token) = snapshotFile.readText(charset).split('\n', limit = 3)
+        IdentitySnapshot(token, expires.toLong()).takeIf { token.length == length.toInt() }
+    }.getOrNull()
+
     override suspend fun clear() = withContext(ioDispatcher) {
-        identityFile.delete()
+        val start = timeUtils.now()
+        snapshotFile.delete()
+        identityFile.delete().also {
+            metrics.onStorage(StorageOperation.CLEAR, it, timeUtils.now() - start)
+        }
     }
 
     private companion object {
         const val UID2_FILE_IDENTITY = "uid2_identity.json"
         const val EUID_FILE_IDENTITY = "euid_identity.json"
         const val KEY_STATUS = "identity_status"
+        const val SNAPSHOT_SUFFIX = ".snapshot"
+        const val TEMP_SUFFIX = ".tmp"
 
         // The character set used for both reading and writing to the file.
         val charset = Charsets.UTF_8
@@ -1,5 +1,6 @@
 package com.uid2.storage
 
+import com.uid2.data.IdentitySnapshot
 import com.uid2.data.IdentityStatus
 import com.uid2.data.UID2Identity
 
@@ -17,6 +18,12 @@ internal interface StorageManager {
      */
     suspend fun loadIdentity(): Pair<UID2Identity?, IdentityStatus>
 
+    /**
+     * Loads the snapshot of the last known advertising token, if available. Unlike [loadIdentity], this is performed
+     * synchronously on the calling thread, so should only be used when the identity is needed immediately.
+     */
+    fun loadSnapshot(): IdentitySnapshot?
+
     /**
      * Clears any previously stored data.
      */
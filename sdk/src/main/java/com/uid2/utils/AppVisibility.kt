@@ -0,0 +1,111 @@
+package com.uid2.utils
+
+import android.app.Activity
+import android.app.ActivityManager
+import android.app.Application
+import android.content.Context
+import android.os.Bundle
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.asStateFlow
+import kotlinx.coroutines.flow.first
+
+/**
+ * Observes whether the application is currently visible to the user. This allows work that is only useful while the
+ * app is in use, such as refreshing an identity ahead of time, to be deferred while it's in the background.
+ */
+internal interface AppVisibility {
+
+    /**
+     * Whether the application is currently in the foreground.
+     */
+    val isForeground: StateFlow<Boolean>
+}
+
+/**
+ * Suspends until the application is in the foreground. If it's already in the foreground, this returns immediately.
+ */
+internal suspend fun AppVisibility.awaitForeground() {
+    isForeground.first { it }
+}
+
+/**
+ * An [AppVisibility] that always reports the application as being in the foreground. This is used when background
+ * deferral isn't enabled, or the visibility of the app can't be observed, so that no work is ever deferred.
+ */
+internal object AlwaysForeground : AppVisibility {
+    override val isForeground: StateFlow<Boolean> = MutableStateFlow(true).asStateFlow()
+}
+
+/**
+ * An [AppVisibility] backed by the [Application]'s activity lifecycle. The app is considered to be in the foreground
+ * while at least one of its activities is started, which matches what `ProcessLifecycleOwner` reports without requiring
+ * the additional dependency.
+ */
+internal class ActivityLifecycleVisibility private constructor(
+    initialForeground: Boolean,
+) : AppVisibility, Application.ActivityLifecycleCallbacks {
+
+    private val foreground = MutableStateFlow(initialForeground)
+    override val isForeground: StateFlow<Boolean> = foreground.asStateFlow()
+
+    // The callbacks are always invoked on the main thread, so these don't need to be synchronized. Any activities that
+    // were started before we were registered are not counted, but are allowed for when they stop.
+    private var startedCount = 0
+    private var isChangingConfigurations = false
+
+    override fun onActivityStarted(activity: Activity) {
+        // An activity being recreated, e.g. due to rotation, doesn't mean the app has left and returned.
+        if (isChangingConfigurations) {
+            isChangingConfigurations = false
+            return
+        }
+
+        startedCount++
+        foreground.value = true
+    }
+
+    override fun onActivityStopped(activity: Activity) {
+        if (activity.isChangingConfigurations) {
+            isChangingConfigurations = true
+            return
+        }
+
+        // Activities may have been started before we were registered, so we can't let the count go below zero.
+        startedCount = (startedCount - 1).coerceAtLeast(0)
+        foreground.value = startedCount > 0
+    }
+
+    override fun onActivityCreated(activity: Activity, savedInstanceState: Bundle?): Unit = Unit
+    override fun onActivityResumed(activity: Activity): Unit = Unit
+    override fun onActivityPaused(activity: Activity): Unit = Unit
+    override fun onActivitySaveInstanceState(activity: Activity, outState: Bundle): Unit = Unit
+    override fun onActivityDestroyed(activity: Activity): Unit = Unit
+
+    companion object {
+
+        /**
+         * Creates an [AppVisibility] for the given [Context]. If the activity lifecycle can't be observed, because we
+         * weren't given access to the [Application], an [AlwaysForeground] is returned.
+         */
+        fun create(context: Context): AppVisibility {
+            val application = context.applicationContext as? Application ?: return AlwaysForeground
+
+            return runCatching {
+                ActivityLifecycleVisibility(isProcessForeground()).apply {
+                    application.registerActivityLifecycleCallbacks(this)
+                }
+            }.getOrElse { AlwaysForeground }
+        }
+
+        /**
+         * Returns whether the process is currently considered to be in the foreground. If this can't be determined, we
+         * assume it is, so that no work is deferred by mistake.
+         */
+        private fun isProcessForeground(): Boolean = runCatching {
+            val info = ActivityManager.RunningAppProcessInfo()
+            ActivityManager.getMyMemoryState(info)
+            info.importance <= ActivityManager.RunningAppProcessInfo.IMPORTANCE_VISIBLE
+        }.getOrDefault(true)
+    }
+}
@@ -0,0 +1,163 @@
+package com.uid2.utils
+
+import com.uid2.UID2Metrics
+import com.uid2.UID2Metrics.PayloadFailure
+import com.uid2.UID2Metrics.Request
+import com.uid2.UID2Metrics.StorageOperation
+import com.uid2.data.IdentityStatus
+import com.uid2.network.NetworkTimings
+import java.net.URL
+import java.text.SimpleDateFormat
+import java.util.Date
+import java.util.Locale
+import java.util.TimeZone
+
+/**
+ * A fixed-size record of the most recent events within the SDK, such as changes in status, requests made to the API
+ * and the outcome of storage operations. Unlike the [Logger], this is always enabled, so that the events leading up to
+ * a problem (e.g. a missing identity) are available after the fact, and can be included in a bug report.
+ *
+ * Each event is stored as a handful of primitives in a pre-allocated array, overwriting the oldest, so recording one
+ * requires no allocations and no formatting. The events are only formatted when the log is dumped.
+ *
+ * This receives events as a [UID2Metrics], and forwards each of them on to the given [metrics]. If a
+ * [publicKeyCache] is given, how often it avoided parsing the server's public key is included when the log is dumped.
+ */
+internal class DiagnosticLog(
+    private val clock: Clock = Clock(System::currentTimeMillis),
+    private val metrics: UID2Metrics = UID2Metrics.NONE,
+    private val capacity: Int = DEFAULT_CAPACITY,
+    private val publicKeyCache: PublicKeyCache? = null,
+) : UID2Metrics {
+
+    private enum class Event {
+        STATUS,
+        REQUEST,
+        PAYLOAD_FAILURE,
+        REFRESH_RETRY,
+        TOKEN_UNAVAILABLE,
+        STORAGE,
+    }
+
+    private val lock = Any()
+
+    // Each entry is stored as FIELDS consecutive values: time, event, and two event specific arguments.
+    private val entries = LongArray(capacity * FIELDS)
+
+    // The total number of events recorded. The oldest entry is overwritten once this exceeds the capacity.
+    private var count = 0L
+
+    override fun onRequest(request: Request, statusCode: Int, latencyMs: Long) {
+        record(Event.REQUEST, request.ordinal.toLong() shl 32 or (statusCode.toLong() and 0xFFFFFFFFL), latencyMs)
+        metrics.onRequest(request, statusCode, latencyMs)
+    }
+
+    override fun onPayloadFailure(request: Request, failure: PayloadFailure) {
+        record(Event.PAYLOAD_FAILURE, request.ordinal.toLong(), failure.ordinal.toLong())
+        metrics.onPayloadFailure(request, failure)
+    }
+
+    override fun onRefreshRetry(attempt: Long, delayMs: Long) {
+        record(Event.REFRESH_RETRY, attempt, delayMs)
+        metrics.onRefreshRetry(attempt, delayMs)
+    }
+
+    override fun onStatusChanged(previous: IdentityStatus?, status: IdentityStatus, durationMs: Long) {
+        record(Event.STATUS, (previous?.ordinal?.toLong() ?: NO_STATUS) shl 32 or status.ordinal.toLong(), durationMs)
+        metrics.onStatusChanged(previous, status, durationMs)
+    }
+
+    override fun onTokenUnavailable(durationMs: Long) {
+        record(Event.TOKEN_UNAVAILABLE, 0, durationMs)
+        metrics.onTokenUnavailable(durationMs)
+    }
+
+    override fun onStorage(operation: StorageOperation, success: Boolean, durationMs: Long) {
+        record(Event.STORAGE, operation.ordinal.toLong() shl 32 or (if (success) 1L else 0L), durationMs)
+        metrics.onStorage(operation, success, durationMs)
+    }
+
+    override fun onRequestTimed(url: URL, timings: NetworkTimings) {
+        // These are already summarised by the corresponding request event, so aren't recorded.
+        metrics.onRequestTimed(url, timings)
+    }
+
+    private fun record(event: Event, arg1: Long, arg2: Long) {
+        val time = clock.millis()
+
+        synchronized(lock) {
+            val index = (count % capacity).toInt() * FIELDS
+            entries[index] = time
+            entries[index + 1] = event.ordinal.toLong()
+            entries[index + 2] = arg1
+            entries[index + 3] = arg2
+            count++
+        }
+    }
+
+    /**
+     * Returns the recorded events, oldest first, with one event per line.
+     */
+    fun dump(): String {
+        val (total, copy) = synchronized(lock) { count to entries.copyOf() }
+        val retained = minOf(total, capacity.toLong()).toInt()
+
+        val dateFormat = SimpleDateFormat(DATE_FORMAT, Locale.US).apply { timeZone = TimeZone.getTimeZone("UTC") }
+
+        return buildString {
+            append("Diagnostics: ").append(total).append(" events, showing the last ").append(retained).append('\n')
+            publicKeyCache?.let { cache ->
+                append("Server public key cache: ").append(cache.hits).append(" hits, ")
+                    .append(cache.misses).append(" misses\n")
+            }
+
+            for (i in 0 until retained) {
+                val index = ((total - retained + i) % capacity).toInt() * FIELDS
+                append(dateFormat.format(Date(copy[index]))).append(' ')
+                appendEvent(Event.entries[copy[index + 1].toInt()], copy[index + 2], copy[index + 3])
+                append('\n')
+            }
+        }
+    }
+
+    private fun StringBuilder.appendEvent(event: Event, arg1: Long, arg2: Long) {
+        val high = (arg1 ushr 32).toInt()
+        val low = arg1.toInt()
+
+        when (event) {
+            Event.STATUS -> append("status ")
+                .append(if (high == NO_STATUS.toInt()) "LOADING" else IdentityStatus.entries[high].name)
+                .append(" -> ").append(IdentityStatus.entries[low].name)
+                .append(" (held ").append(arg2).append("ms)")
+
+            Event.REQUEST -> append("request ").append(Request.entries[high].name)
+                .append(" -> HTTP ").append(low)
+                .append(" (").append(arg2).append("ms)")
+
+            Event.PAYLOAD_FAILURE -> append("payload ").append(Request.entries[low].name)
+                .append(" failed: ").append(PayloadFailure.entries[arg2.toInt()].name)
+
+            Event.REFRESH_RETRY -> append("refresh retry after attempt ").append(arg1)
+                .append(" in ").append(arg2).append("ms")
+
+            Event.TOKEN_UNAVAILABLE -> append("token available after ").append(arg2).append("ms")
+
+            Event.STORAGE -> append("storage ").append(StorageOperation.entries[high].name)
+                .append(if (low == 1) " succeeded" else " failed")
+                .append(" (").append(arg2).append("ms)")
+        }
+    }
+
+    private companion object {
+        // The number of events retained.
+        const val DEFAULT_CAPACITY = 128
+
+        // The number of values stored for each event.
+        const val FIELDS = 4
+
+        // Represents a missing (null) status.
+        const val NO_STATUS = 0xFFFFFFFFL
+
+        const val DATE_FORMAT = "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'"
+    }
+}
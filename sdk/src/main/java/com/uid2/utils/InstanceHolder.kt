@@ -0,0 +1,32 @@
+package com.uid2.utils
+
+/**
+ * Holds a lazily created singleton instance, making sure that it's only ever created once even if requested from
+ * multiple threads at the same time.
+ *
+ * Once the instance has been published, reading it requires no locking. Only the threads racing to create it will
+ * synchronize, so that exactly one of them runs the factory.
+ */
+internal class InstanceHolder<T : Any> {
+    @Volatile
+    private var instance: T? = null
+
+    /**
+     * The instance, if it has already been created.
+     */
+    val value: T?
+        get() = instance
+
+    /**
+     * Returns the instance, using the given factory to create it if it doesn't yet exist.
+     */
+    fun getOrCreate(factory: () -> T): T = instance ?: synchronized(this) {
+        instance ?: factory().also { instance = it }
+    }
+
+    /**
+     * Runs the given block while holding the lock used to create the instance. This allows the state read by a factory
+     * to be set up without a thread creating the instance observing it part way through.
+     */
+    fun <R> withLock(block: () -> R): R = synchronized(this) { block() }
+}
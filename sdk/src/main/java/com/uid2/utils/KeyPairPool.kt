@@ -0,0 +1,163 @@
+package com.uid2.utils
+
+import android.os.SystemClock
+import java.security.KeyPair
+import android.os.SystemClock
+import java.security.KeyPairGenerator
+import java.security.spec.ECGenParameterSpec
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.Executor
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * A small pool of freshly generated, single-use client [KeyPair]s, which are required when generating an identity.
+ * Generating a key pair is one of the most expensive parts of that request, so doing it ahead of time, on a low
+ * priority background thread, takes it off the critical path after the user logs in.
+ *
+ * Each key pair is removed from the pool when it's taken, so it's never handed out twice. Taking one triggers the pool
+ * to be refilled in the background. A key pair that has been held for longer than [maxAgeMs] is discarded rather than
+ * taken, so that an app that rarely generates an identity isn't handed a key pair generated long ago.
+ */
+internal class KeyPairPool(
+    private val capacity: Int,
+    private val maxAgeMs: Long,
+    private val executor: Executor,
+    private val clock: Clock,
+    private val generate: () -> KeyPair?,
+) {
+
+    /**
+     * Creates a pool holding up to [capacity] key pairs, which immediately begins generating them in the background.
+     */
+    constructor(capacity: Int = DEFAULT_CAPACITY) : this(
+        capacity,
+        DEFAULT_MAX_AGE_MS,
+        newBackgroundExecutor(),
+        Clock(SystemClock::elapsedRealtime),
+        ThreadConfinedGenerator(),
+    )
+
+    /**
+     * A key pair held by the pool, along with when it was generated (according to the [clock]).
+     */
+    private class PooledKeyPair(val keyPair: KeyPair, val generatedMs: Long)
+
+    private val keyPairs = ConcurrentLinkedQueue<PooledKeyPair>()
+    private val isFilling = AtomicBoolean(false)
+
+    init {
+        fill()
+    }
+
+    /**
+     * The number of key pairs that are currently available to be taken, i.e. that haven't exceeded the maximum age.
+     */
+    val available: Int
+        get() = keyPairs.count { !it.isExpired() }
+
+    /**
+     * Takes a key pair from the pool, or returns null if none are currently available. Any key pairs that have exceeded
+     * the maximum age are discarded along the way, and replaced when the pool is refilled.
+     */
+    fun take(): KeyPair? {
+        var taken = keyPairs.poll()
+        while (taken != null && taken.isExpired()) {
+            taken = keyPairs.poll()
+        }
+
+        fill()
+        return taken?.keyPair
+    }
+
+    private fun PooledKeyPair.isExpired() = clock.millis() - generatedMs >= maxAgeMs
+
+    private fun fill() {
+        if (keyPairs.size >= capacity || !isFilling.compareAndSet(false, true)) {
+            return
+        }
+
+        try {
+            executor.execute {
+                var failed = false
+                try {
+                    while (keyPairs.size < capacity) {
+                        val keyPair = generate()
+                        if (keyPair == null) {
+                            failed = true
+                            break
+                        }
+
+                        keyPairs.add(PooledKeyPair(keyPair, clock.millis()))
+                    }
+                } finally {
+                    isFilling.set(false)
+                }
+
+                // A key pair may have been taken after we last checked, but before we cleared the flag. That request to
+                // refill would have been ignored.
+                if (!failed) {
+                    fill()
+                }
+            }
+        } catch (ex: RejectedExecutionException) {
+            isFilling.set(false)
+        }
+    }
+
+    /**
+     * Generates key pairs with a single [KeyPairGenerator], rather than looking one up for each. This is only invoked
+     * from the pool's single background thread, one key pair at a time.
+     */
+    private class ThreadConfinedGenerator : () -> KeyPair? {
+        private var generator: KeyPairGenerator? = null
+
+        override fun invoke(): KeyPair? = runCatching {
+            val generator = generator ?: KeyPairGenerator.getInstance("EC").apply {
+                initialize(ECGenParameterSpec("secp256r1"))
+            }.also { generator = it }
+
+            generator.genKeyPair()
+        }.getOrNull()
+    }
+
+    private companion object {
+        const val DEFAULT_CAPACITY = 2
+        const val DEFAULT_MAX_AGE_MS = 60 * 60 * 1000L // 1 hour
+
+        // How long the background thread is kept alive, once the pool is full.
+        const val KEEP_ALIVE_SECONDS = 5L
+
+        /**
+         * Creates an [Executor] backed by a single, lowest priority, daemon thread. The thread is only kept alive while
+         * there's work to be done, so an idle pool holds no threads.
+         */
+        fun newBackgroundExecutor(): Executor = ThreadPoolExecutor(
+            0,
+            1,
+            KEEP_ALIVE_SECONDS,
+            TimeUnit.SECONDS,
+            LinkedBlockingQueue(),
+        ) { runnable ->
+            Thread(runnable, "uid2-key-pairs").apply {
+                isDaemon = true
+                priority = Thread.MIN_PRIORITY
+            }
+        }
+    }
+}
+
+/**
+ * A [KeyUtils] which takes client key pairs from the given [KeyPairPool], falling back to generating one on demand if
+ * the pool is empty. Everything else is provided by the given [delegate].
+ */
+internal class PooledKeyUtils(
+    private val pool: KeyPairPool,
+    private val delegate: KeyUtils = KeyUtils,
+) : KeyUtils by delegate {
+
+    override fun generateKeyPair(): KeyPair? = pool.take() ?: delegate.generateKeyPair()
+}
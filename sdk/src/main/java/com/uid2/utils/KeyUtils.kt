@@ -1,14 +1,11 @@
 package com.uid2.utils
 
-import com.uid2.extensions.decodeBase64
 import org.json.JSONArray
-import java.security.KeyFactory
 import java.security.KeyPair
 import java.security.KeyPairGenerator
 import java.security.PublicKey
 import java.security.SecureRandom
 import java.security.spec.ECGenParameterSpec
-import java.security.spec.X509EncodedKeySpec
 import javax.crypto.KeyAgreement
 import javax.crypto.SecretKey
 import javax.crypto.spec.SecretKeySpec
@@ -28,7 +25,8 @@ internal interface KeyUtils {
     fun generateIv(length: Int): ByteArray
 
     /**
-     * Generates the [PublicKey] that was provided by the UID2 API server.
+     * Generates the [PublicKey] that was provided by the UID2 API server. The default implementation caches the parsed
+     * key, since the same one is expected each time.
      */
     fun generateServerPublicKey(publicKey: String): PublicKey?
 
@@ -55,24 +53,7 @@ internal interface KeyUtils {
             return ByteArray(length).apply { random.nextBytes(this) }
         }
 
-        override fun generateServerPublicKey(publicKey: String): PublicKey? {
-            // Check to make sure the given public key is longer than the expected prefix.
-            if (publicKey.length <= SERVER_PUBLIC_KEY_PREFIX_LENGTH) {
-                return null
-            }
-
-            // Attempt to decode the given public key. If the key is malformed, or not in the expected Base64 format,
-            // null we be returned.
-            val serverPublicKeyBytes =
-                publicKey.substring(SERVER_PUBLIC_KEY_PREFIX_LENGTH).decodeBase64() ?: return null
-
-            return KeyFactory.getInstance("EC")
-                .generatePublic(
-                    X509EncodedKeySpec(
-                        serverPublicKeyBytes,
-                    ),
-                )
-        }
+        override fun generateServerPublicKey(publicKey: String): PublicKey? = publicKeyCache.get(publicKey)
 
         override fun generateKeyPair(): KeyPair? {
             return runCatching {
@@ -93,7 +74,11 @@ internal interface KeyUtils {
             }.getOrNull()
         }
 
+        /**
+         * The cache of server public keys that have already been parsed.
+         */
+        internal val publicKeyCache = PublicKeyCache()
+
         private val random: SecureRandom by lazy { SecureRandom() }
-        private const val SERVER_PUBLIC_KEY_PREFIX_LENGTH = 9
     }
 }
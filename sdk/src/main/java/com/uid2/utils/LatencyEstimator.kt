@@ -0,0 +1,59 @@
+package com.uid2.utils
+
+import com.uid2.data.LatencyStats
+import kotlin.math.ceil
+import kotlin.math.roundToLong
+
+/**
+ * Keeps a rolling estimate of the latency of requests made to the API. This tracks both an exponentially weighted
+ * moving average, and the 95th percentile across a window of the most recent requests.
+ *
+ * @param windowSize The number of the most recent requests used when calculating the percentile.
+ * @param smoothing The weight given to each new request when updating the moving average, between 0 and 1.
+ */
+internal class LatencyEstimator(
+    windowSize: Int = DEFAULT_WINDOW_SIZE,
+    private val smoothing: Double = DEFAULT_SMOOTHING,
+) {
+    private val lock = Any()
+    private val window = LongArray(windowSize)
+    private var count = 0L
+    private var average = 0.0
+
+    /**
+     * Records the latency, in milliseconds, of a completed request.
+     */
+    fun record(latencyMs: Long) {
+        val latency = latencyMs.coerceAtLeast(0)
+
+        synchronized(lock) {
+            average = if (count == 0L) latency.toDouble() else average + smoothing * (latency - average)
+            window[(count % window.size).toInt()] = latency
+            count++
+        }
+    }
+
+    /**
+     * Gets a snapshot of the current estimate.
+     */
+    val stats: LatencyStats
+        get() {
+            val (samples, ewma, recent) = synchronized(lock) {
+                Triple(count, average, window.copyOf(count.coerceAtMost(window.size.toLong()).toInt()))
+            }
+
+            if (recent.isEmpty()) {
+                return LatencyStats(0, 0, 0)
+            }
+
+            recent.sort()
+            val p95 = recent[ceil(recent.size * PERCENTILE).toInt() - 1]
+            return LatencyStats(samples, ewma.roundToLong(), p95)
+        }
+
+    private companion object {
+        const val DEFAULT_WINDOW_SIZE = 64
+        const val DEFAULT_SMOOTHING = 0.2
+        const val PERCENTILE = 0.95
+    }
+}
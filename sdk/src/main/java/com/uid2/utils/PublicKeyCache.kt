@@ -0,0 +1,71 @@
+package com.uid2.utils
+
+import com.uid2.extensions.decodeBase64
+import java.security.KeyFactory
+import java.security.PublicKey
+import java.security.spec.X509EncodedKeySpec
+
+/**
+ * A small cache of the server [PublicKey]s that have been parsed, keyed by the String they were provided as. The same
+ * key is typically provided each time an identity is generated, so this avoids decoding and parsing it again. The least
+ * recently used key is evicted once more than [capacity] keys have been parsed.
+ *
+ * A single [KeyFactory] is used to parse every key. Since it's not guaranteed to be thread-safe, all access is
+ * synchronized.
+ */
+internal class PublicKeyCache(private val capacity: Int = DEFAULT_CAPACITY) {
+    private val keys = object : LinkedHashMap<String, PublicKey>(capacity, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, PublicKey>?) = size > capacity
+    }
+
+    private var keyFactory: KeyFactory? = null
+    private var hitCount = 0L
+    private var missCount = 0L
+
+    /**
+     * The number of times a key was found in the cache.
+     */
+    val hits: Long
+        get() = synchronized(keys) { hitCount }
+
+    /**
+     * The number of times a key needed to be parsed.
+     */
+    val misses: Long
+        get() = synchronized(keys) { missCount }
+
+    /**
+     * Returns the [PublicKey] for the given String, parsing it if it's not already cached. If the key is malformed,
+     * null is returned.
+     */
+    fun get(publicKey: String): PublicKey? = synchronized(keys) {
+        keys[publicKey]?.let {
+            hitCount++
+            return it
+        }
+
+        missCount++
+        parse(publicKey)?.also { keys[publicKey] = it }
+    }
+
+    private fun parse(publicKey: String): PublicKey? {
+        // Check to make sure the given public key is longer than the expected prefix.
+        if (publicKey.length <= SERVER_PUBLIC_KEY_PREFIX_LENGTH) {
+            return null
+        }
+
+        // Attempt to decode the given public key. If the key is malformed, or not in the expected Base64 format,
+        // null we be returned.
+        val serverPublicKeyBytes = publicKey.substring(SERVER_PUBLIC_KEY_PREFIX_LENGTH).decodeBase64() ?: return null
+
+        val factory = keyFactory ?: KeyFactory.getInstance("EC").also { keyFactory = it }
+        return factory.generatePublic(X509EncodedKeySpec(serverPublicKeyBytes))
+    }
+
+    private companion object {
+        // The number of keys retained. Only one is expected to be used, but this allows for the key being rotated.
+        const val DEFAULT_CAPACITY = 4
+
+        const val SERVER_PUBLIC_KEY_PREFIX_LENGTH = 9
+    }
+}
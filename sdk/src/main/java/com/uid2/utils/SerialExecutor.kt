@@ -0,0 +1,47 @@
+package com.uid2.utils
+
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * An executor that runs the commands given to it one at a time, in the order they were submitted, regardless of which
+ * thread submitted them.
+ *
+ * Rather than owning a thread, the submitting thread will run the queued commands itself if no other thread is already
+ * doing so. This means that, when uncontended, a command has been run by the time [execute] returns. If a command
+ * submits another command, it's queued and run after the current command completes. If a command throws, the exception
+ * is rethrown by [execute] on whichever thread ran it, once the queue has been drained.
+ */
+internal class SerialExecutor {
+    private val queue = ConcurrentLinkedQueue<() -> Unit>()
+    private val draining = AtomicBoolean(false)
+
+    /**
+     * Queues the given command, running it immediately if no other command is currently being run.
+     */
+    fun execute(command: () -> Unit) {
+        queue.offer(command)
+        drain()
+    }
+
+    private fun drain() {
+        var failure: Throwable? = null
+
+        // Another thread may queue a command just after we've finished draining, but before we release ownership. In
+        // that case, it will have failed to take ownership itself, so we need to check the queue again.
+        while (queue.isNotEmpty() && draining.compareAndSet(false, true)) {
+            try {
+                while (true) {
+                    val command = queue.poll() ?: break
+
+                    // A failing command should not prevent those queued after it from running.
+                    runCatching(command).onFailure { failure = failure ?: it }
+                }
+            } finally {
+                draining.set(false)
+            }
+        }
+
+        failure?.let { throw it }
+    }
+}
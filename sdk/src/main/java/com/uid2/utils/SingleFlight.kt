@@ -0,0 +1,62 @@
+package com.uid2.utils
+
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.CoroutineStart
+import kotlinx.coroutines.Deferred
+import kotlinx.coroutines.async
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * A helper class that coalesces concurrent requests for the same key into a single in-flight operation. While an
+ * operation is running, any other caller requesting the same key will share its result rather than starting their own.
+ *
+ * The shared operation is run within the given [CoroutineScope]. This means that cancelling one of the callers will not
+ * cancel the operation for any of the others.
+ */
+internal class SingleFlight<K : Any, V>(private val scope: CoroutineScope) {
+    private val lock = Any()
+    private val inFlight = HashMap<K, Deferred<V>>()
+
+    private val requestCount = AtomicLong()
+    private val coalescedCount = AtomicLong()
+
+    /**
+     * The total number of requests made via [run].
+     */
+    val requests: Long
+        get() = requestCount.get()
+
+    /**
+     * The number of requests that joined an operation that was already in-flight.
+     */
+    val coalesced: Long
+        get() = coalescedCount.get()
+
+    /**
+     * Runs the given block for the given key, unless an operation for that key is already in-flight. In that case, the
+     * result of the existing operation is returned instead.
+     */
+    suspend fun run(key: K, block: suspend () -> V): V {
+        val deferred = synchronized(lock) {
+            requestCount.incrementAndGet()
+
+            inFlight[key]?.also {
+                coalescedCount.incrementAndGet()
+            } ?: scope.async(start = CoroutineStart.LAZY) { block() }.also { created ->
+                inFlight[key] = created
+
+                // Once complete, the operation is no longer in-flight and a subsequent request should start a new one.
+                created.invokeOnCompletion {
+                    synchronized(lock) {
+                        if (inFlight[key] === created) {
+                            inFlight.remove(key)
+                        }
+                    }
+                }
+            }
+        }
+
+        deferred.start()
+        return deferred.await()
+    }
+}
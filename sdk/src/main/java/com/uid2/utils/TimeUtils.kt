@@ -1,5 +1,13 @@
 package com.uid2.utils
 
+import android.os.SystemClock
+import kotlinx.coroutines.channels.BufferOverflow.DROP_OLDEST
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.MutableSharedFlow
+import kotlinx.coroutines.flow.asSharedFlow
+import kotlinx.coroutines.flow.emptyFlow
+import kotlin.math.abs
+
 /**
  * A class containing utility methods around the current time.
  */
@@ -20,6 +28,22 @@ internal interface TimeUtils {
      */
     fun diffToNow(fromMs: Long): Long
 
+    /**
+     * Reports the current time according to the server, e.g. from the Date header of a response. This allows an
+     * implementation to correct for the device's clock being wrong.
+     *
+     * @param serverTimeMs The epoch time (in milliseconds) reported by the server.
+     * @param roundTripMs How long the request that reported the time took, which bounds how stale it may be.
+     */
+    fun onServerTime(serverTimeMs: Long, roundTripMs: Long) = Unit
+
+    /**
+     * Emits each time the current time is corrected, e.g. after [onServerTime], so that anything scheduled against the
+     * previous time can be rescheduled.
+     */
+    val corrections: Flow<Unit>
+        get() = emptyFlow()
+
     companion object Default : TimeUtils {
         override fun now() = System.currentTimeMillis()
 
@@ -28,3 +52,83 @@ internal interface TimeUtils {
         override fun diffToNow(fromMs: Long) = fromMs - System.currentTimeMillis()
     }
 }
+
+/**
+ * A source of time, in milliseconds. Unlike a `() -> Long`, reading this returns a primitive rather than a boxed Long,
+ * so it can be read for every call to [TimeUtils.now] without allocating.
+ */
+internal fun interface Clock {
+    fun millis(): Long
+}
+
+/**
+ * A [TimeUtils] that measures the passing of time with a monotonic clock, rather than reading the device's wall clock
+ * each time. The current time is taken from an anchor: initially the wall clock when this is created, and then the time
+ * reported by the server. Changes to the device's clock, e.g. by the user, therefore have no effect, and a device clock
+ * that was wrong to begin with is corrected once the server has been contacted.
+ *
+ * A single response could report the wrong time, e.g. if it was served from a cache. The current time is therefore only
+ * corrected once two consecutive reports from the server agree with each other.
+ *
+ * Since the identity's expiry times are issued by the server, this keeps the refresh and expiry scheduling relative to
+ * the server's clock.
+ */
+internal class MonotonicTimeUtils(
+    private val elapsedRealtime: Clock = Clock(SystemClock::elapsedRealtime),
+    private val currentTimeMillis: Clock = Clock(System::currentTimeMillis),
+) : TimeUtils {
+
+    /**
+     * A known epoch time, and the reading of the monotonic clock at that moment.
+     */
+    private class Anchor(val epochMs: Long, val elapsedMs: Long)
+
+    @Volatile
+    private var anchor = Anchor(currentTimeMillis.millis(), elapsedRealtime.millis())
+
+    // A correction reported by the server that disagreed with our current time, as the difference (in milliseconds)
+    // from it along with its uncertainty. This is only applied once confirmed by the next report.
+    private var pendingCorrection: Pair<Long, Long>? = null
+
+    private val _corrections = MutableSharedFlow<Unit>(extraBufferCapacity = 1, onBufferOverflow = DROP_OLDEST)
+    override val corrections: Flow<Unit> = _corrections.asSharedFlow()
+
+    override fun now(): Long = anchor.let { it.epochMs + (elapsedRealtime.millis() - it.elapsedMs) }
+
+    override fun hasExpired(expiryMs: Long) = expiryMs <= now()
+
+    override fun diffToNow(fromMs: Long) = fromMs - now()
+
+    @Synchronized
+    override fun onServerTime(serverTimeMs: Long, roundTripMs: Long) {
+        // The Date header is truncated to the second, and was produced at some point while the request was in-flight.
+        // We take the middle of both, and only re-anchor if our current time falls outside of that uncertainty. This
+        // avoids the current time jittering between requests.
+        val uncertaintyMs = DATE_RESOLUTION_MS / 2 + roundTripMs.coerceAtLeast(0) / 2
+        val elapsedMs = elapsedRealtime.millis()
+        val estimateMs = serverTimeMs + uncertaintyMs
+
+        val current = anchor
+        val correctionMs = estimateMs - (current.epochMs + (elapsedMs - current.elapsedMs))
+        if (abs(correctionMs) <= uncertaintyMs) {
+            pendingCorrection = null
+            return
+        }
+
+        // Only correct our time if the previous report asked for the same correction, within both their uncertainties.
+        val pending = pendingCorrection
+        if (pending == null || abs(correctionMs - pending.first) > uncertaintyMs + pending.second) {
+            pendingCorrection = correctionMs to uncertaintyMs
+            return
+        }
+
+        pendingCorrection = null
+        anchor = Anchor(estimateMs, elapsedMs)
+        _corrections.tryEmit(Unit)
+    }
+
+    private companion object {
+        // The resolution of the time reported by the server.
+        const val DATE_RESOLUTION_MS = 1000L
+    }
+}
@@ -0,0 +1,95 @@
+package com.uid2.utils
+
+import com.uid2.data.IdentityStatus
+import com.uid2.data.TokenAvailability
+import com.uid2.data.TokenOutcomes
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * Counts how often a valid advertising token was available when it was asked for. Since this is done on the path of
+ * every ad request, the counters are lock-free and striped by thread, so that concurrent callers don't contend on the
+ * same memory. The stripes are only summed when a snapshot is requested.
+ *
+ * The periods without a valid token are also tracked. These are reported by the owner, and are expected to be reported
+ * from a single thread at a time.
+ */
+internal class TokenAvailabilityTracker {
+
+    /**
+     * Where the request for the advertising token came from.
+     */
+    enum class Source {
+        READ,
+        SIGNALS,
+    }
+
+    // Each stripe holds a hit and a miss counter for every source and status. The stripes are spaced out so that no
+    // two of them share a cache line.
+    private val counters = AtomicLongArray(STRIPES * STRIPE_SIZE)
+
+    @Volatile
+    private var unavailableMs = 0L
+
+    @Volatile
+    private var longestUnavailableMs = 0L
+
+    /**
+     * Records a request for the advertising token.
+     *
+     * @param source Where the request came from.
+     * @param hit Whether a valid token was provided.
+     * @param status The status of the identity at the time.
+     */
+    fun record(source: Source, hit: Boolean, status: IdentityStatus) {
+        val stripe = (Thread.currentThread().id and (STRIPES - 1).toLong()).toInt()
+        counters.incrementAndGet(stripe * STRIPE_SIZE + index(source, status, hit))
+    }
+
+    /**
+     * Records that a period without a valid advertising token has ended.
+     */
+    fun onUnavailableEnded(durationMs: Long) {
+        unavailableMs += durationMs
+        longestUnavailableMs = maxOf(longestUnavailableMs, durationMs)
+    }
+
+    /**
+     * Gets a snapshot of the counts so far.
+     *
+     * @param currentUnavailableMs How long the current period without a valid token has lasted, if there is one.
+     */
+    fun snapshot(currentUnavailableMs: Long): TokenAvailability = TokenAvailability(
+        reads = outcomes(Source.READ),
+        signals = outcomes(Source.SIGNALS),
+        unavailableMs = unavailableMs + currentUnavailableMs,
+        longestUnavailableMs = maxOf(longestUnavailableMs, currentUnavailableMs),
+    )
+
+    private fun outcomes(source: Source): TokenOutcomes {
+        var hits = 0L
+        val misses = mutableMapOf<IdentityStatus, Long>()
+
+        for (status in statuses) {
+            hits += sum(index(source, status, true))
+            sum(index(source, status, false)).takeIf { it > 0 }?.let { misses[status] = it }
+        }
+
+        return TokenOutcomes(hits + misses.values.sum(), hits, misses)
+    }
+
+    private fun sum(index: Int): Long = (0 until STRIPES).sumOf { counters.get(it * STRIPE_SIZE + index) }
+
+    private fun index(source: Source, status: IdentityStatus, hit: Boolean) =
+        (source.ordinal * statuses.size + status.ordinal) * 2 + (if (hit) 1 else 0)
+
+    private companion object {
+        val statuses = IdentityStatus.entries
+
+        // The number of stripes. This must be a power of two.
+        const val STRIPES = 8
+
+        // The number of counters in each stripe, rounded up to a whole number of cache lines (of 8 longs each), plus a
+        // cache line of padding.
+        val STRIPE_SIZE = (Source.entries.size * statuses.size * 2 + 7) / 8 * 8 + 8
+    }
+}
@@ -0,0 +1,125 @@
+package com.uid2
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.io.IOException
+import java.util.concurrent.TimeUnit
+import kotlin.random.Random
+
+class RefreshRetryPolicyTest {
+    private val networkFailure = RefreshFailure(null, null)
+
+    @Test
+    fun `classifies failures`() {
+        // Failures without a response, or where the server had a problem, are worth retrying.
+        assertTrue(RefreshFailure.fromException(UID2Exception("Error", IOException())).isRetryable)
+        assertTrue(RefreshFailure.fromException(RequestFailureException(500)).isRetryable)
+        assertTrue(RefreshFailure.fromException(RequestFailureException(429, retryAfterMs = 1000)).isRetryable)
+
+        // Failures where the API rejected the request are not.
+        assertFalse(RefreshFailure.fromException(UID2Exception("Error", RequestFailureException(400))).isRetryable)
+        assertFalse(RefreshFailure.fromException(RequestFailureException(401)).isRetryable)
+        assertFalse(RefreshFailure.fromException(RequestFailureException(403)).isRetryable)
+
+        // Verify that any Retry-After delay is reported.
+        val throttled = RefreshFailure.fromException(RequestFailureException(429, retryAfterMs = 1000))
+        assertEquals(1000L, throttled.retryAfterMs)
+    }
+
+    @Test
+    fun `delay grows exponentially until capped`() {
+        val policy = ExponentialBackoffRetryPolicy(BASE_DELAY_MS, MAX_DELAY_MS, Random(0))
+
+        for (attempt in 0L..100L) {
+            val bound = if (attempt < 7) BASE_DELAY_MS shl attempt.toInt() else MAX_DELAY_MS
+
+            // Verify that every delay is within the expected (jittered) bounds.
+            repeat(100) {
+                val delay = policy.getRetryDelayMs(attempt, networkFailure)
+                assertNotNull(delay)
+                assertTrue(delay!! in 0..bound)
+            }
+        }
+    }
+
+    @Test
+    fun `stops retrying non-retryable failures`() {
+        val policy = ExponentialBackoffRetryPolicy(BASE_DELAY_MS, MAX_DELAY_MS, Random(0))
+
+        assertNull(policy.getRetryDelayMs(0, RefreshFailure(400, null)))
+        assertNull(policy.getRetryDelayMs(0, RefreshFailure(401, null)))
+        assertNotNull(policy.getRetryDelayMs(0, RefreshFailure(503, null)))
+    }
+
+    @Test
+    fun `respects retry after`() {
+        val policy = ExponentialBackoffRetryPolicy(BASE_DELAY_MS, MAX_DELAY_MS, Random(0))
+        val retryAfter = TimeUnit.MINUTES.toMillis(2)
+
+        // Verify that we never retry before the server has asked us to.
+        repeat(100) {
+            val delay = policy.getRetryDelayMs(0, RefreshFailure(429, retryAfter))
+            assertTrue(delay!! in retryAfter..retryAfter + BASE_DELAY_MS)
+        }
+    }
+
+    @Test
+    fun `retry after is not extended by backoff`() {
+        val policy = ExponentialBackoffRetryPolicy(BASE_DELAY_MS, MAX_DELAY_MS, Random(0))
+        val retryAfter = TimeUnit.SECONDS.toMillis(1)
+
+        // Verify that, even after many attempts, a short Retry-After only has a small amount of jitter added to it.
+        repeat(100) {
+            val delay = policy.getRetryDelayMs(20, RefreshFailure(503, retryAfter))
+            assertTrue(delay!! in retryAfter..retryAfter + retryAfter / 10)
+        }
+    }
+
+    @Test
+    fun `simulated outage spreads retry load across devices`() {
+        // Simulate a fleet of devices that all failed to refresh at the same moment, e.g. at the start of an outage.
+        // Each device keeps retrying throughout the simulation, as if the API were still unavailable.
+        val fixed = simulatePeakRequestsPerSecond { attempt -> if (attempt < 5) BASE_DELAY_MS else 60_000L }
+
+        val policy = ExponentialBackoffRetryPolicy(BASE_DELAY_MS, MAX_DELAY_MS, Random(1234))
+        val jittered = simulatePeakRequestsPerSecond { attempt -> policy.getRetryDelayMs(attempt, networkFailure)!! }
+
+        // With a fixed schedule, every device retries in the same second. With jitter, they are spread out.
+        assertEquals(DEVICES, fixed)
+        assertTrue(jittered < DEVICES / 2)
+    }
+
+    /**
+     * Simulates the retries of every device over a period of time, returning the largest number of retries made within
+     * a single second.
+     */
+    private fun simulatePeakRequestsPerSecond(delayFor: (attempt: Long) -> Long): Int {
+        val requestsPerSecond = IntArray((SIMULATION_DURATION_MS / 1000).toInt())
+
+        repeat(DEVICES) {
+            var time = 0L
+            var attempt = 0L
+            while (true) {
+                time += delayFor(attempt++)
+                if (time >= SIMULATION_DURATION_MS) {
+                    break
+                }
+                requestsPerSecond[(time / 1000).toInt()]++
+            }
+        }
+
+        return requestsPerSecond.max()
+    }
+
+    private companion object {
+        const val BASE_DELAY_MS = 5000L
+        const val MAX_DELAY_MS = 10 * 60 * 1000L
+
+        const val DEVICES = 10_000
+        const val SIMULATION_DURATION_MS = 30 * 60 * 1000L
+    }
+}
@@ -0,0 +1,178 @@
+package com.uid2
+
+import com.uid2.data.IdentityStatus.NO_IDENTITY
+import com.uid2.data.IdentityStatus.REFRESHED
+import com.uid2.data.LatencyStats
+import com.uid2.data.UID2Identity
+import com.uid2.network.ResponsePackage
+import com.uid2.storage.StorageManager
+import com.uid2.utils.InputUtils
+import com.uid2.utils.Logger
+import com.uid2.utils.TimeUtils
+import io.mockk.coEvery
+import io.mockk.every
+import io.mockk.mockk
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.flow.emptyFlow
+import kotlinx.coroutines.test.StandardTestDispatcher
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.concurrent.TimeUnit
+import javax.crypto.SecretKey
+import kotlin.random.Random
+
+@ExperimentalCoroutinesApi
+class RefreshWindowPolicyTest {
+    private val logger = Logger(false)
+
+    @Test
+    fun `refresh time within window`() {
+        val policy = JitteredRefreshWindowPolicy(MAX_JITTER_MS, SAFETY_MARGIN_MS, Random(0))
+        val identity = withIdentity(refreshFrom = HOUR_MS, identityExpires = 2 * HOUR_MS)
+
+        repeat(1000) {
+            val time = policy.getRefreshTimeMs(identity, NO_LATENCY)
+            assertTrue(time in identity.refreshFrom..identity.refreshFrom + MAX_JITTER_MS)
+        }
+    }
+
+    @Test
+    fun `refresh time leaves safety margin`() {
+        val policy = JitteredRefreshWindowPolicy(MAX_JITTER_MS, SAFETY_MARGIN_MS, Random(0))
+
+        // An identity where the jitter would otherwise take us into the safety margin.
+        val identity = withIdentity(refreshFrom = HOUR_MS, identityExpires = HOUR_MS + SAFETY_MARGIN_MS + 1000)
+        repeat(1000) {
+            assertTrue(policy.getRefreshTimeMs(identity, NO_LATENCY) <= identity.identityExpires - SAFETY_MARGIN_MS)
+        }
+
+        // An identity that doesn't leave any room for jitter at all.
+        val short = withIdentity(refreshFrom = HOUR_MS, identityExpires = HOUR_MS + 1000)
+        assertEquals(short.refreshFrom, policy.getRefreshTimeMs(short, NO_LATENCY))
+    }
+
+    @Test
+    fun `lead time adapts to latency`() {
+        val policy = JitteredRefreshWindowPolicy(MAX_JITTER_MS, SAFETY_MARGIN_MS, Random(0))
+
+        // Until any latency has been observed, the safety margin is used.
+        assertEquals(SAFETY_MARGIN_MS, policy.getLeadTimeMs(NO_LATENCY))
+
+        // A client on a slow network leaves more time to complete the refresh, while a fast one leaves less.
+        val slow = LatencyStats(samples = 10, averageMs = 15_000, p95Ms = 30_000)
+        val fast = LatencyStats(samples = 10, averageMs = 80, p95Ms = 150)
+        assertTrue(policy.getLeadTimeMs(slow) > SAFETY_MARGIN_MS)
+        assertTrue(policy.getLeadTimeMs(fast) < SAFETY_MARGIN_MS)
+
+        // The lead time is bounded, even for extreme latencies.
+        assertTrue(policy.getLeadTimeMs(LatencyStats(10, 0, 0)) > 0)
+        assertTrue(policy.getLeadTimeMs(LatencyStats(10, HOUR_MS, HOUR_MS)) < HOUR_MS)
+
+        // The chosen refresh time always respects the lead time.
+        val identity = withIdentity(refreshFrom = HOUR_MS, identityExpires = HOUR_MS + 2 * MAX_JITTER_MS)
+        listOf(NO_LATENCY, slow, fast).forEach { latency ->
+            repeat(1000) {
+                val time = policy.getRefreshTimeMs(identity, latency)
+                assertTrue(time in identity.refreshFrom..identity.identityExpires - policy.getLeadTimeMs(latency))
+            }
+        }
+    }
+
+    @Test
+    fun `simulated fleet spreads refresh load`() {
+        // Replay a fleet's refreshFrom distribution, where most identities were issued at the same moment (e.g. after a
+        // campaign push), and the remainder were issued evenly across the following hour.
+        val random = Random(1234)
+        val refreshFroms = List(DEVICES) {
+            if (it < DEVICES * 7 / 10) HOUR_MS else HOUR_MS + random.nextLong(HOUR_MS)
+        }
+
+        val exact = object : RefreshWindowPolicy {
+            override fun getRefreshTimeMs(identity: UID2Identity, latency: LatencyStats) = identity.refreshFrom
+        }
+        val exactPeak = simulatePeakRequestsPerSecond(refreshFroms, exact)
+
+        val jittered = JitteredRefreshWindowPolicy(MAX_JITTER_MS, SAFETY_MARGIN_MS, Random(5678))
+        val jitteredPeak = simulatePeakRequestsPerSecond(refreshFroms, jittered)
+
+        assertTrue("Exact peak: $exactPeak", exactPeak >= DEVICES * 7 / 10)
+        assertTrue("Jittered peak: $jitteredPeak, exact peak: $exactPeak", jitteredPeak * 10 < exactPeak)
+    }
+
+    /**
+     * Runs a [UID2Manager] for each of the given identities against a stand-in for the API server, returning the
+     * largest number of refresh requests the server received within a single second.
+     */
+    private fun simulatePeakRequestsPerSecond(refreshFroms: List<Long>, policy: RefreshWindowPolicy): Int {
+        val dispatcher = StandardTestDispatcher()
+
+        // Bind the TimeUtil's implementation to the clock of the TestDispatcher.
+        val timeUtils = mockk<TimeUtils>()
+        every { timeUtils.now() }.answers { dispatcher.scheduler.currentTime }
+        every { timeUtils.diffToNow(any()) }.answers { (firstArg() as Long) - dispatcher.scheduler.currentTime }
+        every { timeUtils.hasExpired(any()) }.answers { (firstArg() as Long) <= dispatcher.scheduler.currentTime }
+        every { timeUtils.corrections }.returns(emptyFlow())
+
+        // The stand-in server records when each request was received, responding with an identity that won't need
+        // refreshing again during the simulation.
+        val requestsPerSecond = IntArray(((3 * HOUR_MS) / 1000).toInt())
+        val server = mockk<UID2Client>()
+        coEvery { server.refreshIdentity(any(), any<SecretKey>()) }.answers {
+            requestsPerSecond[(dispatcher.scheduler.currentTime / 1000).toInt()]++
+            val now = dispatcher.scheduler.currentTime
+            ResponsePackage(withIdentity(now + DAY_MS, now + 2 * DAY_MS), REFRESHED, "Refreshed")
+        }
+
+        val storageManager = mockk<StorageManager>(relaxed = true)
+        coEvery { storageManager.loadIdentity() }.returns(Pair(null, NO_IDENTITY))
+
+        val managers = refreshFroms.map { refreshFrom ->
+            UID2Manager(
+                client = server,
+                storageManager = storageManager,
+                timeUtils = timeUtils,
+                inputUtils = InputUtils(),
+                defaultDispatcher = dispatcher,
+                initialAutomaticRefreshEnabled = true,
+                isEuid = false,
+                logger = logger,
+            ).apply {
+                checkExpiration = false
+                refreshWindowPolicy = policy
+            }
+        }
+        dispatcher.scheduler.runCurrent()
+        managers.zip(refreshFroms).forEach { (manager, refreshFrom) ->
+            manager.setIdentity(withIdentity(refreshFrom, refreshFrom + HOUR_MS))
+        }
+
+        // Run the simulation until every identity has been refreshed.
+        dispatcher.scheduler.advanceTimeBy(3 * HOUR_MS - 1)
+        managers.forEach { it.automaticRefreshEnabled = false }
+        assertEquals(DEVICES, requestsPerSecond.sum())
+
+        return requestsPerSecond.max()
+    }
+
+    private fun withIdentity(refreshFrom: Long, identityExpires: Long) = UID2Identity(
+        advertisingToken = "token",
+        refreshToken = "refresh-${Random.nextLong()}",
+        identityExpires = identityExpires,
+        refreshFrom = refreshFrom,
+        refreshExpires = identityExpires + DAY_MS,
+        refreshResponseKey = "key",
+    )
+
+    private companion object {
+        val HOUR_MS = TimeUnit.HOURS.toMillis(1)
+        val DAY_MS = TimeUnit.DAYS.toMillis(1)
+
+        val MAX_JITTER_MS = TimeUnit.MINUTES.toMillis(10)
+        val SAFETY_MARGIN_MS = TimeUnit.MINUTES.toMillis(5)
+
+        const val DEVICES = 2000
+
+        val NO_LATENCY = LatencyStats(0, 0, 0)
+    }
+}
@@ -8,12 +8,19 @@ import com.uid2.network.DataEnvelope
 import com.uid2.network.NetworkRequest
 import com.uid2.network.NetworkResponse
 import com.uid2.network.NetworkSession
+import com.uid2.network.SuspendingNetworkSession
+import com.uid2.network.asSuspending
 import com.uid2.utils.KeyUtils
+import com.uid2.utils.LatencyEstimator
 import com.uid2.utils.Logger
 import com.uid2.utils.TimeUtils
 import io.mockk.every
 import io.mockk.junit4.MockKRule
 import io.mockk.mockk
+import io.mockk.verify
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.delay
 import kotlinx.coroutines.runBlocking
 import kotlinx.coroutines.test.StandardTestDispatcher
 import kotlinx.coroutines.test.TestDispatcher
@@ -27,10 +34,13 @@ import org.junit.Assert.assertTrue
 import org.junit.Before
 import org.junit.Rule
 import org.junit.Test
+import java.net.URL
+import java.nio.ByteBuffer
 import java.security.KeyPair
 import java.security.PublicKey
 import javax.crypto.SecretKey
 
+@ExperimentalCoroutinesApi
 class UID2ClientTest {
     @get:Rule
     val mockkRule = MockKRule(this)
@@ -64,6 +74,21 @@ class UID2ClientTest {
 
         every { dataEnvelope.decrypt(any<String>(), any<String>(), any<Boolean>()) }.returns(null)
 
+        // The client decrypts via the buffer variants, which (as per their default implementation) wrap the result of
+        // the corresponding decrypt method.
+        every { dataEnvelope.decryptToBuffer(any<String>(), any<String>(), any<Boolean>()) }.answers {
+            dataEnvelope.decrypt(firstArg<String>(), secondArg<String>(), thirdArg<Boolean>())
+                ?.let { ByteBuffer.wrap(it) }
+        }
+        every { dataEnvelope.decryptToBuffer(any<ByteArray>(), any<String>(), any<Boolean>()) }.answers {
+            dataEnvelope.decrypt(firstArg<ByteArray>(), secondArg<String>(), thirdArg<Boolean>())
+                ?.let { ByteBuffer.wrap(it) }
+        }
+        every { dataEnvelope.decryptToBuffer(any<SecretKey>(), any<String>(), any<Boolean>()) }.answers {
+            dataEnvelope.decrypt(firstArg<SecretKey>().encoded, secondArg<String>(), thirdArg<Boolean>())
+                ?.let { ByteBuffer.wrap(it) }
+        }
+
         every { keyUtils.generateServerPublicKey(any()) }.returns(mockk<PublicKey>())
         every { keyUtils.generateKeyPair() }.returns(keyPair)
         every { keyUtils.generateSharedSecret(any(), any()) }.returns(mockk<SecretKey>(relaxed = true))
@@ -281,6 +306,40 @@ class UID2ClientTest {
         }
     }
 
+    @Test
+    fun `test refresh reports metrics`() = runTest(testDispatcher) {
+        val metrics = mockk<UID2Metrics>(relaxed = true)
+        val client = withClient(metrics = metrics)
+
+        // Configure a response that can't be decrypted.
+        every { dataEnvelope.decrypt(any<String>(), any(), any()) }.returns(null)
+        every { networkSession.loadData(any(), any()) }.returns(NetworkResponse(200, "some data"))
+        assertThrows(PayloadDecryptException::class.java) {
+            runBlocking { client.refreshIdentity(refreshToken, refreshKey) }
+        }
+
+        // Configure a response whose decrypted payload isn't in the expected format.
+        every { dataEnvelope.decrypt(any<String>(), any(), any()) }.returns("{}".toByteArray())
+        assertThrows(InvalidPayloadException::class.java) {
+            runBlocking { client.refreshIdentity(refreshToken, refreshKey) }
+        }
+
+        // Configure a request that fails.
+        every { networkSession.loadData(any(), any()) }.returns(NetworkResponse(500))
+        assertThrows(RequestFailureException::class.java) {
+            runBlocking { client.refreshIdentity(refreshToken, refreshKey) }
+        }
+
+        verify(exactly = 2) { metrics.onRequest(UID2Metrics.Request.REFRESH, 200, 0) }
+        verify(exactly = 1) { metrics.onRequest(UID2Metrics.Request.REFRESH, 500, 0) }
+        verify(exactly = 1) {
+            metrics.onPayloadFailure(UID2Metrics.Request.REFRESH, UID2Metrics.PayloadFailure.DECRYPT)
+        }
+        verify(exactly = 1) {
+            metrics.onPayloadFailure(UID2Metrics.Request.REFRESH, UID2Metrics.PayloadFailure.PARSE)
+        }
+    }
+
     @Test
     fun `test successful refresh`() = runTest(testDispatcher) {
         val client = withClient()
@@ -300,8 +359,178 @@ class UID2ClientTest {
         assertEquals(expectedIdentity, identity.identity)
     }
 
+    @Test
+    fun `test successful refresh with decoded key`() = runTest(testDispatcher) {
+        val client = withClient()
+        val key = mockk<SecretKey>()
+
+        val unencrypted = JSONObject(TestData.REFRESH_TOKEN_SUCCESS_DECRYPTED)
+        every { dataEnvelope.decryptToBuffer(key, any(), any()) }.returns(
+            ByteBuffer.wrap(unencrypted.toString().toByteArray()),
+        )
+        every { networkSession.loadData(any(), any()) }.returns(NetworkResponse(200, "some data"))
+
+        // Verify that the payload was decrypted with the given key, rather than by decoding one.
+        val identity = client.refreshIdentity(refreshToken, key)
+        assertEquals(IdentityStatus.REFRESHED, identity.status)
+        verify { dataEnvelope.decryptToBuffer(key, "some data", false) }
+        verify(exactly = 0) { dataEnvelope.decryptToBuffer(any<String>(), any(), any()) }
+    }
+
+    @Test
+    fun `test refresh with suspending session`() = runTest(testDispatcher) {
+        // Configure a session that suspends, rather than blocks, while waiting for its response.
+        val session = object : SuspendingNetworkSession {
+            override suspend fun loadData(url: URL, request: NetworkRequest): NetworkResponse {
+                delay(1000)
+                return NetworkResponse(200, "some data")
+            }
+        }
+        val client = withClient(session)
+
+        val unencrypted = JSONObject(TestData.REFRESH_TOKEN_SUCCESS_DECRYPTED)
+        every { dataEnvelope.decrypt(any<String>(), any(), any()) }.returns(unencrypted.toString().toByteArray())
+
+        // Verify that the payload was successfully decrypted, and parsed.
+        val identity = client.refreshIdentity(refreshToken, TestData.REFRESH_TOKEN_ENCRYPTED_SUCCESS_KEY)
+        assertEquals(IdentityStatus.REFRESHED, identity.status)
+        assertEquals(unencrypted.getJSONObject("body").let { UID2Identity.fromJson(it) }, identity.identity)
+    }
+
+    @Test
+    fun `test latency is recorded`() = runTest(testDispatcher) {
+        every { timeUtils.now() }.answers { testDispatcher.scheduler.currentTime }
+
+        // Configure a session which simulates a network where most requests are quick, but some are much slower.
+        val latencies = ArrayDeque(List(18) { 200L } + listOf(8_000L, 8_000L))
+        val session = object : SuspendingNetworkSession {
+            override suspend fun loadData(url: URL, request: NetworkRequest): NetworkResponse {
+                delay(latencies.removeFirst())
+                return NetworkResponse(200, "some data")
+            }
+        }
+        val latencyEstimator = LatencyEstimator()
+        val client = withClient(session, latencyEstimator)
+
+        val unencrypted = JSONObject(TestData.REFRESH_TOKEN_SUCCESS_DECRYPTED)
+        every { dataEnvelope.decrypt(any<String>(), any(), any()) }.returns(unencrypted.toString().toByteArray())
+
+        repeat(20) {
+            client.refreshIdentity(refreshToken, TestData.REFRESH_TOKEN_ENCRYPTED_SUCCESS_KEY)
+        }
+
+        // The slow requests should be reflected in both the average and the tail.
+        val stats = latencyEstimator.stats
+        assertEquals(20, stats.samples)
+        assertEquals(8_000, stats.p95Ms)
+        assertTrue(stats.averageMs in 201 until 8_000)
+    }
+
+    @Test
+    fun `test latency is not recorded when server is unreachable`() = runTest(testDispatcher) {
+        every { timeUtils.now() }.answers { testDispatcher.scheduler.currentTime }
+
+        // Configure a session which fails immediately, as the default session does while the device is offline.
+        val session = object : SuspendingNetworkSession {
+            override suspend fun loadData(url: URL, request: NetworkRequest) =
+                NetworkResponse(500, reachedServer = false)
+        }
+        val latencyEstimator = LatencyEstimator()
+        val client = withClient(session, latencyEstimator)
+
+        repeat(5) {
+            runCatching { client.refreshIdentity(refreshToken, TestData.REFRESH_TOKEN_ENCRYPTED_SUCCESS_KEY) }
+        }
+
+        // None of these requests reached the server, so they shouldn't contribute to the estimate.
+        assertEquals(0, latencyEstimator.stats.samples)
+    }
+
+    @Test
+    fun `test latency is recorded for server error`() = runTest(testDispatcher) {
+        every { timeUtils.now() }.answers { testDispatcher.scheduler.currentTime }
+
+        // Configure a session which receives an error from the server, without providing its headers.
+        val session = object : SuspendingNetworkSession {
+            override suspend fun loadData(url: URL, request: NetworkRequest): NetworkResponse {
+                delay(1_000)
+                return NetworkResponse(500)
+            }
+        }
+        val latencyEstimator = LatencyEstimator()
+        val client = withClient(session, latencyEstimator)
+        runCatching { client.refreshIdentity(refreshToken, TestData.REFRESH_TOKEN_ENCRYPTED_SUCCESS_KEY) }
+
+        // The request reached the server, so it should contribute to the estimate.
+        assertEquals(1, latencyEstimator.stats.samples)
+    }
+
+    @Test
+    fun `test server time is reported`() = runTest(testDispatcher) {
+        every { timeUtils.now() }.answers { testDispatcher.scheduler.currentTime }
+        every { timeUtils.onServerTime(any(), any()) }.returns(Unit)
+
+        // Configure a session which responds after a second, including the server's current time.
+        val session = object : SuspendingNetworkSession {
+            override suspend fun loadData(url: URL, request: NetworkRequest): NetworkResponse {
+                delay(1_000)
+                return NetworkResponse(200, "some data", mapOf("date" to "Tue, 14 Nov 2023 22:13:20 GMT"))
+            }
+        }
+        val client = withClient(session)
+
+        val unencrypted = JSONObject(TestData.REFRESH_TOKEN_SUCCESS_DECRYPTED)
+        every { dataEnvelope.decrypt(any<String>(), any(), any()) }.returns(unencrypted.toString().toByteArray())
+        client.refreshIdentity(refreshToken, TestData.REFRESH_TOKEN_ENCRYPTED_SUCCESS_KEY)
+
+        // Verify that the server's time was reported, along with how long the request took.
+        verify(exactly = 1) { timeUtils.onServerTime(1_700_000_000_000L, 1_000) }
+    }
+
+    @Test
+    fun `test server time is not reported from failed response`() = runTest(testDispatcher) {
+        every { timeUtils.now() }.answers { testDispatcher.scheduler.currentTime }
+
+        // Configure a session which fails, e.g. as the response came from a proxy rather than the API server.
+        val session = object : SuspendingNetworkSession {
+            override suspend fun loadData(url: URL, request: NetworkRequest): NetworkResponse {
+                return NetworkResponse(502, "Bad Gateway", mapOf("date" to "Tue, 14 Nov 2023 22:13:20 GMT"))
+            }
+        }
+        val client = withClient(session)
+        runCatching { client.refreshIdentity(refreshToken, TestData.REFRESH_TOKEN_ENCRYPTED_SUCCESS_KEY) }
+
+        // Verify that the time in the response wasn't trusted.
+        verify(exactly = 0) { timeUtils.onServerTime(any(), any()) }
+    }
+
     //endregion
 
+    @Test
+    fun `test warm up ignores failure`() = runTest(testDispatcher) {
+        val client = withClient()
+
+        // Any failure to warm up the connection should be ignored, not only those expected from the network.
+        every { networkSession.loadData(any(), any()) }.throws(IllegalStateException("Unexpected"))
+        client.warmUp()
+
+        verify { networkSession.loadData(URL("$url/ops/healthcheck"), any()) }
+    }
+
+    @Test
+    fun `test warm up is cancellable`() {
+        val client = withClient()
+
+        every { networkSession.loadData(any(), any()) }.throws(CancellationException("Cancelled"))
+
+        // Cancellation should still be propagated.
+        assertThrows(CancellationException::class.java) {
+            runBlocking {
+                client.warmUp()
+            }
+        }
+    }
+
     @Test
     fun `test successful opt-out`() = runBlocking {
         val client = withClient()
@@ -353,7 +582,7 @@ class UID2ClientTest {
     private fun testInvalidClientApi(callback: suspend (client: UID2Client) -> Unit) {
         val client = UID2Client(
             "this is not a url",
-            networkSession,
+            networkSession.asSuspending(),
             packageName,
             dataEnvelope,
             timeUtils,
@@ -431,13 +660,19 @@ class UID2ClientTest {
         assertTrue(reportedVersion?.endsWith(UID2.getVersion()) == true)
     }
 
-    private fun withClient() = UID2Client(
+    private fun withClient(
+        session: SuspendingNetworkSession = networkSession.asSuspending(),
+        latencyEstimator: LatencyEstimator = LatencyEstimator(),
+        metrics: UID2Metrics = UID2Metrics.NONE,
+    ) = UID2Client(
         url,
-        networkSession,
+        session,
         packageName,
         dataEnvelope,
         timeUtils,
         keyUtils,
         logger,
+        latencyEstimator,
+        metrics,
     )
 }
@@ -0,0 +1,273 @@
+package com.uid2
+
+import com.uid2.data.IdentityStatus
+import com.uid2.data.IdentityStatus.NO_IDENTITY
+import com.uid2.data.IdentityStatus.REFRESHED
+import com.uid2.data.UID2Identity
+import com.uid2.network.ResponsePackage
+import com.uid2.storage.StorageManager
+import com.uid2.utils.InputUtils
+import com.uid2.utils.Logger
+import com.uid2.utils.TimeUtils
+import io.mockk.coEvery
+import io.mockk.every
+import io.mockk.mockk
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.Dispatchers
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import java.util.Collections
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicReference
+import javax.crypto.SecretKey
+import kotlin.concurrent.thread
+import kotlin.random.Random
+import kotlin.system.measureNanoTime
+
+/**
+ * A suite of stress tests which use the [UID2Manager] from many threads at once, as an application's ad SDKs might.
+ */
+class UID2ManagerConcurrencyTest {
+    private val client = mockk<UID2Client>()
+    private val storageManager = mockk<StorageManager>()
+    private val logger = mockk<Logger>(relaxed = true)
+
+    // The last identity that was persisted, or null if storage was cleared.
+    private val persisted = AtomicReference<UID2Identity?>()
+
+    @Before
+    fun before() {
+        coEvery { storageManager.loadIdentity() }.returns(Pair(null, NO_IDENTITY))
+        coEvery { storageManager.saveIdentity(any(), any()) }.answers {
+            persisted.set(firstArg())
+            true
+        }
+        coEvery { storageManager.clear() }.answers {
+            persisted.set(null)
+            true
+        }
+    }
+
+    @Test
+    fun `concurrent mutations are serialized`() {
+        val running = AtomicInteger()
+        val overlaps = AtomicInteger()
+        val lastReported = AtomicReference<UID2Identity?>()
+        val identities = Collections.synchronizedSet(mutableSetOf<String>())
+
+        val manager = withManager().apply {
+            onIdentityChangedListener = object : UID2ManagerIdentityChangedListener {
+                override fun onIdentityStatusChanged(identity: UID2Identity?, status: IdentityStatus) {
+                    if (running.incrementAndGet() > 1) {
+                        overlaps.incrementAndGet()
+                    }
+                    lastReported.set(identity)
+                    running.decrementAndGet()
+                }
+            }
+        }
+
+        // Mutate the identity from many threads, while also reading it.
+        runConcurrently { index ->
+            when (Random.nextInt(3)) {
+                0 -> manager.setIdentity(withIdentity().also { identities += it.advertisingToken })
+                1 -> manager.resetIdentity()
+                else -> manager.getAdvertisingToken()?.let {
+                    assertTrue("Unknown token ($index)", identities.contains(it))
+                }
+            }
+        }
+
+        // Verify that the listener was never invoked concurrently, and that the last change it was notified of is the
+        // state of the manager.
+        assertEquals(0, overlaps.get())
+        assertEquals(lastReported.get(), manager.currentIdentity)
+
+        // Verify that storage eventually reflects the same state.
+        awaitPersisted(manager.currentIdentity)
+    }
+
+    @Test
+    fun `stale refresh does not replace reset identity`() {
+        val gate = CompletableDeferred<Unit>()
+        coEvery { client.refreshIdentity(any(), any<SecretKey>()) }.coAnswers {
+            gate.await()
+            ResponsePackage(withIdentity(), REFRESHED, "Refreshed")
+        }
+
+        // The manager logs when it discards the result of a refresh, which tells us it has finished handling it.
+        val ignored = CountDownLatch(1)
+        every { logger.i(any(), any(), any()) }.answers {
+            if (thirdArg<() -> String>().invoke() == "Ignoring refresh of replaced identity") {
+                ignored.countDown()
+            }
+        }
+
+        // Start a refresh, but reset the identity before it's complete.
+        val manager = withManager()
+        manager.setIdentity(withIdentity())
+        manager.refreshIdentity()
+        manager.resetIdentity()
+
+        // Allow the refresh to complete.
+        gate.complete(Unit)
+        assertTrue(ignored.await(5, TimeUnit.SECONDS))
+
+        // Verify that the refresh of the previous identity did not restore it.
+        assertNull(manager.currentIdentity)
+        assertEquals(NO_IDENTITY, manager.currentIdentityStatus)
+        awaitPersisted(null)
+    }
+
+    @Test
+    fun `concurrent refreshes and mutations settle`() {
+        coEvery { client.refreshIdentity(any(), any<SecretKey>()) }.coAnswers {
+            ResponsePackage(withIdentity(), REFRESHED, "Refreshed")
+        }
+
+        val manager = withManager()
+        runConcurrently {
+            when (Random.nextInt(4)) {
+                0 -> manager.setIdentity(withIdentity())
+                1 -> manager.resetIdentity()
+                2 -> manager.refreshIdentity()
+                else -> manager.getAdvertisingToken()
+            }
+        }
+
+        // Any refreshes still in-flight will be ignored as stale once a new identity is set, so storage should settle
+        // on that identity, and so should the manager.
+        val identity = withIdentity()
+        manager.setIdentity(identity)
+        awaitPersisted(identity)
+        assertEquals(identity, manager.currentIdentity)
+    }
+
+    @Test
+    fun `adding initialized listener does not block`() {
+        // Hold the initial load from storage until we're ready.
+        val loading = CountDownLatch(1)
+        coEvery { storageManager.loadIdentity() }.answers {
+            loading.await()
+            Pair(null, NO_IDENTITY)
+        }
+
+        // Register a slow listener before initialization is complete, as another SDK might.
+        val slowListenerStarted = CountDownLatch(1)
+        val manager = createManager().addOnInitializedListener {
+            slowListenerStarted.countDown()
+            Thread.sleep(SLOW_LISTENER_MS)
+        }
+
+        // Complete initialization, and while the slow listener is still running, add another listener as the main
+        // thread of the application would.
+        loading.countDown()
+        assertTrue(slowListenerStarted.await(5, TimeUnit.SECONDS))
+
+        var invoked = 0
+        val blockedNs = measureNanoTime { manager.addOnInitializedListener { invoked++ } }
+
+        // Verify that the listener was invoked immediately, without waiting for the slow listener to complete.
+        assertEquals(1, invoked)
+        assertTrue(
+            "Blocked for ${TimeUnit.NANOSECONDS.toMillis(blockedNs)}ms",
+            blockedNs < TimeUnit.MILLISECONDS.toNanos(SLOW_LISTENER_MS / 2),
+        )
+    }
+
+    @Test
+    fun `initialized listeners invoked exactly once`() {
+        val loading = CountDownLatch(1)
+        coEvery { storageManager.loadIdentity() }.answers {
+            loading.await()
+            Pair(null, NO_IDENTITY)
+        }
+
+        // Add listeners from many threads, while initialization completes part way through.
+        val manager = createManager()
+        val invocations = List(THREADS * OPERATIONS_PER_THREAD) { AtomicInteger() }
+        runConcurrently { index ->
+            if (index % OPERATIONS_PER_THREAD == OPERATIONS_PER_THREAD / 2) {
+                loading.countDown()
+            }
+            manager.addOnInitializedListener { invocations[index].incrementAndGet() }
+        }
+
+        // Wait for the manager to finish initializing, and verify each listener was invoked exactly once.
+        val initialized = CountDownLatch(1)
+        manager.addOnInitializedListener { initialized.countDown() }
+        assertTrue(initialized.await(5, TimeUnit.SECONDS))
+        assertEquals(List(invocations.size) { 1 }, invocations.map { it.get() })
+    }
+
+    private fun withManager(): UID2Manager {
+        val initialized = CountDownLatch(1)
+        return createManager().apply {
+            addOnInitializedListener { initialized.countDown() }
+            assertTrue(initialized.await(5, TimeUnit.SECONDS))
+        }
+    }
+
+    private fun createManager() = UID2Manager(
+        client = client,
+        storageManager = storageManager,
+        timeUtils = TimeUtils,
+        inputUtils = InputUtils(),
+        defaultDispatcher = Dispatchers.Default,
+        initialAutomaticRefreshEnabled = false,
+        isEuid = false,
+        logger = logger,
+    )
+
+    /**
+     * Runs the given operation many times from each of a number of threads. Each invocation is given a unique index.
+     */
+    private fun runConcurrently(operation: (Int) -> Unit) {
+        val start = CountDownLatch(1)
+        val failure = AtomicReference<Throwable?>()
+        val threads = List(THREADS) { threadIndex ->
+            thread {
+                start.await()
+                repeat(OPERATIONS_PER_THREAD) {
+                    val index = threadIndex * OPERATIONS_PER_THREAD + it
+                    runCatching { operation(index) }.onFailure { failure.compareAndSet(null, it) }
+                }
+            }
+        }
+        start.countDown()
+        threads.forEach { it.join() }
+
+        failure.get()?.let { throw it }
+    }
+
+    private fun awaitPersisted(identity: UID2Identity?) {
+        val deadline = System.currentTimeMillis() + 5000
+        while (persisted.get() != identity && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10)
+        }
+        assertEquals(identity, persisted.get())
+    }
+
+    private fun withIdentity(): UID2Identity {
+        val now = System.currentTimeMillis()
+        return UID2Identity(
+            advertisingToken = "token-${Random.nextLong()}",
+            refreshToken = "refresh-${Random.nextLong()}",
+            identityExpires = now + TimeUnit.HOURS.toMillis(2),
+            refreshFrom = now + TimeUnit.HOURS.toMillis(1),
+            refreshExpires = now + TimeUnit.HOURS.toMillis(3),
+            refreshResponseKey = "key",
+        )
+    }
+
+    private companion object {
+        const val THREADS = 8
+        const val OPERATIONS_PER_THREAD = 2000
+        const val SLOW_LISTENER_MS = 200L
+    }
+}
@@ -2,6 +2,7 @@ package com.uid2
 
 import com.uid2.UID2Manager.GenerateIdentityResult
 import com.uid2.data.IdentityRequest
+import com.uid2.data.IdentitySnapshot
 import com.uid2.data.IdentityStatus
 import com.uid2.data.IdentityStatus.ESTABLISHED
 import com.uid2.data.IdentityStatus.EXPIRED
@@ -9,9 +10,14 @@ import com.uid2.data.IdentityStatus.NO_IDENTITY
 import com.uid2.data.IdentityStatus.OPT_OUT
 import com.uid2.data.IdentityStatus.REFRESHED
 import com.uid2.data.IdentityStatus.REFRESH_EXPIRED
+import com.uid2.data.LatencyStats
+import com.uid2.data.RefreshStats
+import com.uid2.data.TokenOutcomes
 import com.uid2.data.UID2Identity
+import com.uid2.network.ConnectivityMonitor
 import com.uid2.network.ResponsePackage
 import com.uid2.storage.StorageManager
+import com.uid2.utils.AppVisibility
 import com.uid2.utils.InputUtils
 import com.uid2.utils.Logger
 import com.uid2.utils.TimeUtils
@@ -23,23 +29,33 @@ import io.mockk.every
 import io.mockk.junit4.MockKRule
 import io.mockk.mockk
 import io.mockk.verify
+import kotlinx.coroutines.CompletableDeferred
 import kotlinx.coroutines.CoroutineDispatcher
 import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.MutableSharedFlow
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.asStateFlow
+import kotlinx.coroutines.flow.first
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.test.StandardTestDispatcher
 import kotlinx.coroutines.test.TestDispatcher
 import kotlinx.coroutines.test.TestScope
 import kotlinx.coroutines.test.runTest
+import org.junit.Assert.assertArrayEquals
 import org.junit.Assert.assertEquals
 import org.junit.Assert.assertFalse
 import org.junit.Assert.assertNotNull
 import org.junit.Assert.assertNull
+import org.junit.Assert.assertThrows
 import org.junit.Assert.assertTrue
 import org.junit.Before
 import org.junit.Rule
 import org.junit.Test
 import java.io.IOException
+import java.util.Base64
 import java.util.concurrent.TimeUnit
+import javax.crypto.SecretKey
 import kotlin.random.Random
 
 @ExperimentalCoroutinesApi
@@ -63,10 +79,41 @@ class UID2ManagerTest {
     private val initialStatus = ESTABLISHED
     private val listener = mockk<UID2ManagerIdentityChangedListener>(relaxed = true)
 
+    // The connectivity reported to the manager, allowing tests to simulate the device going offline.
+    private val isConnected = MutableStateFlow(true)
+    private val connectivityMonitor = object : ConnectivityMonitor {
+        override val isConnected = this@UID2ManagerTest.isConnected.asStateFlow()
+    }
+
+    // The visibility reported to the manager, allowing tests to simulate the app moving to the background.
+    private val isForeground = MutableStateFlow(true)
+    private val appVisibility = object : AppVisibility {
+        override val isForeground = this@UID2ManagerTest.isForeground.asStateFlow()
+    }
+
+    // Corrections to the current time, allowing tests to simulate the server reporting that our clock is wrong.
+    private val timeCorrections = MutableSharedFlow<Unit>()
+
+    // A refresh window policy without any jitter, refreshing as soon as allowed.
+    private val exactRefreshWindowPolicy = object : RefreshWindowPolicy {
+        override fun getRefreshTimeMs(identity: UID2Identity, latency: LatencyStats) = identity.refreshFrom
+    }
+
+    // A retry policy without any jitter: 5 seconds for the first 5 attempts, and then every minute.
+    private val fixedRetryPolicy = object : RefreshRetryPolicy {
+        override fun getRetryDelayMs(attempt: Long, failure: RefreshFailure): Long? = when {
+            !failure.isRetryable -> null
+            attempt < 5 -> TimeUnit.SECONDS.toMillis(5)
+            else -> TimeUnit.MINUTES.toMillis(1)
+        }
+    }
+
     @Before
     fun before() {
         // By default, we won't expire tokens.
         every { timeUtils.hasExpired(any()) }.returns(false)
+        every { timeUtils.now() }.answers { testDispatcher.scheduler.currentTime }
+        every { timeUtils.corrections }.returns(timeCorrections)
 
         every { inputUtils.normalize(any<IdentityRequest.Email>()) }.answers { firstArg() as IdentityRequest.Email }
         every { inputUtils.normalize(any<IdentityRequest.Phone>()) }.answers { firstArg() as IdentityRequest.Phone }
@@ -229,6 +276,30 @@ class UID2ManagerTest {
         assertTrue(result is GenerateIdentityResult.Success)
     }
 
+    @Test
+    fun `generate result reported outside of mutation`() = runTest(testDispatcher) {
+        val subscriptionId = "sub"
+        val publicKey = "pub"
+
+        val request = IdentityRequest.Email("test@test.com")
+        coEvery { client.generateIdentity(request, subscriptionId, publicKey) }.returns(
+            ResponsePackage(withRandomIdentity(), ESTABLISHED, ""),
+        )
+
+        // Reset the identity from within the result callback, recording the identity immediately afterwards.
+        var identityAfterReset: UID2Identity? = initialIdentity
+        manager.generateIdentity(request, subscriptionId, publicKey) {
+            manager.resetIdentity()
+            identityAfterReset = manager.currentIdentity
+        }
+        testDispatcher.scheduler.advanceUntilIdle()
+
+        // Verify that the reset wasn't queued behind the callback, which would be the case if the callback was invoked
+        // while the generated identity was still being set.
+        assertNull(identityAfterReset)
+        assertNull(manager.currentIdentity)
+    }
+
     @Test
     fun `resets identity`() = runTest(testDispatcher) {
         // Verify that the initial state of the manager reflects the restored Identity.
@@ -290,7 +361,7 @@ class UID2ManagerTest {
     @Test
     fun `reports when no identity available after opt-out`() = runTest(testDispatcher) {
         // Configure the client so that when asked to refresh, it actually reports that the user has now opted out.
-        coEvery { client.refreshIdentity(initialIdentity.refreshToken, initialIdentity.refreshResponseKey) }.returns(
+        coEvery { client.refreshIdentity(initialIdentity.refreshToken, any<SecretKey>()) }.returns(
             ResponsePackage(
                 null,
                 OPT_OUT,
@@ -325,7 +396,7 @@ class UID2ManagerTest {
     fun `refresh notifies when identity updates`() = runTest(testDispatcher) {
         // Configure the client so that when asked to refresh, it returns a new Identity.
         val newIdentity = withRandomIdentity()
-        coEvery { client.refreshIdentity(initialIdentity.refreshToken, initialIdentity.refreshResponseKey) }.returns(
+        coEvery { client.refreshIdentity(initialIdentity.refreshToken, any<SecretKey>()) }.returns(
             ResponsePackage(
                 newIdentity,
                 REFRESHED,
@@ -338,16 +409,97 @@ class UID2ManagerTest {
         testDispatcher.scheduler.advanceUntilIdle()
 
         // Verify that the Client was asked to refresh.
-        coVerify { client.refreshIdentity(initialIdentity.refreshToken, initialIdentity.refreshResponseKey) }
+        coVerify { client.refreshIdentity(initialIdentity.refreshToken, any<SecretKey>()) }
 
         // Verify that the Manager updated with the new identity and reported the state changes appropriately.
         assertManagerState(manager, newIdentity, REFRESHED)
     }
 
+    @Test
+    fun `coalesces concurrent refreshes`() = runTest(testDispatcher) {
+        // Configure the client so that refreshing takes some time, allowing other requests to arrive while in-flight.
+        val newIdentity = withRandomIdentity()
+        coEvery { client.refreshIdentity(initialIdentity.refreshToken, any<SecretKey>()) }.coAnswers {
+            delay(TimeUnit.SECONDS.toMillis(1))
+            ResponsePackage(
+                newIdentity,
+                REFRESHED,
+                "Refreshed",
+            )
+        }
+
+        // Ask the manager to refresh a number of times, as if from different parts of the application.
+        repeat(3) { manager.refreshIdentity() }
+        testDispatcher.scheduler.advanceUntilIdle()
+
+        // Verify that only a single request was made, with the others joining it.
+        coVerify(exactly = 1) {
+            client.refreshIdentity(initialIdentity.refreshToken, any<SecretKey>())
+        }
+        assertEquals(RefreshStats(3, 2), manager.refreshStats)
+
+        // Verify that the Manager updated with the new identity and reported the state changes appropriately.
+        assertManagerState(manager, newIdentity, REFRESHED)
+    }
+
+    @Test
+    fun `refreshes with decoded key of current identity`() = runTest(testDispatcher) {
+        // Configure the client to record the key it's asked to decrypt each response with.
+        val newIdentity = withRandomIdentity()
+        val keys = mutableListOf<SecretKey>()
+        val encodedKeys = mutableListOf<ByteArray>()
+        coEvery { client.refreshIdentity(any(), capture(keys)) }.answers {
+            encodedKeys.add(secondArg<SecretKey>().encoded)
+            ResponsePackage(newIdentity, REFRESHED, "Refreshed")
+        }
+
+        // Verify that the key was decoded from the initial identity, and destroyed once that identity was replaced.
+        manager.refreshIdentity()
+        testDispatcher.scheduler.advanceUntilIdle()
+        assertArrayEquals(Base64.getDecoder().decode(initialIdentity.refreshResponseKey), encodedKeys[0])
+        assertTrue(keys[0].isDestroyed)
+
+        // Verify that the new identity's key is used, and kept while the identity remains unchanged.
+        manager.refreshIdentity()
+        testDispatcher.scheduler.advanceUntilIdle()
+        assertArrayEquals(Base64.getDecoder().decode(newIdentity.refreshResponseKey), encodedKeys[1])
+        assertFalse(keys[1].isDestroyed)
+
+        // Verify that the key is destroyed once the identity is reset.
+        manager.resetIdentity()
+        testDispatcher.scheduler.advanceUntilIdle()
+        assertTrue(keys[1].isDestroyed)
+    }
+
+    @Test
+    fun `keeps decoded key usable until in-flight refresh completes`() = runTest(testDispatcher) {
+        // Configure the client so that refreshing doesn't complete until we allow it to.
+        val newIdentity = withRandomIdentity()
+        val response = CompletableDeferred<ResponsePackage>()
+        val keys = mutableListOf<SecretKey>()
+        coEvery { client.refreshIdentity(any(), capture(keys)) }.coAnswers { response.await() }
+
+        // Start a refresh, and then reset the identity while it's still in-flight.
+        manager.refreshIdentity()
+        testDispatcher.scheduler.advanceUntilIdle()
+        manager.resetIdentity()
+        testDispatcher.scheduler.advanceUntilIdle()
+
+        // Verify that the key is destroyed, but its material remains available to the refresh that's using it.
+        assertTrue(keys[0].isDestroyed)
+        assertArrayEquals(Base64.getDecoder().decode(initialIdentity.refreshResponseKey), keys[0].encoded)
+
+        // Once the refresh completes, the key material is zeroed and the (stale) result is ignored.
+        response.complete(ResponsePackage(newIdentity, REFRESHED, "Refreshed"))
+        testDispatcher.scheduler.advanceUntilIdle()
+        assertThrows(IllegalStateException::class.java) { keys[0].encoded }
+        assertNull(manager.currentIdentity)
+    }
+
     @Test
     fun `refresh identities opt out`() = runTest(testDispatcher) {
         // Configure the client so that when asked to refresh, it actually reports that the user has now opted out.
-        coEvery { client.refreshIdentity(initialIdentity.refreshToken, initialIdentity.refreshResponseKey) }.returns(
+        coEvery { client.refreshIdentity(initialIdentity.refreshToken, any<SecretKey>()) }.returns(
             ResponsePackage(
                 null,
                 OPT_OUT,
@@ -360,7 +512,7 @@ class UID2ManagerTest {
         testDispatcher.scheduler.advanceUntilIdle()
 
         // Verify that the Client was asked to refresh.
-        coVerify { client.refreshIdentity(initialIdentity.refreshToken, initialIdentity.refreshResponseKey) }
+        coVerify { client.refreshIdentity(initialIdentity.refreshToken, any<SecretKey>()) }
 
         // Verify that the Manager updated with the new identity and reported the state changes appropriately.
         assertManagerState(manager, null, OPT_OUT)
@@ -372,7 +524,7 @@ class UID2ManagerTest {
         // refreshed Identity.
         var hasErrored = false
         val newIdentity = withRandomIdentity()
-        coEvery { client.refreshIdentity(initialIdentity.refreshToken, initialIdentity.refreshResponseKey) }.answers {
+        coEvery { client.refreshIdentity(initialIdentity.refreshToken, any<SecretKey>()) }.answers {
             if (hasErrored) {
                 ResponsePackage(
                     newIdentity,
@@ -400,11 +552,80 @@ class UID2ManagerTest {
         assertManagerState(manager, newIdentity, REFRESHED)
     }
 
+    @Test
+    fun `reports metrics`() = runTest(testDispatcher) {
+        val metrics = mockk<UID2Metrics>(relaxed = true)
+        val manager = withManager(
+            client,
+            storageManager,
+            timeUtils,
+            inputUtils,
+            testDispatcher,
+            false,
+            listener,
+            metrics = metrics,
+        )
+
+        // Verify that the restored identity was reported, with its token available straight away.
+        verify(exactly = 1) { metrics.onStatusChanged(null, ESTABLISHED, 0) }
+        verify(exactly = 1) { metrics.onTokenUnavailable(0) }
+
+        // Reset the identity, and then set a new one a little later.
+        manager.resetIdentity()
+        testScheduler.advanceTimeBy(5_000)
+        manager.setIdentity(withRandomIdentity())
+        testScheduler.runCurrent()
+
+        // Verify that the time spent without an identity was reported.
+        verify(exactly = 1) { metrics.onStatusChanged(ESTABLISHED, NO_IDENTITY, 0) }
+        verify(exactly = 1) { metrics.onStatusChanged(NO_IDENTITY, ESTABLISHED, 5_000) }
+        verify(exactly = 1) { metrics.onTokenUnavailable(5_000) }
+
+        // Verify that a failed refresh reports its retry.
+        var hasErrored = false
+        coEvery { client.refreshIdentity(any(), any<SecretKey>()) }.answers {
+            if (hasErrored) {
+                ResponsePackage(withRandomIdentity(), REFRESHED, "Refreshed")
+            } else {
+                hasErrored = true
+                throw IOException()
+            }
+        }
+        manager.refreshIdentity()
+        testScheduler.advanceTimeBy(TimeUnit.SECONDS.toMillis(6))
+        verify(exactly = 1) { metrics.onRefreshRetry(0, TimeUnit.SECONDS.toMillis(5)) }
+        verify(exactly = 1) { metrics.onStatusChanged(ESTABLISHED, REFRESHED, any()) }
+    }
+
+    @Test
+    fun `reports token availability`() = runTest(testDispatcher) {
+        // Simulate some ad requests, and reads of the token by the app, while the identity is valid.
+        repeat(3) { manager.getAdvertisingTokenForSignals() }
+        manager.getAdvertisingToken()
+
+        // Expire the identity, without the manager having noticed yet.
+        every { timeUtils.hasExpired(initialIdentity.identityExpires) }.returns(true)
+        manager.getAdvertisingTokenForSignals()
+        testScheduler.runCurrent()
+
+        // Reset the identity, and simulate some further ad requests a little later.
+        manager.resetIdentity()
+        testScheduler.advanceTimeBy(2_000)
+        repeat(2) { manager.getAdvertisingTokenForSignals() }
+
+        // Verify that the ad requests were only counted as signal collections, and not also as reads.
+        val availability = manager.tokenAvailability
+        assertEquals(TokenOutcomes(1, 1, mapOf()), availability.reads)
+        assertEquals(TokenOutcomes(6, 3, mapOf(EXPIRED to 1L, NO_IDENTITY to 2L)), availability.signals)
+        assertEquals(0.5, availability.signals.hitRate, 0.0)
+        assertEquals(2_000, availability.unavailableMs)
+    }
+
     @Test
     fun `refresh retries until expired`() = runTest(testDispatcher) {
         // Configure the client to always report an error, e.g. the network isn't accessible.
         var refreshCount = 0
-        coEvery { client.refreshIdentity(initialIdentity.refreshToken, initialIdentity.refreshResponseKey) }.answers {
+        coEvery { client.refreshIdentity(initialIdentity.refreshToken, any<SecretKey>()) }.answers {
             refreshCount++
             throw IOException()
         }
@@ -431,7 +652,7 @@ class UID2ManagerTest {
             // Configure the client to always report an error, e.g. the network isn't accessible.
             var refreshCount = 0
             coEvery {
-                client.refreshIdentity(initialIdentity.refreshToken, initialIdentity.refreshResponseKey)
+                client.refreshIdentity(initialIdentity.refreshToken, any<SecretKey>())
             }.answers {
                 refreshCount++
                 throw IOException()
@@ -458,6 +679,59 @@ class UID2ManagerTest {
         }
     }
 
+    @Test
+    fun `refresh retries paused while offline`() = runTest(testDispatcher) {
+        // Configure the client to report an error while the device is offline.
+        var refreshCount = 0
+        val newIdentity = withRandomIdentity()
+        coEvery { client.refreshIdentity(initialIdentity.refreshToken, any<SecretKey>()) }.answers {
+            refreshCount++
+            if (isConnected.value) {
+                ResponsePackage(newIdentity, REFRESHED, "Refreshed")
+            } else {
+                throw IOException()
+            }
+        }
+
+        // Take the device offline, and ask the manager to refresh.
+        isConnected.value = false
+        manager.refreshIdentity()
+        testDispatcher.scheduler.advanceTimeBy(TimeUnit.SECONDS.toMillis(1))
+        assertEquals(1, refreshCount)
+
+        // Verify that no further attempts are made while the device remains offline.
+        testDispatcher.scheduler.advanceTimeBy(TimeUnit.HOURS.toMillis(1))
+        assertEquals(1, refreshCount)
+
+        // When connectivity returns, we expect the refresh to be retried immediately.
+        isConnected.value = true
+        testDispatcher.scheduler.runCurrent()
+        assertEquals(2, refreshCount)
+        assertManagerState(manager, newIdentity, REFRESHED)
+    }
+
+    @Test
+    fun `refresh stops retrying when rejected`() = runTest(testDispatcher) {
+        // Configure the client to report that the refresh token has been rejected by the API.
+        var refreshCount = 0
+        coEvery { client.refreshIdentity(initialIdentity.refreshToken, any<SecretKey>()) }.answers {
+            refreshCount++
+            throw RequestFailureException(401)
+        }
+
+        // Ask the manager to refresh, allowing the current TestDispatcher to process all jobs.
+        manager.refreshIdentity()
+        testDispatcher.scheduler.advanceUntilIdle()
+
+        // Verify that since the failure cannot be resolved by retrying, no further attempts were made.
+        assertEquals(1, refreshCount)
+
+        // Verify that the rejected refresh token is no longer automatically refreshed.
+        manager.automaticRefreshEnabled = true
+        testDispatcher.scheduler.advanceUntilIdle()
+        assertEquals(1, refreshCount)
+    }
+
     @Test
     fun `automatically refreshes when enabled`() = runTest(testDispatcher) {
         // Configure the storage to not have access to a previously persisted Identity.
@@ -468,7 +742,7 @@ class UID2ManagerTest {
         val newIdentity = withRandomIdentity()
         var refreshed = false
         every { timeUtils.diffToNow(any()) }.returns(TimeUnit.SECONDS.toMillis(5))
-        coEvery { client.refreshIdentity(any(), any()) }.answers {
+        coEvery { client.refreshIdentity(any(), any<SecretKey>()) }.answers {
             refreshed = true
             ResponsePackage(
                 newIdentity,
@@ -503,6 +777,463 @@ class UID2ManagerTest {
         assertManagerState(manager, newIdentity, REFRESHED)
     }
 
+    @Test
+    fun `warms up connection when refresh is imminent`() = runTest(testDispatcher) {
+        coEvery { client.warmUp() }.returns(Unit)
+
+        // Configure the restored identity to require a refresh within the next minute.
+        every { timeUtils.diffToNow(any()) }.returns(TimeUnit.MINUTES.toMillis(1))
+
+        val manager = withManager(
+            client,
+            storageManager,
+            timeUtils,
+            inputUtils,
+            testDispatcher,
+            true,
+            listener,
+            prewarm = true,
+        )
+        testScheduler.advanceTimeBy(10)
+        manager.automaticRefreshEnabled = false
+
+        // Verify that the connection was warmed up ahead of the refresh.
+        coVerify(exactly = 1) { client.warmUp() }
+    }
+
+    @Test
+    fun `does not warm up connection when refresh is distant`() = runTest(testDispatcher) {
+        coEvery { client.warmUp() }.returns(Unit)
+
+        // Configure the restored identity to require a refresh in an hour's time.
+        every { timeUtils.diffToNow(any()) }.returns(TimeUnit.HOURS.toMillis(1))
+
+        val manager = withManager(
+            client,
+            storageManager,
+            timeUtils,
+            inputUtils,
+            testDispatcher,
+            true,
+            listener,
+            prewarm = true,
+        )
+        testScheduler.advanceTimeBy(10)
+        manager.automaticRefreshEnabled = false
+
+        // Verify that no connection was established, since it would likely be closed before it's used.
+        coVerify(exactly = 0) { client.warmUp() }
+    }
+
+    @Test
+    fun `does not warm up connection when jittered refresh is distant`() = runTest(testDispatcher) {
+        coEvery { client.warmUp() }.returns(Unit)
+        withSchedulerClock()
+
+        // Configure the restored identity to become refreshable within the next minute.
+        val now = testScheduler.currentTime
+        val identity = withRandomIdentity().copy(
+            refreshFrom = now + TimeUnit.MINUTES.toMillis(1),
+            identityExpires = now + TimeUnit.HOURS.toMillis(1),
+            refreshExpires = now + TimeUnit.DAYS.toMillis(1),
+        )
+        coEvery { storageManager.loadIdentity() }.returns(Pair(identity, ESTABLISHED))
+
+        // Configure the policy to choose a refresh time ten minutes after that.
+        val manager = withManager(
+            client,
+            storageManager,
+            timeUtils,
+            inputUtils,
+            testDispatcher,
+            true,
+            listener,
+            prewarm = true,
+        ).apply {
+            refreshWindowPolicy = object : RefreshWindowPolicy {
+                override fun getRefreshTimeMs(identity: UID2Identity, latency: LatencyStats) =
+                    identity.refreshFrom + TimeUnit.MINUTES.toMillis(10)
+            }
+        }
+        testScheduler.advanceTimeBy(10)
+        manager.automaticRefreshEnabled = false
+
+        // Verify that no connection was established, since the refresh won't happen until much later.
+        coVerify(exactly = 0) { client.warmUp() }
+    }
+
+    @Test
+    fun `rapidly replaced identities only act on latest deadlines`() = runTest(testDispatcher) {
+        // Configure the storage to not have access to a previously persisted Identity.
+        coEvery { storageManager.loadIdentity() }.returns(Pair(null, NO_IDENTITY))
+
+        // Bind the TimeUtil's implementation to the clock of the TestDispatcher.
+        every { timeUtils.diffToNow(any()) }.answers {
+            (firstArg() as Long) - testDispatcher.scheduler.currentTime
+        }
+        every { timeUtils.hasExpired(any()) }.answers {
+            (firstArg() as Long) <= testDispatcher.scheduler.currentTime
+        }
+
+        var refreshCount = 0
+        coEvery { client.refreshIdentity(any(), any<SecretKey>()) }.answers {
+            refreshCount++
+            throw IOException()
+        }
+
+        // Build the Manager, allowing it to attempt to load from storage.
+        val manager = withManager(client, storageManager, timeUtils, inputUtils, testDispatcher, true, listener, true)
+        testScheduler.advanceTimeBy(10)
+
+        // Rapidly set many identities, each of which would need refreshing and expire within the next few seconds.
+        val now = testScheduler.currentTime
+        repeat(1000) {
+            manager.setIdentity(
+                withRandomIdentity().copy(
+                    refreshFrom = now + 1000 + it,
+                    identityExpires = now + 2000 + it,
+                    refreshExpires = now + 3000 + it,
+                ),
+            )
+        }
+
+        // Finally, set an identity whose deadlines are all much further away.
+        val latestIdentity = withRandomIdentity().copy(
+            refreshFrom = now + TimeUnit.HOURS.toMillis(1),
+            identityExpires = now + TimeUnit.HOURS.toMillis(2),
+            refreshExpires = now + TimeUnit.HOURS.toMillis(3),
+        )
+        manager.setIdentity(latestIdentity)
+
+        // Advance past the deadlines of all the replaced identities. Verify that none of them were acted upon.
+        testScheduler.advanceTimeBy(TimeUnit.SECONDS.toMillis(10))
+        assertEquals(0, refreshCount)
+        verify(exactly = 0) { listener.onIdentityStatusChanged(any(), EXPIRED) }
+        verify(exactly = 0) { listener.onIdentityStatusChanged(any(), REFRESH_EXPIRED) }
+
+        // Stop observing the latest identity's deadlines, so that we can verify the state without reaching them.
+        manager.checkExpiration = false
+        manager.automaticRefreshEnabled = false
+        assertManagerState(manager, latestIdentity, REFRESHED)
+    }
+
+    @Test
+    fun `defers refresh while in background`() = runTest(testDispatcher) {
+        coEvery { storageManager.loadIdentity() }.returns(Pair(null, NO_IDENTITY))
+        withSchedulerClock()
+
+        val newIdentity = withRandomIdentity()
+        var refreshCount = 0
+        coEvery { client.refreshIdentity(any(), any<SecretKey>()) }.answers {
+            refreshCount++
+            ResponsePackage(newIdentity, REFRESHED, "Refreshed")
+        }
+
+        val manager = withManager(client, storageManager, timeUtils, inputUtils, testDispatcher, true, listener)
+        testScheduler.advanceTimeBy(10)
+
+        // Set an identity that becomes refreshable in a minute, and whose refresh token is valid for another day.
+        val now = testScheduler.currentTime
+        val identity = withRandomIdentity().copy(
+            refreshFrom = now + TimeUnit.MINUTES.toMillis(1),
+            identityExpires = now + TimeUnit.HOURS.toMillis(4),
+            refreshExpires = now + TimeUnit.DAYS.toMillis(1),
+        )
+        manager.setIdentity(identity)
+        testScheduler.advanceTimeBy(10)
+
+        // Move the app to the background, and verify that no refresh is made once it's due.
+        isForeground.value = false
+        testScheduler.advanceTimeBy(TimeUnit.HOURS.toMillis(1))
+        assertEquals(0, refreshCount)
+        assertEquals(1, manager.refreshStats.deferredInBackground)
+
+        // When the app returns to the foreground, we expect a single catch-up refresh.
+        isForeground.value = true
+        testScheduler.runCurrent()
+        manager.automaticRefreshEnabled = false
+        assertEquals(1, refreshCount)
+        assertManagerState(manager, newIdentity, REFRESHED)
+    }
+
+    @Test
+    fun `defers immediate refresh while in background`() = runTest(testDispatcher) {
+        coEvery { storageManager.loadIdentity() }.returns(Pair(null, NO_IDENTITY))
+        withSchedulerClock()
+
+        val newIdentity = withRandomIdentity()
+        var refreshCount = 0
+        coEvery { client.refreshIdentity(any(), any<SecretKey>()) }.answers {
+            refreshCount++
+            ResponsePackage(newIdentity, REFRESHED, "Refreshed")
+        }
+
+        val manager = withManager(client, storageManager, timeUtils, inputUtils, testDispatcher, true, listener)
+        testScheduler.advanceTimeBy(10)
+
+        // While the app is in the background, set an identity that is already refreshable.
+        val now = testScheduler.currentTime
+        val identity = withRandomIdentity().copy(
+            refreshFrom = now - TimeUnit.MINUTES.toMillis(1),
+            identityExpires = now + TimeUnit.HOURS.toMillis(4),
+            refreshExpires = now + TimeUnit.DAYS.toMillis(1),
+        )
+        isForeground.value = false
+        manager.setIdentity(identity)
+
+        // Verify that the refresh is deferred, rather than made immediately.
+        testScheduler.advanceTimeBy(TimeUnit.MINUTES.toMillis(1))
+        assertEquals(0, refreshCount)
+        assertEquals(1, manager.refreshStats.deferredInBackground)
+
+        // When the app returns to the foreground, we expect the refresh to be made.
+        isForeground.value = true
+        testScheduler.runCurrent()
+        manager.automaticRefreshEnabled = false
+        assertEquals(1, refreshCount)
+        assertManagerState(manager, newIdentity, REFRESHED)
+    }
+
+    @Test
+    fun `detects expiry while refresh is deferred in background`() = runTest(testDispatcher) {
+        coEvery { storageManager.loadIdentity() }.returns(Pair(null, NO_IDENTITY))
+        withSchedulerClock()
+
+        var refreshCount = 0
+        coEvery { client.refreshIdentity(any(), any<SecretKey>()) }.answers {
+            refreshCount++
+            ResponsePackage(withRandomIdentity(), REFRESHED, "Refreshed")
+        }
+
+        val manager = withManager(
+            client,
+            storageManager,
+            timeUtils,
+            inputUtils,
+            testDispatcher,
+            true,
+            listener,
+            initialCheckExpiration = true,
+        )
+        testScheduler.advanceTimeBy(10)
+
+        // Set an identity that becomes refreshable in a minute, and expires an hour later.
+        val now = testScheduler.currentTime
+        val identity = withRandomIdentity().copy(
+            refreshFrom = now + TimeUnit.MINUTES.toMillis(1),
+            identityExpires = now + TimeUnit.HOURS.toMillis(1),
+            refreshExpires = now + TimeUnit.DAYS.toMillis(1),
+        )
+        manager.setIdentity(identity)
+        testScheduler.advanceTimeBy(10)
+
+        // Move the app to the background, and verify that while the refresh is deferred, the identity's expiry is
+        // still detected.
+        isForeground.value = false
+        testScheduler.advanceTimeBy(TimeUnit.HOURS.toMillis(2))
+        manager.automaticRefreshEnabled = false
+        assertEquals(0, refreshCount)
+        assertEquals(identity, manager.currentIdentity)
+        assertEquals(EXPIRED, manager.currentIdentityStatus)
+        verify { listener.onIdentityStatusChanged(identity, EXPIRED) }
+    }
+
+    @Test
+    fun `refreshes in background when refresh is about to expire`() = runTest(testDispatcher) {
+        coEvery { storageManager.loadIdentity() }.returns(Pair(null, NO_IDENTITY))
+        withSchedulerClock()
+
+        val newIdentity = withRandomIdentity()
+        var refreshCount = 0
+        coEvery { client.refreshIdentity(any(), any<SecretKey>()) }.answers {
+            refreshCount++
+            ResponsePackage(newIdentity, REFRESHED, "Refreshed")
+        }
+
+        val manager = withManager(client, storageManager, timeUtils, inputUtils, testDispatcher, true, listener)
+        testScheduler.advanceTimeBy(10)
+
+        // Set an identity whose refresh token expires shortly after it becomes refreshable.
+        val now = testScheduler.currentTime
+        val identity = withRandomIdentity().copy(
+            refreshFrom = now + TimeUnit.MINUTES.toMillis(1),
+            identityExpires = now + TimeUnit.MINUTES.toMillis(10),
+            refreshExpires = now + TimeUnit.MINUTES.toMillis(30),
+        )
+        isForeground.value = false
+        manager.setIdentity(identity)
+
+        // Verify that the refresh isn't deferred, since the identity would be lost before the app returns.
+        testScheduler.advanceTimeBy(TimeUnit.MINUTES.toMillis(2))
+        manager.automaticRefreshEnabled = false
+        assertEquals(1, refreshCount)
+        assertEquals(0, manager.refreshStats.deferredInBackground)
+        assertManagerState(manager, newIdentity, REFRESHED)
+    }
+
+    @Test
+    fun `does not provide expired token`() = runTest(testDispatcher) {
+        assertEquals(initialIdentity.advertisingToken, manager.getAdvertisingToken())
+        clearMocks(listener)
+
+        // Simulate the identity expiring, without the manager having detected it yet, e.g. the device was asleep.
+        every { timeUtils.hasExpired(initialIdentity.identityExpires) }.returns(true)
+
+        // Verify that the token is not provided, regardless of how many times it's requested.
+        repeat(10) {
+            assertNull(manager.getAdvertisingToken())
+        }
+
+        // Verify that the manager updates its state accordingly, only once.
+        testDispatcher.scheduler.advanceUntilIdle()
+        verify(exactly = 1) { listener.onIdentityStatusChanged(initialIdentity, EXPIRED) }
+        assertEquals(initialIdentity, manager.currentIdentity)
+        assertEquals(EXPIRED, manager.currentIdentityStatus)
+    }
+
+    @Test
+    fun `awaits available token`() = runTest(testDispatcher) {
+        // Verify that an available token is returned immediately, via both the suspending and callback variants.
+        assertEquals(initialIdentity.advertisingToken, manager.awaitAdvertisingToken(0))
+
+        var result: String? = null
+        manager.awaitAdvertisingToken(0) { result = it }
+        testDispatcher.scheduler.runCurrent()
+        assertEquals(initialIdentity.advertisingToken, result)
+    }
+
+    @Test
+    fun `awaits token without waiting for missing identity`() = runTest(testDispatcher) {
+        manager.resetIdentity()
+
+        // Verify that we don't wait when there's no identity to wait for.
+        val start = testDispatcher.scheduler.currentTime
+        assertNull(manager.awaitAdvertisingToken(TimeUnit.SECONDS.toMillis(10)))
+        assertEquals(start, testDispatcher.scheduler.currentTime)
+    }
+
+    @Test
+    fun `awaits token from refresh of expired identity`() = runTest(testDispatcher) {
+        withSchedulerClock()
+
+        // Configure storage with an identity that has expired, but which can still be refreshed.
+        val now = testDispatcher.scheduler.currentTime
+        val expiredIdentity = withRandomIdentity().copy(
+            refreshFrom = now,
+            identityExpires = now,
+            refreshExpires = now + 10000,
+        )
+        coEvery { storageManager.loadIdentity() }.returns(Pair(expiredIdentity, ESTABLISHED))
+
+        // Configure the refresh to take some time to complete.
+        val newIdentity = withRandomIdentity()
+        coEvery { client.refreshIdentity(expiredIdentity.refreshToken, any<SecretKey>()) }.coAnswers {
+            delay(100)
+            ResponsePackage(newIdentity, REFRESHED, "Refreshed")
+        }
+
+        // Verify that the refresh hasn't completed within a short timeout, but that a longer timeout receives its
+        // token.
+        val manager = withManager(client, storageManager, timeUtils, inputUtils, testDispatcher, true, listener)
+        assertNull(manager.awaitAdvertisingToken(50))
+        assertEquals(newIdentity.advertisingToken, manager.awaitAdvertisingToken(150))
+
+        // Disable automatic refresh, so that the test can complete.
+        manager.automaticRefreshEnabled = false
+    }
+
+    @Test
+    fun `awaits token without waiting for expired identity that won't be refreshed`() = runTest(testDispatcher) {
+        withSchedulerClock()
+
+        // Configure storage with an identity that has expired, while automatic refresh is disabled.
+        val now = testDispatcher.scheduler.currentTime
+        val expiredIdentity = withRandomIdentity().copy(
+            refreshFrom = now,
+            identityExpires = now,
+            refreshExpires = now + 10000,
+        )
+        coEvery { storageManager.loadIdentity() }.returns(Pair(expiredIdentity, ESTABLISHED))
+
+        // Verify that we don't wait out the timeout, since no refresh will be made.
+        val manager = withManager(client, storageManager, timeUtils, inputUtils, testDispatcher, false, listener)
+        val start = testDispatcher.scheduler.currentTime
+        assertNull(manager.awaitAdvertisingToken(TimeUnit.SECONDS.toMillis(10)))
+        assertEquals(start, testDispatcher.scheduler.currentTime)
+        coVerify(exactly = 0) { client.refreshIdentity(any(), any<SecretKey>()) }
+    }
+
+    @Test
+    fun `provides snapshot token while loading`() = runTest(testDispatcher) {
+        // Configure the storage to take some time to load the identity, but provide a snapshot immediately.
+        every { storageManager.loadSnapshot() }.returns(
+            IdentitySnapshot(initialIdentity.advertisingToken, initialIdentity.identityExpires),
+        )
+        coEvery { storageManager.loadIdentity() }.coAnswers {
+            delay(1000)
+            Pair(initialIdentity, initialStatus)
+        }
+
+        // Verify that the snapshot's token is available before the manager has loaded the full identity.
+        val manager = withManager(
+            client,
+            storageManager,
+            timeUtils,
+            inputUtils,
+            testDispatcher,
+            false,
+            listener,
+            warmStart = true,
+            awaitInitialized = false,
+        )
+        assertEquals(UID2ManagerState.Loading, manager.state.first())
+        assertEquals(initialIdentity.advertisingToken, manager.getAdvertisingToken())
+
+        // Verify that an expired snapshot is not used.
+        every { timeUtils.hasExpired(initialIdentity.identityExpires) }.returns(true)
+        assertNull(manager.getAdvertisingToken())
+    }
+
+    @Test
+    fun `warm start improves fill rate after launch`() = runTest(testDispatcher) {
+        every { storageManager.loadSnapshot() }.returns(
+            IdentitySnapshot(initialIdentity.advertisingToken, initialIdentity.identityExpires),
+        )
+        coEvery { storageManager.loadIdentity() }.coAnswers {
+            delay(STORAGE_LOAD_MS)
+            Pair(initialIdentity, initialStatus)
+        }
+
+        // Simulate an ad request every 100ms for the first few seconds after launch, and measure how many of them were
+        // able to include an advertising token.
+        val fillRate = listOf(false, true).associateWith { warmStart ->
+            val manager = withManager(
+                client,
+                storageManager,
+                timeUtils,
+                inputUtils,
+                testDispatcher,
+                false,
+                listener,
+                warmStart = warmStart,
+                awaitInitialized = false,
+            )
+
+            val requests = (LAUNCH_WINDOW_MS / AD_REQUEST_INTERVAL_MS).toInt()
+            var filled = 0
+            repeat(requests) {
+                if (manager.getAdvertisingToken() != null) {
+                    filled++
+                }
+                delay(AD_REQUEST_INTERVAL_MS)
+            }
+            filled * 100 / requests
+        }
+
+        assertEquals(100, fillRate[true])
+        assertTrue("Fill rate: $fillRate", fillRate.getValue(true) > fillRate.getValue(false))
+    }
+
     @Test
     fun `updates after identity expiration`() = runTest(testDispatcher) {
         // Configure the storage to not have access to a previously persisted Identity.
@@ -536,6 +1267,40 @@ class UID2ManagerTest {
         assertManagerState(manager, null, REFRESH_EXPIRED)
     }
 
+    @Test
+    fun `reschedules deadlines after time is corrected`() = runTest(testDispatcher) {
+        coEvery { storageManager.loadIdentity() }.returns(Pair(null, NO_IDENTITY))
+
+        // Bind the TimeUtil's implementation to the clock of the TestDispatcher, along with any correction to it.
+        var correctionMs = 0L
+        every { timeUtils.diffToNow(any()) }.answers {
+            (firstArg() as Long) - (testDispatcher.scheduler.currentTime + correctionMs)
+        }
+        every { timeUtils.hasExpired(any()) }.answers {
+            (firstArg() as Long) <= testDispatcher.scheduler.currentTime + correctionMs
+        }
+
+        val manager = withManager(client, storageManager, timeUtils, inputUtils, testDispatcher, false, listener, true)
+        testScheduler.advanceTimeBy(10)
+
+        // Set an identity which expires in an hour.
+        val identity = withRandomIdentity().copy(
+            identityExpires = TimeUnit.HOURS.toMillis(1),
+            refreshFrom = TimeUnit.MINUTES.toMillis(30),
+            refreshExpires = TimeUnit.HOURS.toMillis(2),
+        )
+        manager.setIdentity(identity)
+        testScheduler.advanceTimeBy(10)
+        clearMocks(listener)
+
+        // The server reports that our clock was an hour behind. Verify that the expiry is detected straight away,
+        // rather than an hour later as originally scheduled.
+        correctionMs = TimeUnit.HOURS.toMillis(1)
+        timeCorrections.emit(Unit)
+        testScheduler.advanceTimeBy(1_000)
+        verify { listener.onIdentityStatusChanged(identity, EXPIRED) }
+    }
+
     /**
      * Helper function to assert that the Manager is in the expected state, and that state was reported via the
      * supported callback / flow.
@@ -572,6 +1337,10 @@ class UID2ManagerTest {
         initialAutomaticRefreshEnabled: Boolean,
         listener: UID2ManagerIdentityChangedListener?,
         initialCheckExpiration: Boolean = false,
+        prewarm: Boolean = false,
+        warmStart: Boolean = false,
+        awaitInitialized: Boolean = true,
+        metrics: UID2Metrics = UID2Metrics.NONE,
     ): UID2Manager {
         return UID2Manager(
             client = client,
@@ -582,16 +1351,35 @@ class UID2ManagerTest {
             initialAutomaticRefreshEnabled = initialAutomaticRefreshEnabled,
             isEuid = false,
             logger = logger,
+            prewarmConnection = prewarm,
+            connectivityMonitor = connectivityMonitor,
+            warmStartSnapshot = if (warmStart) storageManager.loadSnapshot() else null,
+            appVisibility = appVisibility,
+            metrics = metrics,
         ).apply {
             onIdentityChangedListener = listener
             checkExpiration = initialCheckExpiration
+            refreshRetryPolicy = fixedRetryPolicy
+            refreshWindowPolicy = exactRefreshWindowPolicy
 
-            if (!initialAutomaticRefreshEnabled && !initialCheckExpiration) {
+            if (!initialAutomaticRefreshEnabled && !initialCheckExpiration && awaitInitialized) {
                 testDispatcher.scheduler.advanceUntilIdle()
             }
         }
     }
 
+    /**
+     * Helper function to bind the TimeUtil's implementation to the clock of the TestDispatcher.
+     */
+    private fun withSchedulerClock() {
+        every { timeUtils.diffToNow(any()) }.answers {
+            (firstArg() as Long) - testDispatcher.scheduler.currentTime
+        }
+        every { timeUtils.hasExpired(any()) }.answers {
+            (firstArg() as Long) <= testDispatcher.scheduler.currentTime
+        }
+    }
+
     /**
      * Helper function to create a new (Random) identity.
      */
@@ -616,4 +1404,12 @@ class UID2ManagerTest {
 
     private fun randomString(length: Int) = List(length) { charPool.random() }.joinToString("")
     private fun randomLong(min: Long) = Random.nextLong(min, Long.MAX_VALUE)
+
+    private companion object {
+        // The simulated time taken to load the full identity from storage at launch.
+        const val STORAGE_LOAD_MS = 1500L
+
+        const val LAUNCH_WINDOW_MS = 3000L
+        const val AD_REQUEST_INTERVAL_MS = 100L
+    }
 }
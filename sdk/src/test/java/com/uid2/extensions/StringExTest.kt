@@ -44,6 +44,69 @@ class StringExTest {
         assertEquals(input, inputDecoded?.toString(Charsets.UTF_8))
     }
 
+    @Test
+    fun `test base64 decoding into buffer`() {
+        // Verify that inputs of every length (and therefore amount of padding) are decoded, with or without padding.
+        val input = "This is a test string".toByteArray(Charsets.UTF_8)
+        for (length in 0..input.size) {
+            val expected = input.copyOf(length)
+            val encoded = Base64.getEncoder().encodeToString(expected)
+
+            listOf(encoded, encoded.trimEnd('=')).forEach {
+                val buffer = ByteArray(it.decodedBase64Length())
+                val decoded = it.decodeBase64Into(buffer)
+                assertEquals(expected.toList(), buffer.copyOf(decoded).toList())
+            }
+        }
+    }
+
+    @Test
+    fun `test base64 decoding into buffer ignores whitespace`() {
+        // Verify that line breaks (as included when wrapping) and other whitespace are skipped, as with decodeBase64.
+        listOf("QUJD\n", "QUJD\r\nRA==\n", " QU JD\tRA= =").forEach {
+            val buffer = ByteArray(it.decodedBase64Length())
+            val decoded = it.decodeBase64Into(buffer)
+            assertEquals(it.filterNot(Char::isWhitespace), Base64.getEncoder().encodeToString(buffer.copyOf(decoded)))
+        }
+    }
+
+    @Test
+    fun `test base64 decoding into buffer matches android decoder`() {
+        // android.util.Base64 skips any character outside of the alphabet, rather than rejecting it, and allows the
+        // final quantum to be left unpadded. These expectations follow its decoder, since the JVM's can't be used to
+        // check them.
+        mapOf(
+            "QU!JD" to "ABC",
+            "Q\u00e9UJD" to "ABC",
+            "QUJDRA" to "ABCD",
+            "QUJDREU" to "ABCDE",
+            "QUJDRA==.." to "ABCD",
+            "This is not valid" to "N\u0018\u00ac\u008a\u00c9\u00e8\u00b6\u00f6\u00a5\u0089",
+        ).forEach { (input, expected) ->
+            val buffer = ByteArray(input.decodedBase64Length())
+            val decoded = input.decodeBase64Into(buffer)
+            assertEquals(expected, String(buffer, 0, decoded, Charsets.ISO_8859_1))
+        }
+    }
+
+    @Test
+    fun `test base64 decoding invalid input into buffer`() {
+        val buffer = ByteArray(64)
+
+        assertEquals(-1, "QUJDR".decodeBase64Into(buffer))
+        assertEquals(-1, "QUI=QUI=".decodeBase64Into(buffer))
+        assertEquals(-1, "QUJDRA===".decodeBase64Into(buffer))
+        assertEquals(-1, "QUJDRA=".decodeBase64Into(buffer))
+        assertEquals(-1, "QUJDRA=Q".decodeBase64Into(buffer))
+        assertEquals(-1, "=QUJD".decodeBase64Into(buffer))
+        assertEquals(-1, "Q=".decodeBase64Into(buffer))
+        assertEquals(-1, "QUJD=".decodeBase64Into(buffer))
+
+        // The buffer is too small to hold the decoded input.
+        assertEquals(-1, "QUJDRA==".decodeBase64Into(ByteArray(3)))
+        assertEquals(-1, "QUJDRA".decodeBase64Into(ByteArray(3)))
+    }
+
     @Test
     fun `test SHA-256 hashing`() {
         mapOf(
@@ -0,0 +1,75 @@
+package com.uid2.network
+
+import com.uid2.UID2Client
+import com.uid2.data.IdentityStatus.REFRESHED
+import com.uid2.data.TestData
+import com.uid2.utils.Logger
+import io.mockk.mockk
+import kotlinx.coroutines.runBlocking
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import java.net.URL
+
+/**
+ * Verifies that warming up the connection to the API server allows a subsequent request to reuse it, against a local
+ * TLS stand-in for the operator.
+ */
+class ConnectionWarmUpTest {
+    private val logger = mockk<Logger>(relaxed = true)
+
+    // Whether each request made reused an existing connection, in order.
+    private val connectionsReused = mutableListOf<Boolean>()
+    private val listener = object : NetworkEventListener {
+        override fun onRequestTimed(url: URL, timings: NetworkTimings) {
+            connectionsReused += timings.connectionReused
+        }
+    }
+
+    private val server = LocalTlsServer { path ->
+        when (path) {
+            "/ops/healthcheck" -> 200 to "OK"
+            "/v2/token/refresh" -> 200 to TestData.REFRESH_TOKEN_SUCCESS_ENCRYPTED
+            else -> 404 to ""
+        }
+    }
+
+    @After
+    fun after() {
+        server.close()
+    }
+
+    @Test
+    fun `refresh reuses warmed up connection`() = runBlocking {
+        val client = withClient()
+
+        client.warmUp()
+        val response = client.refreshIdentity("refresh", TestData.REFRESH_TOKEN_ENCRYPTED_SUCCESS_KEY)
+        assertEquals(REFRESHED, response.status)
+
+        // Verify that both requests were made, but only a single connection was established. The refresh itself should
+        // have reused the connection established by the warm up.
+        assertEquals(listOf("/ops/healthcheck", "/v2/token/refresh"), server.requests)
+        assertEquals(1, server.connections.size)
+        assertEquals(listOf(false, true), connectionsReused)
+    }
+
+    @Test
+    fun `refresh without warm up establishes connection`() = runBlocking {
+        val client = withClient()
+
+        val response = client.refreshIdentity("refresh", TestData.REFRESH_TOKEN_ENCRYPTED_SUCCESS_KEY)
+        assertEquals(REFRESHED, response.status)
+
+        // Without the warm up, the refresh must establish the connection (including the TLS handshake) itself.
+        assertEquals(listOf("/v2/token/refresh"), server.requests)
+        assertEquals(listOf(false), connectionsReused)
+    }
+
+    private fun withClient() = UID2Client(
+        apiUrl = server.url,
+        session = server.newSession(listener).asSuspending(),
+        applicationId = "com.uid2.devapp",
+        logger = logger,
+    )
+}
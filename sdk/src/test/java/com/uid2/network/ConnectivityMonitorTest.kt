@@ -0,0 +1,58 @@
+package com.uid2.network
+
+import android.content.BroadcastReceiver
+import android.content.Context
+import android.net.ConnectivityManager
+import android.net.NetworkInfo
+import io.mockk.every
+import io.mockk.mockk
+import io.mockk.slot
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class ConnectivityMonitorTest {
+    private val networkInfo = mockk<NetworkInfo>()
+    private val connectivityManager = mockk<ConnectivityManager>()
+    private val receiver = slot<BroadcastReceiver>()
+    private val context = mockk<Context>(relaxed = true)
+
+    @Test
+    fun `reports connectivity changes`() {
+        every { networkInfo.isConnected }.returns(true)
+        every { connectivityManager.activeNetworkInfo }.returns(networkInfo)
+        every { context.applicationContext }.returns(context)
+        every { context.getSystemService(Context.CONNECTIVITY_SERVICE) }.returns(connectivityManager)
+        every { context.registerReceiver(capture(receiver), any()) }.returns(null)
+
+        // Verify that the initial connectivity is reported.
+        val monitor = AndroidConnectivityMonitor.create(context)
+        assertTrue(monitor.isConnected.value)
+
+        // Simulate the device going offline.
+        every { networkInfo.isConnected }.returns(false)
+        receiver.captured.onReceive(context, mockk())
+        assertFalse(monitor.isConnected.value)
+
+        // Simulate the device losing its network entirely.
+        every { connectivityManager.activeNetworkInfo }.returns(null)
+        receiver.captured.onReceive(context, mockk())
+        assertFalse(monitor.isConnected.value)
+
+        // Simulate the device coming back online.
+        every { connectivityManager.activeNetworkInfo }.returns(networkInfo)
+        every { networkInfo.isConnected }.returns(true)
+        receiver.captured.onReceive(context, mockk())
+        assertTrue(monitor.isConnected.value)
+    }
+
+    @Test
+    fun `falls back to always connected`() {
+        every { context.applicationContext }.returns(context)
+        every { context.getSystemService(Context.CONNECTIVITY_SERVICE) }.returns(null)
+
+        assertEquals(AlwaysConnectedMonitor, AndroidConnectivityMonitor.create(context))
+        assertTrue(AlwaysConnectedMonitor.isConnected.value)
+    }
+}
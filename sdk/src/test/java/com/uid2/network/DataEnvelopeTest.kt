@@ -2,10 +2,19 @@ package com.uid2.network
 
 import com.uid2.data.TestData
 import org.json.JSONObject
+import org.junit.Assert.assertArrayEquals
 import org.junit.Assert.assertEquals
 import org.junit.Assert.assertNotNull
 import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
 import org.junit.Test
+import java.nio.ByteBuffer
+import java.util.Base64
+import javax.crypto.Cipher
+import javax.crypto.KeyGenerator
+import javax.crypto.SecretKey
+import javax.crypto.spec.GCMParameterSpec
+import javax.crypto.spec.SecretKeySpec
 
 class DataEnvelopeTest {
     private val dataEnvelope = DataEnvelope
@@ -67,4 +76,152 @@ class DataEnvelopeTest {
         // Verify that when attempting to decrypt invalid data with a valid key, we are returned the expected null.
         assertNull(payload)
     }
+
+    @Test
+    fun `test encrypt round trip`() {
+        val key = KeyGenerator.getInstance("AES").apply { init(256) }.generateKey()
+
+        // Encrypt the data, and then package it up (prefixed with the IV) in the same format as the API would. This is
+        // repeated to verify that the same Cipher can be reused.
+        repeat(3) { index ->
+            val data = "Payload $index"
+            val iv = ByteArray(12) { index.toByte() }
+            val encrypted = dataEnvelope.encrypt(key, data, iv, byteArrayOf())
+            assertNotNull(encrypted)
+
+            val envelope = Base64.getEncoder().encodeToString(iv + encrypted!!)
+            val payload = dataEnvelope.decrypt(key.encoded, envelope, false)
+            assertEquals(data, payload?.let { String(it, Charsets.UTF_8) })
+        }
+    }
+
+    @Test
+    fun `test decrypt to buffer`() {
+        val buffer = dataEnvelope.decryptToBuffer(
+            TestData.REFRESH_TOKEN_ENCRYPTED_SUCCESS_KEY,
+            TestData.REFRESH_TOKEN_SUCCESS_ENCRYPTED,
+            false,
+        )
+
+        // Verify that the view of the decrypted data matches what we expect.
+        assertNotNull(buffer)
+        val payloadJson = buffer?.let { JSONObject(Charsets.UTF_8.decode(it).toString()) }
+        val expectedJson = JSONObject(TestData.REFRESH_TOKEN_SUCCESS_DECRYPTED)
+        assertEquals(expectedJson.toString(0), payloadJson?.toString(0))
+    }
+
+    @Test
+    fun `test releasing buffer clears decrypted data`() {
+        val decrypted = dataEnvelope.decryptToBuffer(
+            TestData.REFRESH_TOKEN_ENCRYPTED_SUCCESS_KEY,
+            TestData.REFRESH_TOKEN_SUCCESS_ENCRYPTED,
+            false,
+        )!!
+
+        // Once released, the decrypted data should no longer be held in the (reused) buffer.
+        dataEnvelope.releaseBuffer(decrypted)
+        assertTrue(decrypted.remaining() > 0)
+        assertTrue((decrypted.position() until decrypted.limit()).all { decrypted[it] == 0.toByte() })
+    }
+
+    @Test
+    fun `test decrypt to buffer skips nonce`() {
+        val key = KeyGenerator.getInstance("AES").apply { init(256) }.generateKey()
+        val iv = ByteArray(12) { 1 }
+        val nonce = ByteArray(16) { 2 }
+        val data = "Payload"
+
+        // Encrypt the data prefixed with a timestamp and nonce, as a response to a request that included a nonce would.
+        val encrypted = Cipher.getInstance("AES/GCM/NoPadding").apply {
+            init(Cipher.ENCRYPT_MODE, key, GCMParameterSpec(128, iv))
+        }.doFinal(nonce + data.toByteArray())
+        val envelope = Base64.getEncoder().encodeToString(iv + encrypted)
+
+        val buffer = dataEnvelope.decryptToBuffer(key.encoded, envelope, true)
+        assertEquals(data, buffer?.let { Charsets.UTF_8.decode(it).toString() })
+        assertEquals(data, dataEnvelope.decrypt(key.encoded, envelope, true)?.let { String(it, Charsets.UTF_8) })
+    }
+
+    @Test
+    fun `test decrypt to buffer clears payload too short for nonce`() {
+        val key = KeyGenerator.getInstance("AES").apply { init(256) }.generateKey()
+        val iv = ByteArray(12) { 1 }
+        val data = ByteArray(8) { 7 }
+
+        // Decrypt something first, so that we can see the (reused) buffer that the next payload is decrypted into.
+        val previous = dataEnvelope.decryptToBuffer(
+            TestData.REFRESH_TOKEN_ENCRYPTED_SUCCESS_KEY,
+            TestData.REFRESH_TOKEN_SUCCESS_ENCRYPTED,
+            false,
+        )!!
+        val array = previous.array()
+
+        // The payload is shorter than the expected timestamp and nonce, so is rejected. The partial payload that was
+        // decrypted should not be left behind.
+        val encrypted = Cipher.getInstance("AES/GCM/NoPadding").apply {
+            init(Cipher.ENCRYPT_MODE, key, GCMParameterSpec(128, iv))
+        }.doFinal(data)
+        val envelope = Base64.getEncoder().encodeToString(iv + encrypted)
+
+        assertNull(dataEnvelope.decryptToBuffer(key.encoded, envelope, true))
+        assertTrue((12 until 12 + data.size).all { array[it] == 0.toByte() })
+    }
+
+    @Test
+    fun `test decrypt to buffer with too little data`() {
+        val key = KeyGenerator.getInstance("AES").apply { init(256) }.generateKey()
+        val envelope = Base64.getEncoder().encodeToString(ByteArray(8))
+
+        assertNull(dataEnvelope.decryptToBuffer(key.encoded, envelope, false))
+    }
+
+    @Test
+    fun `test decrypt to buffer default adapter`() {
+        val payload = "Payload".toByteArray()
+
+        // An implementation that only provides the original methods should still support decrypting to a buffer.
+        val custom = object : DataEnvelope {
+            override fun encrypt(key: SecretKey, data: String, iv: ByteArray, aad: ByteArray) = null
+            override fun decrypt(key: String, data: String, includesNonce: Boolean) = payload
+            override fun decrypt(key: ByteArray?, data: String, includesNonce: Boolean) = payload
+        }
+
+        assertEquals(ByteBuffer.wrap(payload), custom.decryptToBuffer("key", "data", false))
+        assertEquals(ByteBuffer.wrap(payload), custom.decryptToBuffer(ByteArray(32), "data", false))
+        assertEquals(
+            ByteBuffer.wrap(payload),
+            custom.decryptToBuffer(SecretKeySpec(ByteArray(32), "AES"), "data", false),
+        )
+    }
+
+    @Test
+    fun `test decrypt to buffer default adapter zeroes encoded key`() {
+        val keys = mutableListOf<ByteArray?>()
+        val custom = object : DataEnvelope {
+            override fun encrypt(key: SecretKey, data: String, iv: ByteArray, aad: ByteArray) = null
+            override fun decrypt(key: String, data: String, includesNonce: Boolean) = null
+            override fun decrypt(key: ByteArray?, data: String, includesNonce: Boolean): ByteArray? {
+                keys.add(key)
+                return null
+            }
+        }
+
+        // The copy of the key's material made for the default adapter should be zeroed once it's been used.
+        val key = SecretKeySpec(ByteArray(32) { 1 }, "AES")
+        custom.decryptToBuffer(key, "data", false)
+        assertArrayEquals(ByteArray(32), keys.single())
+        assertArrayEquals(ByteArray(32) { 1 }, key.encoded)
+    }
+
+    @Test
+    fun `test decrypt to buffer with decoded key`() {
+        val key = RefreshResponseKey.decode(TestData.REFRESH_TOKEN_ENCRYPTED_SUCCESS_KEY)
+        assertNotNull(key)
+
+        // Verify that decrypting with the decoded key matches decrypting with its Base64 form.
+        val buffer = key?.let { dataEnvelope.decryptToBuffer(it, TestData.REFRESH_TOKEN_SUCCESS_ENCRYPTED, false) }
+        val payloadJson = buffer?.let { JSONObject(Charsets.UTF_8.decode(it).toString()) }
+        val expectedJson = JSONObject(TestData.REFRESH_TOKEN_SUCCESS_DECRYPTED)
+        assertEquals(expectedJson.toString(0), payloadJson?.toString(0))
+    }
 }
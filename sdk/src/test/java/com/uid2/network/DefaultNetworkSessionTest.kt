@@ -1,18 +1,25 @@
 package com.uid2.network
 
+import com.uid2.UID2Metrics
 import com.uid2.extensions.decodeJsonToMap
 import com.uid2.network.NetworkRequestType.GET
 import com.uid2.network.NetworkRequestType.POST
+import com.uid2.reportingTo
 import io.mockk.every
 import io.mockk.junit4.MockKRule
 import io.mockk.mockk
 import io.mockk.verify
 import org.json.JSONObject
 import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNotSame
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertSame
 import org.junit.Before
 import org.junit.Rule
 import org.junit.Test
 import java.io.ByteArrayInputStream
+import java.io.IOException
 import java.io.OutputStream
 import java.net.HttpURLConnection
 import java.net.URL
@@ -90,6 +97,18 @@ class DefaultNetworkSessionTest {
         assertEquals("", response.data)
     }
 
+    @Test
+    fun `test request unable to reach server`() {
+        every { connection.responseCode }.throws(IOException())
+
+        val session = buildNetworkSession()
+        val response = session.loadData(url, NetworkRequest(GET))
+
+        // Verify that the failure is reported as an internal error, which never reached the server.
+        assertEquals(HttpURLConnection.HTTP_INTERNAL_ERROR, response.code)
+        assertFalse(response.reachedServer)
+    }
+
     @Test
     fun `test request success`() {
         every { connection.responseCode }.returns(HttpURLConnection.HTTP_OK)
@@ -114,6 +133,46 @@ class DefaultNetworkSessionTest {
         assertEquals(map, response.data.decodeJsonToMap())
     }
 
+    @Test
+    fun `test response headers`() {
+        every { connection.responseCode }.returns(HttpURLConnection.HTTP_UNAVAILABLE)
+        every { connection.headerFields }.returns(
+            mapOf(
+                null to listOf("HTTP/1.1 503 Service Unavailable"),
+                "Retry-After" to listOf("120"),
+                "Date" to listOf("Mon, 02 Jan 2023 00:00:00 GMT"),
+            ),
+        )
+
+        val session = buildNetworkSession()
+        val response = session.loadData(url, NetworkRequest(GET))
+
+        // Verify that the response headers were reported, excluding the status line.
+        assertEquals(
+            mapOf("Retry-After" to "120", "Date" to "Mon, 02 Jan 2023 00:00:00 GMT"),
+            response.headers,
+        )
+    }
+
+    @Test
+    fun `test reporting to metrics leaves session unmodified`() {
+        val metrics = object : UID2Metrics {}
+
+        // Verify that the default session is replaced by one reporting to the metrics, rather than being modified.
+        val session = DefaultNetworkSession()
+        val reporting = session.reportingTo(metrics)
+        assertNotSame(session, reporting)
+        assertNull(session.eventListener)
+        assertSame(metrics, (reporting as DefaultNetworkSession).eventListener)
+
+        // Verify that a session with its own listener, or a customised session, is used as-is.
+        val listening = DefaultNetworkSession(object : NetworkEventListener {})
+        assertSame(listening, listening.reportingTo(metrics))
+        val custom = buildNetworkSession()
+        assertSame(custom, custom.reportingTo(metrics))
+        assertNull(custom.eventListener)
+    }
+
     /**
      * Creates a test instance of the DefaultNetworkSession. This instance will leverage our mocked
      * HttpURLConnection, to allow us more control over its interaction with the instance being
@@ -0,0 +1,37 @@
+package com.uid2.network
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Test
+
+class HttpHeadersTest {
+
+    @Test
+    fun `finds headers case-insensitively`() {
+        val response = NetworkResponse(200, "", mapOf("content-type" to "application/json"))
+
+        assertEquals("application/json", response.header("Content-Type"))
+        assertNull(response.header("Date"))
+    }
+
+    @Test
+    fun `parses retry after in seconds`() {
+        val response = NetworkResponse(429, "", mapOf("Retry-After" to "120"))
+        assertEquals(120_000L, response.getRetryAfterMs(0))
+    }
+
+    @Test
+    fun `parses retry after as date`() {
+        // Mon, 02 Jan 2023 00:00:00 GMT
+        val now = 1672617600000L
+        val response = NetworkResponse(503, "", mapOf("Retry-After" to "Mon, 02 Jan 2023 00:01:00 GMT"))
+        assertEquals(60_000L, response.getRetryAfterMs(now))
+    }
+
+    @Test
+    fun `ignores invalid retry after`() {
+        assertNull(NetworkResponse(503, "", mapOf("Retry-After" to "soon")).getRetryAfterMs(0))
+        assertNull(NetworkResponse(503, "", mapOf("Retry-After" to "-1")).getRetryAfterMs(0))
+        assertNull(NetworkResponse(503).getRetryAfterMs(0))
+    }
+}
@@ -0,0 +1,97 @@
+package com.uid2.network
+
+import com.sun.net.httpserver.HttpsConfigurator
+import com.sun.net.httpserver.HttpsServer
+import java.io.Closeable
+import java.net.InetAddress
+import java.net.InetSocketAddress
+import java.net.URL
+import java.security.KeyStore
+import java.util.Collections
+import javax.net.ssl.HttpsURLConnection
+import javax.net.ssl.KeyManagerFactory
+import javax.net.ssl.SSLContext
+import javax.net.ssl.TrustManagerFactory
+
+/**
+ * A local HTTPS server, used as a stand-in for the UID2 operator. It serves a self-signed certificate for 127.0.0.1,
+ * which the sessions created via [newSession] are configured to trust.
+ *
+ * @param handler Provides the response code and body for a request to the given path.
+ */
+class LocalTlsServer(private val handler: (path: String) -> Pair<Int, String>) : Closeable {
+    private val keyStore = KeyStore.getInstance("PKCS12").apply {
+        LocalTlsServer::class.java.classLoader!!.getResourceAsStream(KEY_STORE_NAME).use {
+            load(it, KEY_STORE_PASSWORD)
+        }
+    }
+
+    private val server = HttpsServer.create(InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0).apply {
+        val keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm()).apply {
+            init(keyStore, KEY_STORE_PASSWORD)
+        }.keyManagers
+
+        httpsConfigurator = HttpsConfigurator(
+            SSLContext.getInstance("TLS").apply { init(keyManagers, null, null) },
+        )
+
+        createContext("/") { exchange ->
+            requests += exchange.requestURI.path
+            connections += exchange.remoteAddress.port
+
+            exchange.requestBody.use { it.readBytes() }
+            val (code, body) = handler(exchange.requestURI.path)
+            val bytes = body.toByteArray(Charsets.UTF_8)
+            exchange.sendResponseHeaders(code, if (bytes.isEmpty()) -1 else bytes.size.toLong())
+            exchange.responseBody.use { it.write(bytes) }
+        }
+
+        start()
+    }
+
+    /**
+     * The paths of the requests received, in order.
+     */
+    val requests: MutableList<String> = Collections.synchronizedList(mutableListOf())
+
+    /**
+     * The distinct connections (identified by their client port) that requests were received on.
+     */
+    val connections: MutableSet<Int> = Collections.synchronizedSet(mutableSetOf())
+
+    /**
+     * The root URL of the server.
+     */
+    val url: String = "https://127.0.0.1:${server.address.port}"
+
+    /**
+     * Creates a new [DefaultNetworkSession] that trusts this server. Each session has its own TLS configuration, and
+     * therefore doesn't share any pooled connections (or TLS sessions) with another.
+     */
+    fun newSession(eventListener: NetworkEventListener? = null): DefaultNetworkSession {
+        val trustStore = KeyStore.getInstance("PKCS12").apply {
+            load(null, null)
+            setCertificateEntry(KEY_ALIAS, keyStore.getCertificate(KEY_ALIAS))
+        }
+        val trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm()).apply {
+            init(trustStore)
+        }.trustManagers
+        val socketFactory = SSLContext.getInstance("TLS").apply { init(null, trustManagers, null) }.socketFactory
+
+        return object : DefaultNetworkSession(eventListener) {
+            override fun openConnection(url: URL): HttpsURLConnection = super.openConnection(url).apply {
+                sslSocketFactory = socketFactory
+            }
+        }
+    }
+
+    override fun close() {
+        server.stop(0)
+    }
+
+    private companion object {
+        const val KEY_STORE_NAME = "test-data/localhost.p12"
+        const val KEY_ALIAS = "localhost"
+        val KEY_STORE_PASSWORD = "password".toCharArray()
+    }
+}
@@ -0,0 +1,89 @@
+package com.uid2.network
+
+import com.uid2.network.NetworkRequestType.GET
+import com.uid2.network.NetworkRequestType.POST
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.net.URL
+
+/**
+ * Verifies the phases of a request reported by the [DefaultNetworkSession], against a local TLS stand-in for the
+ * operator.
+ */
+class NetworkEventListenerTest {
+    private val server = LocalTlsServer { path ->
+        when (path) {
+            "/ops/healthcheck" -> 200 to "OK"
+            "/v2/token/refresh" -> 200 to RESPONSE_BODY
+            else -> 404 to ""
+        }
+    }
+
+    private val timings = mutableListOf<Pair<URL, NetworkTimings>>()
+    private val listener = object : NetworkEventListener {
+        override fun onRequestTimed(url: URL, timings: NetworkTimings) {
+            this@NetworkEventListenerTest.timings += url to timings
+        }
+    }
+
+    @After
+    fun after() {
+        server.close()
+    }
+
+    @Test
+    fun `reports new connection`() {
+        val session = server.newSession(listener)
+
+        val url = URL("${server.url}/v2/token/refresh")
+        val response = session.loadData(url, NetworkRequest(POST, data = REQUEST_BODY))
+        assertEquals(200, response.code)
+        assertEquals(RESPONSE_BODY, response.data)
+
+        // Verify that the establishment of the connection was reported, along with the size of the request and
+        // response.
+        assertEquals(1, timings.size)
+        val (reportedUrl, reported) = timings.single()
+        assertEquals(url, reportedUrl)
+        assertFalse(reported.connectionReused)
+        assertEquals(REQUEST_BODY.length.toLong(), reported.bytesSent)
+        assertEquals(RESPONSE_BODY.length.toLong(), reported.bytesReceived)
+        assertTrue(reported.totalMs >= reported.dnsMs + reported.connectMs + reported.tlsMs + reported.ttfbMs)
+    }
+
+    @Test
+    fun `reports reused connection`() {
+        val session = server.newSession(listener)
+
+        session.loadData(URL("${server.url}/ops/healthcheck"), NetworkRequest(GET))
+        session.loadData(URL("${server.url}/v2/token/refresh"), NetworkRequest(POST, data = REQUEST_BODY))
+
+        // Verify that the second request was reported as reusing the connection established by the first, which is
+        // confirmed by the server.
+        assertEquals(listOf(false, true), timings.map { it.second.connectionReused })
+        assertEquals(1, server.connections.size)
+
+        val reused = timings.last().second
+        assertEquals(0L, reused.connectMs)
+        assertEquals(0L, reused.tlsMs)
+    }
+
+    @Test
+    fun `no listener`() {
+        val session = server.newSession()
+
+        val url = URL("${server.url}/v2/token/refresh")
+        val response = session.loadData(url, NetworkRequest(POST, data = REQUEST_BODY))
+        assertEquals(200, response.code)
+        assertEquals(RESPONSE_BODY, response.data)
+        assertTrue(timings.isEmpty())
+    }
+
+    private companion object {
+        const val REQUEST_BODY = "encrypted-request"
+        const val RESPONSE_BODY = "encrypted-response"
+    }
+}
@@ -0,0 +1,80 @@
+package com.uid2.network
+
+import com.uid2.data.TestData
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertThrows
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.Base64
+
+class RefreshResponseKeyTest {
+
+    @Test
+    fun `test decode`() {
+        val key = RefreshResponseKey.decode(TestData.REFRESH_TOKEN_ENCRYPTED_SUCCESS_KEY)
+        assertNotNull(key)
+
+        assertEquals("AES", key?.algorithm)
+        assertEquals("RAW", key?.format)
+        assertArrayEquals(Base64.getDecoder().decode(TestData.REFRESH_TOKEN_ENCRYPTED_SUCCESS_KEY), key?.encoded)
+        assertFalse(key?.isDestroyed ?: true)
+    }
+
+    @Test
+    fun `test invalid key`() {
+        assertNull(RefreshResponseKey.decode("This is not a key"))
+        assertNull(RefreshResponseKey.decode(""))
+    }
+
+    @Test
+    fun `test encoded is a copy`() {
+        val key = RefreshResponseKey.decode(TestData.REFRESH_TOKEN_ENCRYPTED_SUCCESS_KEY)!!
+
+        // Modifying the returned bytes should not modify the key itself.
+        key.encoded.fill(0)
+        assertArrayEquals(Base64.getDecoder().decode(TestData.REFRESH_TOKEN_ENCRYPTED_SUCCESS_KEY), key.encoded)
+    }
+
+    @Test
+    fun `test destroy`() {
+        val key = RefreshResponseKey.decode(TestData.REFRESH_TOKEN_ENCRYPTED_SUCCESS_KEY)!!
+        key.destroy()
+
+        // Once destroyed, the key can no longer be used.
+        assertTrue(key.isDestroyed)
+        assertThrows(IllegalStateException::class.java) { key.encoded }
+    }
+
+    @Test
+    fun `test destroy while in use`() {
+        val key = RefreshResponseKey.decode(TestData.REFRESH_TOKEN_ENCRYPTED_SUCCESS_KEY)!!
+        val expected = Base64.getDecoder().decode(TestData.REFRESH_TOKEN_ENCRYPTED_SUCCESS_KEY)
+
+        // A key destroyed while in use should remain usable until that use completes.
+        val encoded = key.useOrNull {
+            it.destroy()
+            assertTrue(it.isDestroyed)
+            it.encoded
+        }
+        assertArrayEquals(expected, encoded)
+        assertThrows(IllegalStateException::class.java) { key.encoded }
+
+        // Once destroyed, the key can't be used again.
+        assertNull(key.useOrNull { it.encoded })
+    }
+
+    @Test
+    fun `test wrap`() {
+        val bytes = ByteArray(32) { it.toByte() }
+        val key = RefreshResponseKey.wrap(bytes)
+
+        // The wrapped bytes aren't copied, so destroying the key zeroes them.
+        assertArrayEquals(bytes, key.encoded)
+        key.destroy()
+        assertArrayEquals(ByteArray(32), bytes)
+    }
+}
@@ -0,0 +1,100 @@
+package com.uid2.network
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotSame
+import org.junit.Assert.assertSame
+import org.junit.Test
+import java.security.InvalidAlgorithmParameterException
+import javax.crypto.AEADBadTagException
+import javax.crypto.Cipher
+import javax.crypto.KeyGenerator
+import javax.crypto.spec.GCMParameterSpec
+import javax.crypto.spec.SecretKeySpec
+import kotlin.concurrent.thread
+
+class ThreadLocalCipherTest {
+    private var created = 0
+    private val cipher = ThreadLocalCipher(128) {
+        created++
+        Cipher.getInstance("AES/GCM/NoPadding")
+    }
+
+    private val key = KeyGenerator.getInstance("AES").apply { init(256) }.generateKey()
+
+    @Test
+    fun `reuses cipher on same thread`() {
+        val first = cipher.encrypt(key, ByteArray(12) { 1 }) { it }
+        val second = cipher.decrypt(key, ByteArray(12) { 2 }, 0, 12) { it }
+
+        assertSame(first, second)
+        assertEquals(1, created)
+    }
+
+    @Test
+    fun `uses separate cipher on each thread`() {
+        val first = cipher.encrypt(key, ByteArray(12) { 1 }) { it }
+
+        var second: Cipher? = null
+        thread { second = cipher.encrypt(key, ByteArray(12) { 2 }) { it } }.join()
+
+        assertNotSame(first, second)
+        assertEquals(2, created)
+    }
+
+    @Test
+    fun `round trip`() {
+        val iv = ByteArray(12) { it.toByte() }
+        val data = "Hello, World".toByteArray()
+
+        val encrypted = cipher.encrypt(key, iv) { it.doFinal(data) }
+        val decrypted = cipher.decrypt(key, iv + encrypted, 0, 12) { it.doFinal(iv + encrypted, 12, encrypted.size) }
+
+        assertArrayEquals(data, decrypted)
+    }
+
+    @Test
+    fun `clears key after use`() {
+        val iv = ByteArray(12) { 1 }
+        val used = cipher.encrypt(key, iv) { it.also { cipher -> cipher.doFinal(ByteArray(1)) } }
+
+        // Once used, the Cipher should no longer hold our key, but instead be initialised with the (all-zero) throwaway
+        // key. Data encrypted with that key can therefore be decrypted with it.
+        val throwaway = SecretKeySpec(ByteArray(16), "AES")
+        val encrypted = Cipher.getInstance("AES/GCM/NoPadding").apply {
+            init(Cipher.ENCRYPT_MODE, throwaway, GCMParameterSpec(128, ByteArray(12)))
+        }.doFinal(ByteArray(1) { 7 })
+        assertArrayEquals(ByteArray(1) { 7 }, used.doFinal(encrypted))
+    }
+
+    @Test(expected = InvalidAlgorithmParameterException::class)
+    fun `rejects reused iv`() {
+        val iv = ByteArray(12) { 1 }
+
+        cipher.encrypt(key, iv) { it.doFinal(ByteArray(1)) }
+        cipher.encrypt(key, iv) { it.doFinal(ByteArray(1)) }
+    }
+
+    @Test
+    fun `allows iv with different key`() {
+        val iv = ByteArray(12) { 1 }
+        val otherKey = KeyGenerator.getInstance("AES").apply { init(256) }.generateKey()
+
+        cipher.encrypt(key, iv) { it.doFinal(ByteArray(1)) }
+        cipher.encrypt(otherKey, iv) { it.doFinal(ByteArray(1)) }
+    }
+
+    @Test
+    fun `replaces cipher after failure`() {
+        val iv = ByteArray(12) { 1 }
+        val encrypted = cipher.encrypt(key, iv) { it.doFinal(ByteArray(1)) }
+
+        // Tamper with the data, so that the authentication tag doesn't match.
+        val tampered = iv + encrypted.apply { this[0] = (this[0] + 1).toByte() }
+        val failed = runCatching { cipher.decrypt(key, tampered, 0, 12) { it.doFinal(tampered, 12, encrypted.size) } }
+        assertEquals(AEADBadTagException::class.java, failed.exceptionOrNull()?.javaClass)
+
+        cipher.decrypt(key, ByteArray(12), 0, 12) { it }
+        assertEquals(2, created)
+    }
+}
@@ -1,8 +1,14 @@
 package com.uid2.storage
 
+import com.uid2.UID2Metrics
+import com.uid2.UID2Metrics.StorageOperation
+import com.uid2.data.IdentitySnapshot
 import com.uid2.data.IdentityStatus.ESTABLISHED
+import com.uid2.data.IdentityStatus.EXPIRED
 import com.uid2.data.IdentityStatus.NO_IDENTITY
 import com.uid2.data.UID2Identity
+import io.mockk.mockk
+import io.mockk.verify
 import kotlinx.coroutines.ExperimentalCoroutinesApi
 import kotlinx.coroutines.test.StandardTestDispatcher
 import kotlinx.coroutines.test.runTest
@@ -18,10 +24,12 @@ class FileStorageManagerTest {
     private val testDispatcher = StandardTestDispatcher()
 
     private val identityFile: File = File("test_identity.json")
+    private val snapshotFile: File = File("test_identity.json.snapshot")
 
     @After
     fun after() {
         identityFile.delete()
+        snapshotFile.delete()
     }
 
     @Test
@@ -68,5 +76,102 @@ class FileStorageManagerTest {
         assertNull(loaded.first)
         assertEquals(NO_IDENTITY, loaded.second)
         assertFalse(identityFile.exists())
+        assertNull(storageManager.loadSnapshot())
+    }
+
+    @Test
+    fun `test storage stores and loads snapshot`() = runTest(testDispatcher) {
+        val identity = UID2Identity(
+            "ad token",
+            "refresh token",
+            12345L,
+            3333L,
+            4321L,
+            "refresh response key",
+        )
+
+        // Verify that no snapshot is available before an identity has been saved.
+        val storageManager = FileStorageManager({ identityFile }, testDispatcher)
+        assertNull(storageManager.loadSnapshot())
+
+        storageManager.saveIdentity(identity, ESTABLISHED)
+        testDispatcher.scheduler.advanceUntilIdle()
+
+        // Verify that the snapshot can be loaded synchronously, from a new instance.
+        val loaded = FileStorageManager({ identityFile }, testDispatcher).loadSnapshot()
+        assertEquals(IdentitySnapshot("ad token", 12345L), loaded)
+    }
+
+    @Test
+    fun `test truncated snapshot is ignored`() = runTest(testDispatcher) {
+        val identity = UID2Identity(
+            "ad token",
+            "refresh token",
+            12345L,
+            3333L,
+            4321L,
+            "refresh response key",
+        )
+
+        val storageManager = FileStorageManager({ identityFile }, testDispatcher)
+        storageManager.saveIdentity(identity, ESTABLISHED)
+        testDispatcher.scheduler.advanceUntilIdle()
+
+        // Simulate a write that was interrupted part way through the token, and verify that it's not used.
+        val contents = snapshotFile.readText()
+        snapshotFile.writeText(contents.dropLast(3))
+        assertNull(storageManager.loadSnapshot())
+    }
+
+    @Test
+    fun `test snapshot removed for unusable identity`() = runTest(testDispatcher) {
+        val identity = UID2Identity(
+            "ad token",
+            "refresh token",
+            12345L,
+            3333L,
+            4321L,
+            "refresh response key",
+        )
+
+        val storageManager = FileStorageManager({ identityFile }, testDispatcher)
+        storageManager.saveIdentity(identity, ESTABLISHED)
+        testDispatcher.scheduler.advanceUntilIdle()
+
+        // Once the identity has expired, its advertising token should no longer be available from the snapshot.
+        storageManager.saveIdentity(identity, EXPIRED)
+        testDispatcher.scheduler.advanceUntilIdle()
+        assertNull(storageManager.loadSnapshot())
+    }
+
+    @Test
+    fun `test storage reports metrics`() = runTest(testDispatcher) {
+        val identity = UID2Identity(
+            "ad token",
+            "refresh token",
+            12345L,
+            3333L,
+            4321L,
+            "refresh response key",
+        )
+
+        val metrics = mockk<UID2Metrics>(relaxed = true)
+        val storageManager = FileStorageManager({ identityFile }, testDispatcher, metrics)
+
+        // Verify that not having a persisted identity isn't reported as a failure.
+        storageManager.loadIdentity()
+        verify(exactly = 1) { metrics.onStorage(StorageOperation.LOAD, true, any()) }
+
+        storageManager.saveIdentity(identity, ESTABLISHED)
+        storageManager.loadIdentity()
+        storageManager.clear()
+        verify(exactly = 1) { metrics.onStorage(StorageOperation.SAVE, true, any()) }
+        verify(exactly = 2) { metrics.onStorage(StorageOperation.LOAD, true, any()) }
+        verify(exactly = 1) { metrics.onStorage(StorageOperation.CLEAR, true, any()) }
+
+        // Verify that a persisted identity that can't be read is reported as a failure.
+        identityFile.writeText("not json")
+        storageManager.loadIdentity()
+        verify(exactly = 1) { metrics.onStorage(StorageOperation.LOAD, false, any()) }
     }
 }
@@ -0,0 +1,75 @@
+package com.uid2.utils
+
+import android.app.Activity
+import android.app.Application
+import io.mockk.every
+import io.mockk.mockk
+import io.mockk.slot
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class AppVisibilityTest {
+    private val application = mockk<Application>(relaxed = true)
+    private val callbacks = slot<Application.ActivityLifecycleCallbacks>()
+
+    @Test
+    fun `reports visibility changes`() {
+        every { application.applicationContext }.returns(application)
+        every { application.registerActivityLifecycleCallbacks(capture(callbacks)) }.returns(Unit)
+
+        // When the process state is unavailable, we expect the app to be assumed to be in the foreground.
+        val visibility = ActivityLifecycleVisibility.create(application)
+        assertTrue(visibility.isForeground.value)
+
+        // Simulate an activity that was started before we were registered being stopped.
+        val first = withActivity()
+        callbacks.captured.onActivityStopped(first)
+        assertFalse(visibility.isForeground.value)
+
+        // Simulate the user returning to the app, and then navigating between two activities.
+        val second = withActivity()
+        callbacks.captured.onActivityStarted(first)
+        assertTrue(visibility.isForeground.value)
+        callbacks.captured.onActivityStarted(second)
+        callbacks.captured.onActivityStopped(first)
+        assertTrue(visibility.isForeground.value)
+
+        // Simulate the user leaving the app.
+        callbacks.captured.onActivityStopped(second)
+        assertFalse(visibility.isForeground.value)
+    }
+
+    @Test
+    fun `ignores activities being recreated`() {
+        every { application.applicationContext }.returns(application)
+        every { application.registerActivityLifecycleCallbacks(capture(callbacks)) }.returns(Unit)
+
+        val visibility = ActivityLifecycleVisibility.create(application)
+        val activity = withActivity()
+        callbacks.captured.onActivityStarted(activity)
+
+        // Simulate the activity being recreated, e.g. after the device is rotated.
+        val recreating = withActivity(isChangingConfigurations = true)
+        callbacks.captured.onActivityStopped(recreating)
+        assertTrue(visibility.isForeground.value)
+        callbacks.captured.onActivityStarted(activity)
+
+        // Verify that the recreated activity was not counted twice.
+        callbacks.captured.onActivityStopped(activity)
+        assertFalse(visibility.isForeground.value)
+    }
+
+    @Test
+    fun `falls back to always foreground`() {
+        every { application.applicationContext }.returns(null)
+
+        assertEquals(AlwaysForeground, ActivityLifecycleVisibility.create(application))
+        assertTrue(AlwaysForeground.isForeground.value)
+    }
+
+    private fun withActivity(isChangingConfigurations: Boolean = false) = mockk<Activity>().apply {
+        every { this@apply.isChangingConfigurations }.returns(isChangingConfigurations)
+    }
+}
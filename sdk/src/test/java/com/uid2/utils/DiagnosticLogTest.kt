@@ -0,0 +1,120 @@
+package com.uid2.utils
+
+import com.uid2.UID2Metrics
+import com.uid2.UID2Metrics.PayloadFailure
+import com.uid2.UID2Metrics.Request
+import com.uid2.UID2Metrics.StorageOperation
+import com.uid2.data.IdentityStatus.ESTABLISHED
+import com.uid2.data.IdentityStatus.NO_IDENTITY
+import com.uid2.data.IdentityStatus.REFRESHED
+import io.mockk.mockk
+import io.mockk.verify
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import java.security.KeyPairGenerator
+import java.security.spec.ECGenParameterSpec
+import java.util.Base64
+
+class DiagnosticLogTest {
+    private var time = 0L
+
+    @Test
+    fun `no events`() {
+        val log = DiagnosticLog({ time })
+
+        assertEquals("Diagnostics: 0 events, showing the last 0\n", log.dump())
+    }
+
+    @Test
+    fun `describes events`() {
+        val log = DiagnosticLog({ time })
+
+        log.onStorage(StorageOperation.LOAD, true, 12)
+        time = 1_000
+        log.onStatusChanged(null, NO_IDENTITY, 15)
+        log.onRequest(Request.GENERATE, 200, 340)
+        log.onStatusChanged(NO_IDENTITY, ESTABLISHED, 360)
+        log.onTokenUnavailable(375)
+        time = 61_000
+        log.onRequest(Request.REFRESH, 503, 80)
+        log.onRefreshRetry(0, 5_000)
+        log.onPayloadFailure(Request.REFRESH, PayloadFailure.DECRYPT)
+        log.onStorage(StorageOperation.SAVE, false, 4)
+
+        assertEquals(
+            listOf(
+                "Diagnostics: 9 events, showing the last 9",
+                "1970-01-01T00:00:00.000Z storage LOAD succeeded (12ms)",
+                "1970-01-01T00:00:01.000Z status LOADING -> NO_IDENTITY (held 15ms)",
+                "1970-01-01T00:00:01.000Z request GENERATE -> HTTP 200 (340ms)",
+                "1970-01-01T00:00:01.000Z status NO_IDENTITY -> ESTABLISHED (held 360ms)",
+                "1970-01-01T00:00:01.000Z token available after 375ms",
+                "1970-01-01T00:01:01.000Z request REFRESH -> HTTP 503 (80ms)",
+                "1970-01-01T00:01:01.000Z refresh retry after attempt 0 in 5000ms",
+                "1970-01-01T00:01:01.000Z payload REFRESH failed: DECRYPT",
+                "1970-01-01T00:01:01.000Z storage SAVE failed (4ms)",
+                "",
+            ),
+            log.dump().split('\n'),
+        )
+    }
+
+    @Test
+    fun `retains most recent events`() {
+        val log = DiagnosticLog({ time }, capacity = 3)
+
+        // Record more events than the log can hold, so that it wraps around.
+        repeat(5) {
+            time = it * 1_000L
+            log.onRefreshRetry(it.toLong(), 100)
+        }
+
+        assertEquals(
+            listOf(
+                "Diagnostics: 5 events, showing the last 3",
+                "1970-01-01T00:00:02.000Z refresh retry after attempt 2 in 100ms",
+                "1970-01-01T00:00:03.000Z refresh retry after attempt 3 in 100ms",
+                "1970-01-01T00:00:04.000Z refresh retry after attempt 4 in 100ms",
+                "",
+            ),
+            log.dump().split('\n'),
+        )
+    }
+
+    @Test
+    fun `describes public key cache`() {
+        val cache = PublicKeyCache()
+        val log = DiagnosticLog({ time }, publicKeyCache = cache)
+
+        // Look up the same key several times, so that it's only parsed once.
+        val publicKey = KeyPairGenerator.getInstance("EC").apply { initialize(ECGenParameterSpec("secp256r1")) }
+            .genKeyPair().public
+        val encoded = "UID2-X-L-" + Base64.getEncoder().encodeToString(publicKey.encoded)
+        repeat(3) { cache.get(encoded) }
+
+        assertEquals(
+            listOf(
+                "Diagnostics: 0 events, showing the last 0",
+                "Server public key cache: 2 hits, 1 misses",
+                "",
+            ),
+            log.dump().split('\n'),
+        )
+    }
+
+    @Test
+    fun `forwards events`() {
+        val metrics = mockk<UID2Metrics>(relaxed = true)
+        val log = DiagnosticLog({ time }, metrics)
+
+        log.onRequest(Request.REFRESH, 200, 80)
+        log.onStatusChanged(ESTABLISHED, REFRESHED, 1_000)
+        log.onStorage(StorageOperation.CLEAR, true, 2)
+
+        verify {
+            metrics.onRequest(Request.REFRESH, 200, 80)
+            metrics.onStatusChanged(ESTABLISHED, REFRESHED, 1_000)
+            metrics.onStorage(StorageOperation.CLEAR, true, 2)
+        }
+    }
+}
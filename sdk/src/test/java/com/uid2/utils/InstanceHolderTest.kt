@@ -0,0 +1,207 @@
+package com.uid2.utils
+
+import android.content.Context
+import android.os.SystemClock
+import com.uid2.EUIDManager
+import com.uid2.InitializationException
+import com.uid2.UID2Client
+import com.uid2.UID2Manager
+import com.uid2.data.IdentityStatus.ESTABLISHED
+import com.uid2.data.IdentityStatus.REFRESHED
+import com.uid2.data.UID2Identity
+import com.uid2.network.ResponsePackage
+import com.uid2.storage.StorageManager
+import io.mockk.coEvery
+import io.mockk.every
+import io.mockk.mockk
+import io.mockk.mockkStatic
+import io.mockk.unmockkStatic
+import kotlinx.coroutines.Dispatchers
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.util.Collections
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicReference
+import javax.crypto.SecretKey
+import kotlin.concurrent.thread
+
+class InstanceHolderTest {
+    @get:Rule
+    val temporaryFolder = TemporaryFolder()
+
+    private val context = mockk<Context>(relaxed = true)
+
+    @Before
+    fun before() {
+        every { context.applicationContext } returns context
+        every { context.filesDir } answers { temporaryFolder.root }
+
+        // The managers measure time with the (Android) monotonic clock.
+        mockkStatic(SystemClock::class)
+        every { SystemClock.elapsedRealtime() } answers { System.nanoTime() / 1_000_000 }
+    }
+
+    @After
+    fun after() {
+        unmockkStatic(SystemClock::class)
+    }
+
+    @Test
+    fun `creates instance once`() {
+        val holder = InstanceHolder<Any>()
+        val created = AtomicInteger()
+
+        val instances = getConcurrently(holder) {
+            created.incrementAndGet()
+            Thread.sleep(10)
+            Any()
+        }
+
+        // Verify that every thread received the same instance, which was only created once.
+        assertEquals(1, created.get())
+        assertEquals(1, instances.toSet().size)
+        assertTrue(instances.first() === holder.value)
+    }
+
+    @Test
+    fun `concurrent startup creates single manager`() {
+        val now = System.currentTimeMillis()
+        val identity = UID2Identity(
+            advertisingToken = "token",
+            refreshToken = "refresh",
+            identityExpires = now + TimeUnit.HOURS.toMillis(1),
+            refreshFrom = now - 1,
+            refreshExpires = now + TimeUnit.HOURS.toMillis(2),
+            refreshResponseKey = "key",
+        )
+
+        // Configure storage to report a persisted identity, which needs refreshing as soon as it's loaded.
+        val loads = AtomicInteger()
+        val storageManager = mockk<StorageManager>(relaxed = true)
+        coEvery { storageManager.loadIdentity() }.answers {
+            loads.incrementAndGet()
+            Pair(identity, ESTABLISHED)
+        }
+
+        val refreshes = AtomicInteger()
+        val refreshed = CountDownLatch(1)
+        val client = mockk<UID2Client>()
+        coEvery { client.refreshIdentity(any(), any<SecretKey>()) }.answers {
+            refreshes.incrementAndGet()
+            refreshed.countDown()
+            ResponsePackage(identity.copy(refreshFrom = now + TimeUnit.HOURS.toMillis(1)), REFRESHED, "Refreshed")
+        }
+
+        // Simulate a number of adapters all requesting the manager from different threads at the same time.
+        val holder = InstanceHolder<UID2Manager>()
+        val managers = getConcurrently(holder) {
+            UID2Manager(
+                client = client,
+                storageManager = storageManager,
+                timeUtils = TimeUtils,
+                inputUtils = InputUtils(),
+                defaultDispatcher = Dispatchers.Default,
+                initialAutomaticRefreshEnabled = true,
+                isEuid = false,
+                logger = Logger(false),
+            )
+        }
+        assertTrue(refreshed.await(5, TimeUnit.SECONDS))
+        Thread.sleep(100)
+
+        // Verify that only a single manager was created, which loaded from storage and refreshed exactly once.
+        assertEquals(1, managers.toSet().size)
+        assertEquals(1, loads.get())
+        assertEquals(1, refreshes.get())
+
+        managers.first().automaticRefreshEnabled = false
+    }
+
+    @Test
+    fun `concurrent init and getInstance create single UID2Manager`() {
+        val managers = initConcurrently(
+            init = { UID2Manager.init(context, UID2Manager.Environment.Production) },
+            getInstance = { UID2Manager.getInstance() },
+        )
+
+        // Verify that every thread received the same manager, which is the one now published.
+        assertEquals(THREADS, managers.size)
+        assertEquals(1, managers.toSet().size)
+        assertTrue(managers.first() === UID2Manager.getInstance())
+        assertFalse(managers.first().isEuid)
+    }
+
+    @Test
+    fun `concurrent init and getInstance create single EUIDManager`() {
+        val managers = initConcurrently(
+            init = { EUIDManager.init(context, EUIDManager.Environment.Production) },
+            getInstance = { EUIDManager.getInstance() },
+        )
+
+        // Verify that every thread received the same manager, which is the one now published.
+        assertEquals(THREADS, managers.size)
+        assertEquals(1, managers.toSet().size)
+        assertTrue(managers.first() === EUIDManager.getInstance())
+        assertTrue(managers.first().isEuid)
+    }
+
+    /**
+     * Initializes a manager on one thread, while a number of others (as if different adapters) request its instance
+     * at the same time. Each of these keeps requesting the instance until the manager has been initialized.
+     */
+    private fun initConcurrently(init: () -> Unit, getInstance: () -> UID2Manager): List<UID2Manager> {
+        val start = CountDownLatch(1)
+        val initFailure = AtomicReference<Throwable>()
+        val instances = Collections.synchronizedList(mutableListOf<UID2Manager>())
+
+        val initThread = thread {
+            start.await()
+            runCatching(init).onFailure { initFailure.set(it) }
+        }
+        val threads = List(THREADS) {
+            thread {
+                start.await()
+                while (initFailure.get() == null) {
+                    try {
+                        instances += getInstance()
+                        break
+                    } catch (ex: InitializationException) {
+                        // Not yet initialized.
+                    }
+                }
+            }
+        }
+        start.countDown()
+        (threads + initThread).forEach { it.join() }
+
+        initFailure.get()?.let { throw it }
+        return instances
+    }
+
+    private fun <T : Any> getConcurrently(holder: InstanceHolder<T>, factory: () -> T): List<T> {
+        val start = CountDownLatch(1)
+        val instances = Collections.synchronizedList(mutableListOf<T>())
+        val threads = List(THREADS) {
+            thread {
+                start.await()
+                instances += holder.getOrCreate(factory)
+            }
+        }
+        start.countDown()
+        threads.forEach { it.join() }
+
+        return instances
+    }
+
+    private companion object {
+        const val THREADS = 16
+    }
+}
@@ -0,0 +1,141 @@
+package com.uid2.utils
+
+import io.mockk.every
+import io.mockk.mockk
+import io.mockk.verify
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNotSame
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertSame
+import org.junit.Test
+import java.security.KeyPair
+import java.util.concurrent.Executor
+
+class KeyPairPoolTest {
+    private val tasks = mutableListOf<Runnable>()
+    private val executor = Executor { tasks += it }
+
+    private var elapsedMs = 0L
+    private val clock = Clock { elapsedMs }
+
+    private var generated = 0
+    private var failing = false
+    private val generate = { if (failing) null else KeyPair(mockk(), mockk()).also { generated++ } }
+
+    @Test
+    fun `fills in background`() {
+        val pool = KeyPairPool(3, MAX_AGE_MS, executor, clock, generate)
+
+        // Verify that nothing was generated until the background task ran.
+        assertEquals(0, pool.available)
+        assertNull(pool.take())
+
+        runTasks()
+        assertEquals(3, pool.available)
+        assertEquals(3, generated)
+    }
+
+    @Test
+    fun `key pairs are only used once`() {
+        val pool = KeyPairPool(2, MAX_AGE_MS, executor, clock, generate)
+        runTasks()
+
+        // Take more key pairs than the pool holds, refilling it between each.
+        val taken = List(5) {
+            pool.take().also { runTasks() }
+        }
+
+        taken.forEach { assertNotNull(it) }
+        assertEquals(5, taken.toSet().size)
+        assertEquals(2, pool.available)
+        assertEquals(7, generated)
+    }
+
+    @Test
+    fun `only a single fill is scheduled`() {
+        val pool = KeyPairPool(2, MAX_AGE_MS, executor, clock, generate)
+        runTasks()
+
+        pool.take()
+        pool.take()
+        assertEquals(1, tasks.size)
+
+        runTasks()
+        assertEquals(2, pool.available)
+    }
+
+    @Test
+    fun `failed generation is retried when next taken`() {
+        failing = true
+        val pool = KeyPairPool(2, MAX_AGE_MS, executor, clock, generate)
+        runTasks()
+        assertEquals(0, pool.available)
+
+        failing = false
+        assertNull(pool.take())
+        runTasks()
+        assertEquals(2, pool.available)
+    }
+
+    @Test
+    fun `expired key pairs are discarded and regenerated`() {
+        val pool = KeyPairPool(2, MAX_AGE_MS, executor, clock, generate)
+        runTasks()
+        val stale = pool.take()
+        runTasks()
+        assertEquals(2, pool.available)
+
+        // Once the pooled key pairs exceed the maximum age, they should no longer be available.
+        elapsedMs += MAX_AGE_MS
+        assertEquals(0, pool.available)
+        assertNull(pool.take())
+
+        // Taking from the pool should have discarded the expired key pairs, and refilled it with fresh ones.
+        runTasks()
+        assertEquals(2, pool.available)
+        assertEquals(5, generated)
+
+        val taken = pool.take()
+        assertNotNull(taken)
+        assertNotSame(stale, taken)
+    }
+
+    @Test
+    fun `key pairs within maximum age are taken`() {
+        val pool = KeyPairPool(1, MAX_AGE_MS, executor, clock, generate)
+        runTasks()
+
+        elapsedMs += MAX_AGE_MS - 1
+        assertNotNull(pool.take())
+        assertEquals(1, generated)
+    }
+
+    @Test
+    fun `pooled key utils falls back when empty`() {
+        val keyPair = KeyPair(mockk(), mockk())
+        val delegate = mockk<KeyUtils>()
+        every { delegate.generateKeyPair() } returns keyPair
+
+        val pool = KeyPairPool(1, MAX_AGE_MS, executor, clock, generate)
+        val keyUtils = PooledKeyUtils(pool, delegate)
+
+        // Before the pool has been filled, the key pair should be generated on demand.
+        assertSame(keyPair, keyUtils.generateKeyPair())
+        verify(exactly = 1) { delegate.generateKeyPair() }
+
+        runTasks()
+        assertNotNull(keyUtils.generateKeyPair())
+        verify(exactly = 1) { delegate.generateKeyPair() }
+    }
+
+    private fun runTasks() {
+        while (tasks.isNotEmpty()) {
+            tasks.removeAt(0).run()
+        }
+    }
+
+    private companion object {
+        const val MAX_AGE_MS = 60_000L
+    }
+}
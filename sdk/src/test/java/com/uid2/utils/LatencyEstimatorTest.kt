@@ -0,0 +1,68 @@
+package com.uid2.utils
+
+import com.uid2.data.LatencyStats
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class LatencyEstimatorTest {
+
+    @Test
+    fun `no samples`() {
+        assertEquals(LatencyStats(0, 0, 0), LatencyEstimator().stats)
+    }
+
+    @Test
+    fun `first sample seeds the average`() {
+        val estimator = LatencyEstimator()
+        estimator.record(250)
+
+        assertEquals(LatencyStats(1, 250, 250), estimator.stats)
+    }
+
+    @Test
+    fun `average favours recent samples`() {
+        val estimator = LatencyEstimator(windowSize = 10, smoothing = 0.5)
+        estimator.record(100)
+        estimator.record(300)
+        estimator.record(500)
+
+        // 100 -> 200 -> 350
+        assertEquals(350, estimator.stats.averageMs)
+    }
+
+    @Test
+    fun `p95 reflects the tail`() {
+        val estimator = LatencyEstimator(windowSize = 100)
+        repeat(95) { estimator.record(100) }
+        repeat(5) { estimator.record(5_000) }
+
+        val stats = estimator.stats
+        assertEquals(100, stats.samples)
+        assertEquals(100, stats.p95Ms)
+
+        // Once more than 5% of requests are slow, they become the 95th percentile.
+        estimator.record(5_000)
+        assertEquals(5_000, estimator.stats.p95Ms)
+    }
+
+    @Test
+    fun `p95 only considers recent samples`() {
+        val estimator = LatencyEstimator(windowSize = 20)
+        repeat(20) { estimator.record(10_000) }
+        repeat(20) { estimator.record(50) }
+
+        val stats = estimator.stats
+        assertEquals(40, stats.samples)
+        assertEquals(50, stats.p95Ms)
+        assertTrue(stats.averageMs < 10_000)
+    }
+
+    @Test
+    fun `negative latency is ignored`() {
+        val estimator = LatencyEstimator()
+        estimator.record(-100)
+
+        assertEquals(LatencyStats(1, 0, 0), estimator.stats)
+    }
+}
@@ -0,0 +1,170 @@
+package com.uid2.utils
+
+import kotlinx.coroutines.CoroutineStart
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.async
+import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.test.runCurrent
+import kotlinx.coroutines.test.runTest
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.concurrent.TimeUnit
+
+@ExperimentalCoroutinesApi
+class MonotonicTimeUtilsTest {
+    // The simulated clocks. The monotonic clock only ever moves forwards, while the device's wall clock can be changed.
+    private var elapsedMs = 5_000L
+    private var deviceMs = SERVER_EPOCH_MS
+
+    private val timeUtils = MonotonicTimeUtils({ elapsedMs }, { deviceMs })
+
+    @Test
+    fun `starts from the device clock`() {
+        assertEquals(SERVER_EPOCH_MS, timeUtils.now())
+        assertEquals(0, timeUtils.skewMs())
+
+        advance(1_000)
+        assertEquals(SERVER_EPOCH_MS + 1_000, timeUtils.now())
+    }
+
+    @Test
+    fun `ignores changes to the device clock`() {
+        val expiry = SERVER_EPOCH_MS + TimeUnit.HOURS.toMillis(1)
+
+        // Simulate the user moving the device's clock forwards by a day.
+        deviceMs += TimeUnit.DAYS.toMillis(1)
+        assertFalse(timeUtils.hasExpired(expiry))
+        assertEquals(TimeUnit.HOURS.toMillis(1), timeUtils.diffToNow(expiry))
+
+        // Simulate the user moving the device's clock backwards by a day.
+        deviceMs -= TimeUnit.DAYS.toMillis(2)
+        advance(TimeUnit.HOURS.toMillis(1))
+        assertTrue(timeUtils.hasExpired(expiry))
+    }
+
+    @Test
+    fun `corrects a device clock that is behind`() {
+        val timeUtils = withSkewedDevice(-TimeUnit.HOURS.toMillis(2))
+        val expiry = SERVER_EPOCH_MS + TimeUnit.MINUTES.toMillis(30)
+
+        // Before the server has been contacted, the device thinks the expiry is still 2.5 hours away.
+        assertEquals(TimeUnit.MINUTES.toMillis(150), timeUtils.diffToNow(expiry))
+
+        // After responses from the server, the expiry should be relative to the server's clock.
+        timeUtils.reportServerTimeTwice(SERVER_EPOCH_MS, 0)
+        assertNear(TimeUnit.MINUTES.toMillis(30), timeUtils.diffToNow(expiry))
+        assertNear(TimeUnit.HOURS.toMillis(2), timeUtils.skewMs())
+
+        advance(TimeUnit.MINUTES.toMillis(31))
+        assertTrue(timeUtils.hasExpired(expiry))
+    }
+
+    @Test
+    fun `corrects a device clock that is ahead`() {
+        val timeUtils = withSkewedDevice(TimeUnit.HOURS.toMillis(2))
+        val expiry = SERVER_EPOCH_MS + TimeUnit.MINUTES.toMillis(30)
+
+        // Before the server has been contacted, the device thinks the identity has already expired.
+        assertTrue(timeUtils.hasExpired(expiry))
+
+        timeUtils.reportServerTimeTwice(SERVER_EPOCH_MS, 0)
+        assertFalse(timeUtils.hasExpired(expiry))
+        assertNear(TimeUnit.MINUTES.toMillis(30), timeUtils.diffToNow(expiry))
+    }
+
+    @Test
+    fun `allows for the request's round trip`() {
+        val timeUtils = withSkewedDevice(-TimeUnit.MINUTES.toMillis(10))
+
+        // Simulate a slow request, where the server produced its Date header half way through the round trip.
+        advance(4_000)
+        timeUtils.onServerTime(SERVER_EPOCH_MS - 2_000, 4_000)
+        timeUtils.onServerTime(SERVER_EPOCH_MS - 2_000, 4_000)
+        assertNear(SERVER_EPOCH_MS, timeUtils.now())
+    }
+
+    @Test
+    fun `ignores a single report that disagrees`() {
+        // A single response reports the time an hour ahead, e.g. as it was served from a stale cache.
+        timeUtils.onServerTime(SERVER_EPOCH_MS + TimeUnit.HOURS.toMillis(1), 0)
+        assertEquals(SERVER_EPOCH_MS, timeUtils.now())
+
+        // The next response agrees with our clock, so the previous report should not be applied.
+        timeUtils.onServerTime(SERVER_EPOCH_MS, 0)
+        assertEquals(SERVER_EPOCH_MS, timeUtils.now())
+    }
+
+    @Test
+    fun `ignores reports that disagree with each other`() {
+        timeUtils.onServerTime(SERVER_EPOCH_MS + TimeUnit.HOURS.toMillis(1), 0)
+        timeUtils.onServerTime(SERVER_EPOCH_MS - TimeUnit.HOURS.toMillis(1), 0)
+        assertEquals(SERVER_EPOCH_MS, timeUtils.now())
+    }
+
+    @Test
+    fun `reports corrections`() = runTest {
+        val corrections = async(start = CoroutineStart.UNDISPATCHED) { timeUtils.corrections.first() }
+
+        // A single report shouldn't be considered a correction.
+        timeUtils.onServerTime(SERVER_EPOCH_MS + TimeUnit.HOURS.toMillis(1), 0)
+        runCurrent()
+        assertFalse(corrections.isCompleted)
+
+        timeUtils.onServerTime(SERVER_EPOCH_MS + TimeUnit.HOURS.toMillis(1), 0)
+        runCurrent()
+        assertTrue(corrections.isCompleted)
+    }
+
+    @Test
+    fun `does not jitter between responses`() {
+        // The server's clock matches the device's, but each Date header is truncated to the second.
+        timeUtils.onServerTime(SERVER_EPOCH_MS, 200)
+        val anchored = timeUtils.now()
+
+        repeat(10) {
+            advance(700)
+            timeUtils.onServerTime((timeUtils.now() / 1000) * 1000, 200)
+        }
+
+        // Verify that the current time has advanced only with the monotonic clock.
+        assertEquals(anchored + 7_000, timeUtils.now())
+    }
+
+    private fun advance(ms: Long) {
+        elapsedMs += ms
+        deviceMs += ms
+    }
+
+    /**
+     * Returns the difference (in milliseconds) between the current time, as estimated, and the device's wall clock. A
+     * positive value means the device's clock is behind.
+     */
+    private fun MonotonicTimeUtils.skewMs() = now() - deviceMs
+
+    /**
+     * Reports the same time from two consecutive responses, as required before our time is corrected.
+     */
+    private fun MonotonicTimeUtils.reportServerTimeTwice(serverTimeMs: Long, roundTripMs: Long) {
+        onServerTime(serverTimeMs, roundTripMs)
+        onServerTime(serverTimeMs, roundTripMs)
+    }
+
+    private fun withSkewedDevice(skewMs: Long): MonotonicTimeUtils {
+        deviceMs = SERVER_EPOCH_MS + skewMs
+        return MonotonicTimeUtils({ elapsedMs }, { deviceMs })
+    }
+
+    /**
+     * Asserts that the given times match, within the resolution of the time reported by the server.
+     */
+    private fun assertNear(expected: Long, actual: Long) {
+        assertEquals(expected.toDouble(), actual.toDouble(), DATE_RESOLUTION_MS.toDouble())
+    }
+
+    private companion object {
+        const val SERVER_EPOCH_MS = 1_700_000_000_000L
+        const val DATE_RESOLUTION_MS = 1_000L
+    }
+}
@@ -0,0 +1,86 @@
+package com.uid2.utils
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotSame
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertSame
+import org.junit.Test
+import java.security.KeyPairGenerator
+import java.security.spec.ECGenParameterSpec
+import java.util.Base64
+
+class PublicKeyCacheTest {
+
+    @Test
+    fun `parses key`() {
+        val cache = PublicKeyCache()
+        val (publicKey, encoded) = newServerPublicKey()
+
+        assertEquals(publicKey, cache.get(encoded))
+        assertEquals(0, cache.hits)
+        assertEquals(1, cache.misses)
+    }
+
+    @Test
+    fun `reuses parsed key`() {
+        val cache = PublicKeyCache()
+        val (_, encoded) = newServerPublicKey()
+
+        val first = cache.get(encoded)
+        repeat(3) {
+            assertSame(first, cache.get(encoded))
+        }
+
+        assertEquals(3, cache.hits)
+        assertEquals(1, cache.misses)
+    }
+
+    @Test
+    fun `evicts least recently used key`() {
+        val cache = PublicKeyCache(capacity = 2)
+        val (_, first) = newServerPublicKey()
+        val (_, second) = newServerPublicKey()
+        val (_, third) = newServerPublicKey()
+
+        val parsed = cache.get(first)
+        cache.get(second)
+        cache.get(first)
+        cache.get(third)
+
+        // The first key was used more recently than the second, so should have been retained.
+        assertSame(parsed, cache.get(first))
+        cache.get(second)
+        assertEquals(2, cache.hits)
+        assertEquals(4, cache.misses)
+    }
+
+    @Test
+    fun `invalid keys are not cached`() {
+        val cache = PublicKeyCache()
+
+        assertNull(cache.get("UID2-X-L"))
+        assertNull(cache.get("UID2-X-L-!!!"))
+        assertNull(cache.get("UID2-X-L-!!!"))
+        assertEquals(0, cache.hits)
+        assertEquals(3, cache.misses)
+    }
+
+    @Test
+    fun `distinct keys are parsed separately`() {
+        val cache = PublicKeyCache()
+        val (_, first) = newServerPublicKey()
+        val (_, second) = newServerPublicKey()
+
+        assertNotSame(cache.get(first), cache.get(second))
+        assertEquals(2, cache.misses)
+    }
+
+    /**
+     * Generates a new server public key, returning it along with the String it would be provided to the SDK as.
+     */
+    private fun newServerPublicKey() = KeyPairGenerator.getInstance("EC").apply {
+        initialize(ECGenParameterSpec("secp256r1"))
+    }.genKeyPair().public.let {
+        it to "UID2-X-L-" + Base64.getEncoder().encodeToString(it.encoded)
+    }
+}
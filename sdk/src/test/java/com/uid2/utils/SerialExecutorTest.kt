@@ -0,0 +1,86 @@
+package com.uid2.utils
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.concurrent.thread
+
+class SerialExecutorTest {
+
+    @Test
+    fun `runs uncontended commands immediately`() {
+        val executor = SerialExecutor()
+        var ran = false
+
+        executor.execute { ran = true }
+        assertTrue(ran)
+    }
+
+    @Test
+    fun `runs nested commands after current command`() {
+        val executor = SerialExecutor()
+        val order = mutableListOf<Int>()
+
+        executor.execute {
+            order += 1
+            executor.execute { order += 3 }
+            order += 2
+        }
+
+        assertEquals(listOf(1, 2, 3), order)
+    }
+
+    @Test
+    fun `continues after failing command`() {
+        val executor = SerialExecutor()
+        var ran = false
+
+        val failure = runCatching {
+            executor.execute {
+                executor.execute { ran = true }
+                throw IllegalStateException()
+            }
+        }.exceptionOrNull()
+
+        // Verify that the failure was reported, but the queued command still ran.
+        assertTrue(failure is IllegalStateException)
+        assertTrue(ran)
+    }
+
+    @Test
+    fun `never runs commands concurrently`() {
+        val executor = SerialExecutor()
+        val running = AtomicInteger()
+        val overlaps = AtomicInteger()
+        var count = 0 // Deliberately not thread-safe.
+
+        val start = CountDownLatch(1)
+        val threads = List(THREADS) {
+            thread {
+                start.await()
+                repeat(COMMANDS_PER_THREAD) {
+                    executor.execute {
+                        if (running.incrementAndGet() > 1) {
+                            overlaps.incrementAndGet()
+                        }
+                        count++
+                        running.decrementAndGet()
+                    }
+                }
+            }
+        }
+        start.countDown()
+        threads.forEach { it.join() }
+
+        // Verify that every command ran, and no two commands ever ran at the same time.
+        assertEquals(THREADS * COMMANDS_PER_THREAD, count)
+        assertEquals(0, overlaps.get())
+    }
+
+    private companion object {
+        const val THREADS = 8
+        const val COMMANDS_PER_THREAD = 10_000
+    }
+}
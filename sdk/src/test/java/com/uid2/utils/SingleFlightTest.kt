@@ -0,0 +1,98 @@
+package com.uid2.utils
+
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.async
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.test.StandardTestDispatcher
+import kotlinx.coroutines.test.runTest
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+@ExperimentalCoroutinesApi
+class SingleFlightTest {
+    private val testDispatcher = StandardTestDispatcher()
+    private val scope = CoroutineScope(testDispatcher + SupervisorJob())
+
+    @Test
+    fun `concurrent requests share result`() = runTest(testDispatcher) {
+        val singleFlight = SingleFlight<String, Int>(scope)
+        var invocations = 0
+
+        // Start a number of requests for the same key, while the first one is still in-flight.
+        val results = List(5) {
+            async {
+                singleFlight.run("key") {
+                    delay(1000)
+                    ++invocations
+                }
+            }
+        }
+        testDispatcher.scheduler.advanceUntilIdle()
+
+        // Verify that only a single operation was run, and that every caller received its result.
+        assertEquals(1, invocations)
+        assertEquals(List(5) { 1 }, results.map { it.await() })
+        assertEquals(5L, singleFlight.requests)
+        assertEquals(4L, singleFlight.coalesced)
+    }
+
+    @Test
+    fun `different keys are not shared`() = runTest(testDispatcher) {
+        val singleFlight = SingleFlight<String, String>(scope)
+
+        val first = async { singleFlight.run("first") { delay(1000).let { "1" } } }
+        val second = async { singleFlight.run("second") { delay(1000).let { "2" } } }
+        testDispatcher.scheduler.advanceUntilIdle()
+
+        assertEquals("1", first.await())
+        assertEquals("2", second.await())
+        assertEquals(0L, singleFlight.coalesced)
+    }
+
+    @Test
+    fun `completed requests are not reused`() = runTest(testDispatcher) {
+        val singleFlight = SingleFlight<String, Int>(scope)
+        var invocations = 0
+
+        // Verify that once an operation has completed, a later request for the same key starts a new one.
+        assertEquals(1, singleFlight.run("key") { ++invocations })
+        assertEquals(2, singleFlight.run("key") { ++invocations })
+        assertEquals(0L, singleFlight.coalesced)
+    }
+
+    @Test
+    fun `cancelled caller does not cancel shared request`() = runTest(testDispatcher) {
+        val singleFlight = SingleFlight<String, Int>(scope)
+
+        val first = async { singleFlight.run("key") { delay(1000).let { 1 } } }
+        val second = async { singleFlight.run("key") { delay(1000).let { 2 } } }
+        testDispatcher.scheduler.advanceTimeBy(500)
+
+        // Cancel the caller that started the operation, and verify the other still receives the result.
+        first.cancel()
+        testDispatcher.scheduler.advanceUntilIdle()
+        assertEquals(1, second.await())
+    }
+
+    @Test
+    fun `failures are shared`() = runTest(testDispatcher) {
+        val singleFlight = SingleFlight<String, Int>(scope)
+
+        val results = List(2) {
+            async {
+                runCatching {
+                    singleFlight.run("key") {
+                        delay(1000)
+                        throw IllegalStateException()
+                    }
+                }
+            }
+        }
+        testDispatcher.scheduler.advanceUntilIdle()
+
+        // Verify that every caller observed the same failure.
+        results.forEach { assertEquals(IllegalStateException::class, it.await().exceptionOrNull()!!::class) }
+    }
+}
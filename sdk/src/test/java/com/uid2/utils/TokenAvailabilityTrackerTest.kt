@@ -0,0 +1,70 @@
+package com.uid2.utils
+
+import com.uid2.data.IdentityStatus.ESTABLISHED
+import com.uid2.data.IdentityStatus.EXPIRED
+import com.uid2.data.IdentityStatus.NO_IDENTITY
+import com.uid2.data.IdentityStatus.OPT_OUT
+import com.uid2.data.TokenOutcomes
+import com.uid2.utils.TokenAvailabilityTracker.Source
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import kotlin.concurrent.thread
+
+class TokenAvailabilityTrackerTest {
+
+    @Test
+    fun `no requests`() {
+        val availability = TokenAvailabilityTracker().snapshot(0)
+
+        assertEquals(TokenOutcomes(0, 0, mapOf()), availability.reads)
+        assertEquals(TokenOutcomes(0, 0, mapOf()), availability.signals)
+        assertEquals(0.0, availability.reads.hitRate, 0.0)
+    }
+
+    @Test
+    fun `counts outcomes by source and status`() {
+        val tracker = TokenAvailabilityTracker()
+        repeat(6) { tracker.record(Source.SIGNALS, true, ESTABLISHED) }
+        repeat(3) { tracker.record(Source.SIGNALS, false, EXPIRED) }
+        tracker.record(Source.SIGNALS, false, NO_IDENTITY)
+        tracker.record(Source.READ, false, OPT_OUT)
+
+        val availability = tracker.snapshot(0)
+        assertEquals(TokenOutcomes(10, 6, mapOf(EXPIRED to 3L, NO_IDENTITY to 1L)), availability.signals)
+        assertEquals(0.6, availability.signals.hitRate, 0.0001)
+        assertEquals(TokenOutcomes(1, 0, mapOf(OPT_OUT to 1L)), availability.reads)
+    }
+
+    @Test
+    fun `counts concurrent requests`() {
+        val tracker = TokenAvailabilityTracker()
+        val threadCount = 16
+        val requestsPerThread = 10_000
+
+        List(threadCount) { index ->
+            thread {
+                repeat(requestsPerThread) { tracker.record(Source.SIGNALS, index % 2 == 0, ESTABLISHED) }
+            }
+        }.forEach { it.join() }
+
+        // Verify that no requests were lost, regardless of which stripe they were counted in.
+        val signals = tracker.snapshot(0).signals
+        assertEquals((threadCount * requestsPerThread).toLong(), signals.requests)
+        assertEquals(0.5, signals.hitRate, 0.0)
+    }
+
+    @Test
+    fun `tracks periods without a token`() {
+        val tracker = TokenAvailabilityTracker()
+        tracker.onUnavailableEnded(2_000)
+        tracker.onUnavailableEnded(5_000)
+
+        assertEquals(7_000, tracker.snapshot(0).unavailableMs)
+        assertEquals(5_000, tracker.snapshot(0).longestUnavailableMs)
+
+        // Verify that the current period is included.
+        val availability = tracker.snapshot(8_000)
+        assertEquals(15_000, availability.unavailableMs)
+        assertEquals(8_000, availability.longestUnavailableMs)
+    }
+}
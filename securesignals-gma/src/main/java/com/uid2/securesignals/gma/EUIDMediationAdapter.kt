@@ -56,7 +56,8 @@ public class EUIDMediationAdapter : RtbAdapter() {
      */
     override fun collectSignals(rtbSignalData: RtbSignalData, signalCallbacks: SignalCallbacks) {
         EUIDManager.getInstance().let { manager ->
-            val token = manager.getAdvertisingToken()
+            val token = manager.getAdvertisingTokenForSignals()
+
             if (token != null) {
                 signalCallbacks.onSuccess(token)
             } else {
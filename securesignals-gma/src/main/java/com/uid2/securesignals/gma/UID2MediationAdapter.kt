@@ -57,7 +57,8 @@ public class UID2MediationAdapter : RtbAdapter() {
      */
     override fun collectSignals(rtbSignalData: RtbSignalData, signalCallbacks: SignalCallbacks) {
         UID2Manager.getInstance().let { manager ->
-            val token = manager.getAdvertisingToken()
+            val token = manager.getAdvertisingTokenForSignals()
+
             if (token != null) {
                 signalCallbacks.onSuccess(token)
             } else {
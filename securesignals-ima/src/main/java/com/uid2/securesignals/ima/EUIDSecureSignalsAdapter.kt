@@ -52,7 +52,8 @@ public class EUIDSecureSignalsAdapter : SecureSignalsAdapter {
      */
     public override fun collectSignals(context: Context, callback: SecureSignalsCollectSignalsCallback) {
         EUIDManager.getInstance().let { manager ->
-            val token = manager.getAdvertisingToken()
+            val token = manager.getAdvertisingTokenForSignals()
+
             if (token != null) {
                 callback.onSuccess(token)
             } else {
@@ -53,7 +53,8 @@ public class UID2SecureSignalsAdapter : SecureSignalsAdapter {
      */
     public override fun collectSignals(context: Context, callback: SecureSignalsCollectSignalsCallback) {
         UID2Manager.getInstance().let { manager ->
-            val token = manager.getAdvertisingToken()
+            val token = manager.getAdvertisingTokenForSignals()
+
             if (token != null) {
                 callback.onSuccess(token)
             } else {